@@ -45,6 +45,12 @@ LOCAL_PROGUARD_FLAG_FILES := proguard.flags
 LOCAL_AAPT_FLAGS := --auto-add-overlay \
     --extra-packages android.support.v7.preference:android.support.v14.preference:android.support.v17.preference:android.support.v7.appcompat:android.support.v7.recyclerview
 
+# Prebuilt search Index snapshots, one search_index/<locale>.db per shipped locale. They are
+# generated on a device running this build with the SearchIndexSnapshotGenerator instrumentation.
+ifneq ($(wildcard $(LOCAL_PATH)/search_snapshot/search_index/*.db),)
+    LOCAL_ASSET_DIR := $(LOCAL_PATH)/search_snapshot
+endif
+
 ifneq ($(INCREMENTAL_BUILDS),)
     LOCAL_PROGUARD_ENABLED := disabled
     LOCAL_JACK_ENABLED := incremental
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.util.Log;
+
+import com.android.settings.dashboard.SummaryLoader;
+import com.android.settings.search.Indexable;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process wide cache of the static providers declared by fragments: the
+ * <code>SEARCH_INDEX_DATA_PROVIDER</code> of {@link Indexable} fragments and the
+ * <code>SUMMARY_PROVIDER_FACTORY</code> of dashboard fragments.
+ *
+ * A fragment class is only loaded the first time one of its providers is requested, and the
+ * result (including the absence of a provider) is then reused for the life of the process.
+ */
+public final class ProviderRegistry {
+
+    private static final String TAG = "ProviderRegistry";
+
+    private static final String FIELD_NAME_SEARCH_INDEX_DATA_PROVIDER =
+            "SEARCH_INDEX_DATA_PROVIDER";
+
+    // Marks a class name known not to declare the requested provider
+    private static final Object NO_PROVIDER = new Object();
+
+    private static final ConcurrentHashMap<String, Object> sSearchIndexProviders =
+            new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Object> sSummaryProviderFactories =
+            new ConcurrentHashMap<>();
+
+    private ProviderRegistry() {
+    }
+
+    /**
+     * @return the search index provider of an {@link Indexable} class, or null if the class
+     * cannot be found, is not {@link Indexable} or has no provider.
+     */
+    public static Indexable.SearchIndexProvider getSearchIndexProvider(String className) {
+        return (Indexable.SearchIndexProvider) getProvider(sSearchIndexProviders, className,
+                FIELD_NAME_SEARCH_INDEX_DATA_PROVIDER, Indexable.class,
+                Indexable.SearchIndexProvider.class);
+    }
+
+    /**
+     * @return the summary provider factory of a dashboard fragment class, or null if the class
+     * cannot be found or has no factory.
+     */
+    public static SummaryLoader.SummaryProviderFactory getSummaryProviderFactory(
+            String className) {
+        return (SummaryLoader.SummaryProviderFactory) getProvider(sSummaryProviderFactories,
+                className, SummaryLoader.SUMMARY_PROVIDER_FACTORY, null,
+                SummaryLoader.SummaryProviderFactory.class);
+    }
+
+    private static Object getProvider(ConcurrentHashMap<String, Object> cache, String className,
+            String fieldName, Class<?> requiredInterface, Class<?> providerClass) {
+        Object provider = cache.get(className);
+        if (provider == null) {
+            provider = loadProvider(className, fieldName, requiredInterface, providerClass);
+            final Object previous = cache.putIfAbsent(className,
+                    provider != null ? provider : NO_PROVIDER);
+            if (previous != null) {
+                provider = previous;
+            }
+        }
+        return provider != NO_PROVIDER ? provider : null;
+    }
+
+    private static Object loadProvider(String className, String fieldName,
+            Class<?> requiredInterface, Class<?> providerClass) {
+        try {
+            final Class<?> clazz = Class.forName(className);
+            if (requiredInterface != null && !requiredInterface.isAssignableFrom(clazz)) {
+                Log.d(TAG, "'" + className + "' should implement the "
+                        + requiredInterface.getName() + " interface!");
+                return null;
+            }
+            final Field f = clazz.getField(fieldName);
+            final Object provider = f.get(null);
+            return providerClass.isInstance(provider) ? provider : null;
+        } catch (ClassNotFoundException e) {
+            Log.d(TAG, "Cannot find class: " + className);
+        } catch (NoSuchFieldException e) {
+            Log.d(TAG, "Cannot find field '" + fieldName + "' in " + className);
+        } catch (SecurityException e) {
+            Log.d(TAG, "Security exception for field '" + fieldName + "' in " + className);
+        } catch (IllegalAccessException e) {
+            Log.d(TAG, "Illegal access to field '" + fieldName + "' in " + className);
+        } catch (IllegalArgumentException e) {
+            Log.d(TAG, "Illegal argument when accessing field '" + fieldName + "' in "
+                    + className);
+        }
+        return null;
+    }
+}
@@ -25,6 +25,7 @@ import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import com.android.settings.applications.ProcStatsData;
+import com.android.settings.search.Index;
 import com.android.settingslib.net.DataUsageController;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -50,6 +51,7 @@ public class SettingsDumpService extends Service {
             dump.put("storage", dumpStorage());
             dump.put("datausage", dumpDataUsage());
             dump.put("memory", dumpMemory());
+            dump.put("search", Index.getInstance(this).dump());
         } catch (Exception e) {
             e.printStackTrace();
         }
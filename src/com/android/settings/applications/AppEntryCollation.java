@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.icu.text.AlphabeticIndex;
+import android.os.LocaleList;
+
+import com.android.settingslib.applications.ApplicationsState.AppEntry;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.WeakHashMap;
+
+/**
+ * Locale dependent sort keys of app entries: the collation keys of their label and package
+ * name, and their fast scroll bucket.
+ *
+ * Keys are computed once per entry and kept until its label or the locales change, so that
+ * sorting the app list alphabetically and building its sections only compare precomputed keys.
+ */
+public final class AppEntryCollation {
+
+    private static AppEntryCollation sInstance;
+
+    private final LocaleList mLocales;
+    private final Locale mCollatorLocale;
+    private final Collator mCollator;
+    private final AlphabeticIndex.ImmutableIndex<Locale> mIndex;
+
+    // Entries are compared by identity, and dropped once ApplicationsState forgets them
+    private final WeakHashMap<AppEntry, Keys> mKeys = new WeakHashMap<>();
+
+    // Same order as ApplicationsState.ALPHA_COMPARATOR
+    private final Comparator<AppEntry> mAlphaComparator = new Comparator<AppEntry>() {
+        @Override
+        public int compare(AppEntry object1, AppEntry object2) {
+            final Keys keys1 = getKeys(object1);
+            final Keys keys2 = getKeys(object2);
+            int compareResult = keys1.labelKey.compareTo(keys2.labelKey);
+            if (compareResult != 0) {
+                return compareResult;
+            }
+            if (keys1.packageNameKey != null && keys2.packageNameKey != null) {
+                compareResult = keys1.packageNameKey.compareTo(keys2.packageNameKey);
+                if (compareResult != 0) {
+                    return compareResult;
+                }
+            }
+            return object1.info.uid - object2.info.uid;
+        }
+    };
+
+    /**
+     * @return the keys for the given locales, reusing the keys already computed as long as the
+     * locales did not change.
+     */
+    public static synchronized AppEntryCollation getInstance(LocaleList locales) {
+        if (locales.size() == 0) {
+            locales = new LocaleList(Locale.ENGLISH);
+        }
+        if (sInstance == null || !sInstance.mLocales.equals(locales)
+                || !sInstance.mCollatorLocale.equals(Locale.getDefault())) {
+            sInstance = new AppEntryCollation(locales);
+        }
+        return sInstance;
+    }
+
+    private AppEntryCollation(LocaleList locales) {
+        mLocales = locales;
+        mCollatorLocale = Locale.getDefault();
+        mCollator = Collator.getInstance(mCollatorLocale);
+
+        AlphabeticIndex<Locale> index = new AlphabeticIndex<>(locales.get(0));
+        int localeCount = locales.size();
+        for (int i = 1; i < localeCount; i++) {
+            index.addLabels(locales.get(i));
+        }
+        // Ensure we always have some base English locale buckets
+        index.addLabels(Locale.ENGLISH);
+        mIndex = index.buildImmutableIndex();
+    }
+
+    /**
+     * @return a comparator sorting entries by label, using the precomputed keys.
+     */
+    public Comparator<AppEntry> getAlphaComparator() {
+        return mAlphaComparator;
+    }
+
+    /**
+     * Computes the keys of the given entries which do not have up to date keys yet. Meant to be
+     * called from the background looper, so that the UI thread finds them ready.
+     */
+    public void ensureKeys(List<AppEntry> entries) {
+        final int N = entries.size();
+        for (int i = 0; i < N; i++) {
+            getKeys(entries.get(i));
+        }
+    }
+
+    /**
+     * @return the index of the fast scroll bucket of the given entry.
+     */
+    public int getBucketIndex(AppEntry entry) {
+        return getKeys(entry).bucketIndex;
+    }
+
+    /**
+     * @return the label of a fast scroll bucket.
+     */
+    public String getBucketLabel(int bucketIndex) {
+        return mIndex.getBucket(bucketIndex).getLabel();
+    }
+
+    private synchronized Keys getKeys(AppEntry entry) {
+        final String label = entry.label;
+        Keys keys = mKeys.get(entry);
+        // Labels are replaced, never modified in place, when the app or locale changes
+        if (keys == null || keys.label != label) {
+            final String safeLabel = label != null ? label : "";
+            keys = new Keys(label, mCollator.getCollationKey(safeLabel),
+                    entry.info != null ? mCollator.getCollationKey(entry.info.packageName) : null,
+                    mIndex.getBucketIndex(safeLabel));
+            mKeys.put(entry, keys);
+        }
+        return keys;
+    }
+
+    private static class Keys {
+        final String label;
+        final CollationKey labelKey;
+        final CollationKey packageNameKey;
+        final int bucketIndex;
+
+        Keys(String label, CollationKey labelKey, CollationKey packageNameKey, int bucketIndex) {
+            this.label = label;
+            this.labelKey = labelKey;
+            this.packageNameKey = packageNameKey;
+            this.bucketIndex = bucketIndex;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import com.android.settingslib.applications.ApplicationsState.AppEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fast scroll sections of an app list.
+ *
+ * The bucket of each entry comes from its {@link AppEntryCollation} keys, so that updating the
+ * sections after the list has been re-filtered or re-sorted does not go through the collator
+ * again.
+ */
+public class AppListSections {
+
+    private static final Object[] EMPTY_SECTIONS = new Object[0];
+    private static final int[] EMPTY_POSITIONS = new int[0];
+
+    private final AppEntryCollation mCollation;
+
+    private final ArrayList<Section> mSectionList = new ArrayList<>();
+    private Object[] mSections = EMPTY_SECTIONS;
+    private int[] mPositionToSectionIndex = EMPTY_POSITIONS;
+    private int mTotalEntries;
+
+    public AppListSections(AppEntryCollation collation) {
+        mCollation = collation;
+    }
+
+    /**
+     * Recomputes the sections for the given list of entries.
+     *
+     * @return whether the sections changed.
+     */
+    public boolean update(List<AppEntry> entries) {
+        final Object[] oldSections = mSections;
+        final int oldTotalEntries = mTotalEntries;
+        final int totalEntries = entries.size();
+        if (mPositionToSectionIndex.length < totalEntries) {
+            mPositionToSectionIndex = new int[totalEntries];
+        }
+        mSectionList.clear();
+        int lastSecId = -1;
+        for (int pos = 0; pos < totalEntries; pos++) {
+            int secId = mCollation.getBucketIndex(entries.get(pos));
+            if (secId != lastSecId) {
+                lastSecId = secId;
+                mSectionList.add(new Section(mCollation.getBucketLabel(secId), pos));
+            }
+            mPositionToSectionIndex[pos] = mSectionList.size() - 1;
+        }
+        mSections = mSectionList.toArray(EMPTY_SECTIONS);
+        mTotalEntries = totalEntries;
+        // Positions map to sections through the section start positions and the entry count
+        return totalEntries != oldTotalEntries || !Arrays.equals(oldSections, mSections);
+    }
+
+    public Object[] getSections() {
+        return mSections;
+    }
+
+    public int getPositionForSection(int sectionIndex) {
+        return ((Section) mSections[sectionIndex]).position;
+    }
+
+    public int getSectionForPosition(int position) {
+        return mPositionToSectionIndex[position];
+    }
+
+    private static class Section {
+        final String label;
+        final int position;
+
+        Section(String label, int position) {
+            this.label = label;
+            this.position = position;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Section)) {
+                return false;
+            }
+            final Section other = (Section) o;
+            return position == other.position && label.equals(other.label);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * label.hashCode() + position;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+}
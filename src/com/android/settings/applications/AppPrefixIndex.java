@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import com.android.settingslib.applications.ApplicationsState;
+import com.android.settingslib.applications.ApplicationsState.AppEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Typed prefix index over a list of app entries.
+ *
+ * An entry matches a prefix when its normalized label (lower case, without diacritics) or its
+ * package name starts with it at the beginning of a word: after a space in the label, after a dot
+ * in the package name.
+ *
+ * The index is built by {@link #ensureBuilt()} or on its first query, from any thread, and is
+ * immutable afterwards. Each
+ * query is a binary search followed by a walk over the matching keys only, so it costs time
+ * proportional to the number of results rather than to the number of entries.
+ */
+public class AppPrefixIndex {
+
+    private final List<AppEntry> mEntries;
+
+    // Word start suffixes of all entries, sorted, and the position of their entry in mEntries
+    private String[] mKeys;
+    private int[] mKeyEntries;
+
+    public AppPrefixIndex(List<AppEntry> entries) {
+        mEntries = entries;
+    }
+
+    /**
+     * @return the entries matching the given prefix, in the order of the indexed list.
+     */
+    public ArrayList<AppEntry> search(CharSequence prefix) {
+        ensureBuilt();
+        final String prefixStr = ApplicationsState.normalize(prefix.toString());
+        final ArrayList<AppEntry> result = new ArrayList<AppEntry>();
+        final int start = lowerBound(mKeys, prefixStr);
+        int end = start;
+        while (end < mKeys.length && mKeys[end].startsWith(prefixStr)) {
+            end++;
+        }
+        if (end == start) {
+            return result;
+        }
+
+        // The same entry may match through several of its words.
+        final int[] positions = Arrays.copyOfRange(mKeyEntries, start, end);
+        Arrays.sort(positions);
+        int last = -1;
+        for (int position : positions) {
+            if (position != last) {
+                result.add(mEntries.get(position));
+                last = position;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the position of the first key not lower than the given one.
+     */
+    private static int lowerBound(String[] keys, String key) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (keys[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Builds the index if it is not built yet. Meant to be called from a background thread, so
+     * that the first query does not pay for it.
+     */
+    public synchronized void ensureBuilt() {
+        if (mKeys != null) {
+            return;
+        }
+        final ArrayList<Key> keys = new ArrayList<Key>(mEntries.size() * 4);
+        final int N = mEntries.size();
+        for (int i = 0; i < N; i++) {
+            final AppEntry entry = mEntries.get(i);
+            addWordStarts(keys, entry.getNormalizedLabel(), ' ', i);
+            if (entry.info != null && entry.info.packageName != null) {
+                addWordStarts(keys, ApplicationsState.normalize(entry.info.packageName), '.', i);
+            }
+        }
+        final Key[] sorted = keys.toArray(new Key[keys.size()]);
+        Arrays.sort(sorted);
+        final String[] sortedKeys = new String[sorted.length];
+        final int[] keyEntries = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            sortedKeys[i] = sorted[i].text;
+            keyEntries[i] = sorted[i].position;
+        }
+        mKeyEntries = keyEntries;
+        mKeys = sortedKeys;
+    }
+
+    private static void addWordStarts(ArrayList<Key> keys, String text, char separator,
+            int position) {
+        if (text == null || text.isEmpty()) {
+            return;
+        }
+        keys.add(new Key(text, position));
+        int index = text.indexOf(separator);
+        while (index != -1 && index + 1 < text.length()) {
+            keys.add(new Key(text.substring(index + 1), position));
+            index = text.indexOf(separator, index + 1);
+        }
+    }
+
+    private static class Key implements Comparable<Key> {
+        final String text;
+        final int position;
+
+        Key(String text, int position) {
+            this.text = text;
+            this.position = position;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            return text.compareTo(other.text);
+        }
+    }
+}
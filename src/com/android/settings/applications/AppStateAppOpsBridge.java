@@ -19,6 +19,7 @@ import android.app.AppGlobals;
 import android.app.AppOpsManager;
 import android.app.AppOpsManager.PackageOps;
 import android.content.Context;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.IPackageManager;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
@@ -164,9 +165,9 @@ public abstract class AppStateAppOpsBridge extends AppStateBaseBridge {
                 final ArrayMap<String, PermissionState> entriesForProfile = new ArrayMap<>();
                 final int profileId = profile.getIdentifier();
                 entries.put(profileId, entriesForProfile);
+                final Set<String> availablePackages = getAvailablePackages(profileId);
                 for (final String packageName : packagesSet) {
-                    final boolean isAvailable = mIPackageManager.isPackageAvailable(packageName,
-                            profileId);
+                    final boolean isAvailable = availablePackages.contains(packageName);
                     if (!shouldIgnorePackage(packageName) && isAvailable) {
                         final PermissionState newEntry = new PermissionState(packageName, profile);
                         entriesForProfile.put(packageName, newEntry);
@@ -182,6 +183,30 @@ public abstract class AppStateAppOpsBridge extends AppStateBaseBridge {
         }
     }
 
+    /*
+     * Gets the packages available (installed and not hidden) for the given user with a single
+     * bulk query, rather than asking the package manager about each package in turn.
+     */
+    private Set<String> getAvailablePackages(int userId) throws RemoteException {
+        final Set<String> availablePackages = new HashSet<>();
+        @SuppressWarnings("unchecked")
+        final List<ApplicationInfo> apps = mIPackageManager.getInstalledApplications(
+                PackageManager.MATCH_UNINSTALLED_PACKAGES
+                        | PackageManager.MATCH_DISABLED_COMPONENTS
+                        | PackageManager.MATCH_DISABLED_UNTIL_USED_COMPONENTS
+                        | PackageManager.MATCH_DIRECT_BOOT_AWARE
+                        | PackageManager.MATCH_DIRECT_BOOT_UNAWARE, userId).getList();
+        final int appCount = apps != null ? apps.size() : 0;
+        for (int i = 0; i < appCount; i++) {
+            final ApplicationInfo app = apps.get(i);
+            if ((app.flags & ApplicationInfo.FLAG_INSTALLED) != 0
+                    && (app.privateFlags & ApplicationInfo.PRIVATE_FLAG_HIDDEN) == 0) {
+                availablePackages.add(app.packageName);
+            }
+        }
+        return availablePackages;
+    }
+
     /*
      * This method will set the packageInfo and staticPermissionGranted field of the associated
      * PermissionState, which describes a particular package.
@@ -18,18 +18,45 @@ package com.android.settings.applications;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
 
 import com.android.settingslib.applications.ApplicationsState;
 import com.android.settingslib.applications.ApplicationsState.AppEntry;
 import com.android.settingslib.applications.ApplicationsState.Session;
 
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Common base class for bridging information to ApplicationsState.
  */
 public abstract class AppStateBaseBridge implements ApplicationsState.Callbacks {
 
+    private static final String TAG = "AppStateBaseBridge";
+
+    // Extra info loading is bound by binder calls, not CPU
+    private static final int MAX_LOADER_THREADS = 4;
+    private static final int LOADER_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    // Number of apps loaded by one task of the concurrent loading
+    private static final int LOAD_BATCH_SIZE = 32;
+
+    // Minimum delay between two partial results published while loading
+    private static final long PUBLISH_INTERVAL_MS = 250;
+
+    private static ExecutorService sLoaderExecutor;
+
     protected final ApplicationsState mAppState;
     protected final Session mAppSession;
     protected final Callback mCallback;
@@ -108,6 +135,103 @@ public abstract class AppStateBaseBridge implements ApplicationsState.Callbacks
     protected abstract void loadAllExtraInfo();
     protected abstract void updateExtraInfo(AppEntry app, String pkg, int uid);
 
+    /**
+     * Loads the extra info of all apps through the given loader, fanned out in batches across a
+     * bounded pool of threads.
+     *
+     * The extra info is still set from the calling thread, as batches complete, and the callback
+     * is notified of the partial results so that lists fill in while the loading goes on.
+     */
+    protected void loadAllExtraInfoConcurrently(ExtraInfoLoader loader) {
+        final ArrayList<AppEntry> apps = mAppSession.getAllApps();
+        final int N = apps.size();
+        final CompletionService<LoadedBatch> completionService =
+                new ExecutorCompletionService<LoadedBatch>(getLoaderExecutor());
+        int batches = 0;
+        for (int start = 0; start < N; start += LOAD_BATCH_SIZE) {
+            final AppEntry[] batch = apps.subList(start, Math.min(N, start + LOAD_BATCH_SIZE))
+                    .toArray(new AppEntry[0]);
+            completionService.submit(new LoadBatchCallable(loader, batch));
+            batches++;
+        }
+
+        long lastPublished = SystemClock.uptimeMillis();
+        for (int i = 0; i < batches; i++) {
+            final LoadedBatch loaded;
+            try {
+                loaded = completionService.take().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                Log.w(TAG, "Failed to load extra info", e.getCause());
+                continue;
+            }
+            for (int j = 0; j < loaded.apps.length; j++) {
+                loaded.apps[j].extraInfo = loaded.extraInfo[j];
+            }
+            final long now = SystemClock.uptimeMillis();
+            if (i < batches - 1 && now - lastPublished >= PUBLISH_INTERVAL_MS) {
+                mMainHandler.sendEmptyMessage(MainHandler.MSG_INFO_UPDATED);
+                lastPublished = now;
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getLoaderExecutor() {
+        if (sLoaderExecutor == null) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_LOADER_THREADS,
+                    MAX_LOADER_THREADS, LOADER_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger(1);
+
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(
+                                            Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, "AppStateLoader #" + mCount.getAndIncrement());
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sLoaderExecutor = executor;
+        }
+        return sLoaderExecutor;
+    }
+
+    private static class LoadedBatch {
+        final AppEntry[] apps;
+        final Object[] extraInfo;
+
+        LoadedBatch(AppEntry[] apps) {
+            this.apps = apps;
+            this.extraInfo = new Object[apps.length];
+        }
+    }
+
+    private static class LoadBatchCallable implements Callable<LoadedBatch> {
+        private final ExtraInfoLoader mLoader;
+        private final AppEntry[] mApps;
+
+        LoadBatchCallable(ExtraInfoLoader loader, AppEntry[] apps) {
+            mLoader = loader;
+            mApps = apps;
+        }
+
+        @Override
+        public LoadedBatch call() {
+            final LoadedBatch loaded = new LoadedBatch(mApps);
+            for (int i = 0; i < mApps.length; i++) {
+                loaded.extraInfo[i] = mLoader.loadExtraInfo(mApps[i]);
+            }
+            return loaded;
+        }
+    }
+
     private class MainHandler extends Handler {
         private static final int MSG_INFO_UPDATED = 1;
 
@@ -157,4 +281,15 @@ public abstract class AppStateBaseBridge implements ApplicationsState.Callbacks
     public interface Callback {
         void onExtraInfoUpdated();
     }
+
+    /**
+     * Implemented by the bridges using {@link #loadAllExtraInfoConcurrently(ExtraInfoLoader)}.
+     */
+    public interface ExtraInfoLoader {
+        /**
+         * Loads the extra info of one app. Called from the loader threads, so it must not touch
+         * state that is not safe to share between threads.
+         */
+        Object loadExtraInfo(AppEntry app);
+    }
 }
@@ -28,13 +28,12 @@ import com.android.settingslib.applications.ApplicationsState;
 import com.android.settingslib.applications.ApplicationsState.AppEntry;
 import com.android.settingslib.applications.ApplicationsState.AppFilter;
 
-import java.util.ArrayList;
-
 /**
  * Connects the info provided by ApplicationsState and the NotificationBackend.
  * Also provides app filters that can use the notification data.
  */
-public class AppStateNotificationBridge extends AppStateBaseBridge {
+public class AppStateNotificationBridge extends AppStateBaseBridge
+        implements AppStateBaseBridge.ExtraInfoLoader {
 
     private final NotificationBackend mNotifBackend;
     private final PackageManager mPm;
@@ -50,12 +49,12 @@ public class AppStateNotificationBridge extends AppStateBaseBridge {
 
     @Override
     protected void loadAllExtraInfo() {
-        ArrayList<AppEntry> apps = mAppSession.getAllApps();
-        final int N = apps.size();
-        for (int i = 0; i < N; i++) {
-            AppEntry app = apps.get(i);
-            app.extraInfo = mNotifBackend.loadAppRow(mContext, mPm, app.info);
-        }
+        loadAllExtraInfoConcurrently(this);
+    }
+
+    @Override
+    public Object loadExtraInfo(AppEntry app) {
+        return mNotifBackend.loadAppRow(mContext, mPm, app.info);
     }
 
     @Override
@@ -22,12 +22,11 @@ import com.android.settingslib.applications.ApplicationsState;
 import com.android.settingslib.applications.ApplicationsState.AppEntry;
 import com.android.settingslib.applications.ApplicationsState.AppFilter;
 
-import java.util.ArrayList;
-
 /**
  * Connects the info provided by ApplicationsState and premium sms permission state.
  */
-public class AppStateSmsPremBridge extends AppStateBaseBridge {
+public class AppStateSmsPremBridge extends AppStateBaseBridge
+        implements AppStateBaseBridge.ExtraInfoLoader {
 
     private final Context mContext;
     private final ISms mSmsManager;
@@ -40,12 +39,12 @@ public class AppStateSmsPremBridge extends AppStateBaseBridge {
 
     @Override
     protected void loadAllExtraInfo() {
-        ArrayList<AppEntry> apps = mAppSession.getAllApps();
-        final int N = apps.size();
-        for (int i = 0; i < N; i++) {
-            AppEntry app = apps.get(i);
-            updateExtraInfo(app, app.info.packageName, app.info.uid);
-        }
+        loadAllExtraInfoConcurrently(this);
+    }
+
+    @Override
+    public Object loadExtraInfo(AppEntry app) {
+        return getState(app.info.packageName);
     }
 
     @Override
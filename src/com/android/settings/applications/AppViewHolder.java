@@ -16,6 +16,8 @@
 
 package com.android.settings.applications;
 
+import android.content.pm.ApplicationInfo;
+import android.graphics.drawable.Drawable;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -35,6 +37,17 @@ public class AppViewHolder {
     public TextView summary;
     public TextView disabled;
 
+    // State of the entry the row was last bound to, so that unchanged rows are not bound again
+    private ApplicationInfo mBoundInfo;
+    private int mBoundFlags;
+    private boolean mBoundEnabled;
+    private String mBoundLabel;
+    private Drawable mBoundIcon;
+    private String mBoundSizeStr;
+    private String mBoundInternalSizeStr;
+    private String mBoundExternalSizeStr;
+    private Object mBoundExtraInfo;
+
     static public AppViewHolder createOrRecycle(LayoutInflater inflater, View convertView) {
         if (convertView == null) {
             convertView = inflater.inflate(R.layout.preference_app, null);
@@ -58,6 +71,39 @@ public class AppViewHolder {
         }
     }
 
+    /**
+     * Records the state of {@link #entry} that the row has just been bound to. Call it with the
+     * entry locked.
+     */
+    void setBound() {
+        mBoundInfo = entry.info;
+        mBoundFlags = entry.info.flags;
+        mBoundEnabled = entry.info.enabled;
+        mBoundLabel = entry.label;
+        mBoundIcon = entry.icon;
+        mBoundSizeStr = entry.sizeStr;
+        mBoundInternalSizeStr = entry.internalSizeStr;
+        mBoundExternalSizeStr = entry.externalSizeStr;
+        mBoundExtraInfo = entry.extraInfo;
+    }
+
+    /**
+     * @return whether the row shows the current state of {@link #entry}. Call it with the entry
+     * locked.
+     */
+    boolean isBoundToCurrentState() {
+        // Labels and size strings are replaced, never modified in place
+        return mBoundInfo == entry.info
+                && mBoundFlags == entry.info.flags
+                && mBoundEnabled == entry.info.enabled
+                && mBoundLabel == entry.label
+                && mBoundIcon == entry.icon
+                && mBoundSizeStr == entry.sizeStr
+                && mBoundInternalSizeStr == entry.internalSizeStr
+                && mBoundExternalSizeStr == entry.externalSizeStr
+                && mBoundExtraInfo == entry.extraInfo;
+    }
+
     void updateSizeText(CharSequence invalidSizeStr, int whichSize) {
         if (ManageApplications.DEBUG) Log.i(ManageApplications.TAG, "updateSizeText of "
                 + entry.label + " " + entry + ": " + entry.sizeStr);
@@ -88,6 +88,8 @@ import com.android.settings.datausage.AppDataUsage;
 import com.android.settings.datausage.DataUsageList;
 import com.android.settings.datausage.DataUsageSummary;
 import com.android.settings.fuelgauge.BatteryEntry;
+import com.android.settings.fuelgauge.BatterySnapshot;
+import com.android.settings.fuelgauge.BatterySnapshotProvider;
 import com.android.settings.fuelgauge.PowerUsageDetail;
 import com.android.settings.notification.AppNotificationSettings;
 import com.android.settings.notification.NotificationBackend;
@@ -172,6 +174,7 @@ public class InstalledAppDetails extends AppInfoBase
 
     private Preference mBatteryPreference;
 
+    private BatterySnapshotProvider mBatterySnapshotProvider;
     private BatteryStatsHelper mBatteryHelper;
     private BatterySipper mSipper;
 
@@ -322,7 +325,7 @@ public class InstalledAppDetails extends AppInfoBase
         } else {
             removePreference(KEY_DATA);
         }
-        mBatteryHelper = new BatteryStatsHelper(getActivity(), true);
+        mBatterySnapshotProvider = BatterySnapshotProvider.getInstance(getActivity());
     }
 
     @Override
@@ -1101,15 +1104,12 @@ public class InstalledAppDetails extends AppInfoBase
                 mStatsManager.setDuration(ProcessStatsBase.sDurations[0]);
             }
             mStatsManager.refreshStats(true);
-            for (ProcStatsPackageEntry pkgEntry : mStatsManager.getEntries()) {
-                for (ProcStatsEntry entry : pkgEntry.mEntries) {
-                    if (entry.mUid == mPackageInfo.applicationInfo.uid) {
-                        pkgEntry.updateMetrics();
-                        return pkgEntry;
-                    }
-                }
+            ProcStatsPackageEntry pkgEntry =
+                    mStatsManager.getEntryForUid(mPackageInfo.applicationInfo.uid);
+            if (pkgEntry != null) {
+                pkgEntry.updateMetrics();
             }
-            return null;
+            return pkgEntry;
         }
 
         @Override
@@ -1135,18 +1135,9 @@ public class InstalledAppDetails extends AppInfoBase
     private class BatteryUpdater extends AsyncTask<Void, Void, Void> {
         @Override
         protected Void doInBackground(Void... params) {
-            mBatteryHelper.create((Bundle) null);
-            mBatteryHelper.refreshStats(BatteryStats.STATS_SINCE_CHARGED,
-                    mUserManager.getUserProfiles());
-            List<BatterySipper> usageList = mBatteryHelper.getUsageList();
-            final int N = usageList.size();
-            for (int i = 0; i < N; i++) {
-                BatterySipper sipper = usageList.get(i);
-                if (sipper.getUid() == mPackageInfo.applicationInfo.uid) {
-                    mSipper = sipper;
-                    break;
-                }
-            }
+            BatterySnapshot snapshot = mBatterySnapshotProvider.getSnapshot();
+            mBatteryHelper = snapshot.getHelper();
+            mSipper = snapshot.getSipperForUid(mPackageInfo.applicationInfo.uid);
             return null;
         }
 
@@ -23,15 +23,12 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageItemInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
-import android.icu.text.AlphabeticIndex;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
-import android.os.LocaleList;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.preference.PreferenceFrameLayout;
-import android.text.TextUtils;
 import android.util.ArraySet;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -85,7 +82,6 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.Locale;
 
 /**
  * Activity to pick an application that will be used to display installation information and
@@ -723,7 +719,7 @@ public class ManageApplications extends InstrumentedFragment
     static class ApplicationsAdapter extends BaseAdapter implements Filterable,
             ApplicationsState.Callbacks, AppStateBaseBridge.Callback,
             AbsListView.RecyclerListener, SectionIndexer {
-        private static final SectionInfo[] EMPTY_SECTIONS = new SectionInfo[0];
+        private static final Object[] EMPTY_SECTIONS = new Object[0];
 
         private final ApplicationsState mState;
         private final ApplicationsState.Session mSession;
@@ -735,6 +731,7 @@ public class ManageApplications extends InstrumentedFragment
         private final Handler mFgHandler;
         private int mFilterMode;
         private ArrayList<ApplicationsState.AppEntry> mBaseEntries;
+        private volatile AppPrefixIndex mPrefixIndex;
         private ArrayList<ApplicationsState.AppEntry> mEntries;
         private boolean mResumed;
         private int mLastSortMode = -1;
@@ -745,15 +742,14 @@ public class ManageApplications extends InstrumentedFragment
         private boolean mHasReceivedLoadEntries;
         private boolean mHasReceivedBridgeCallback;
 
-        private AlphabeticIndex.ImmutableIndex<Locale> mIndex;
-        private SectionInfo[] mSections = EMPTY_SECTIONS;
-        private int[] mPositionToSectionIndex;
+        private final AppEntryCollation mCollation;
+        private AppListSections mSections;
 
         private Filter mFilter = new Filter() {
             @Override
             protected FilterResults performFiltering(CharSequence constraint) {
                 ArrayList<ApplicationsState.AppEntry> entries
-                        = applyPrefixFilter(constraint, mBaseEntries);
+                        = applyPrefixFilter(constraint, mBaseEntries, mPrefixIndex);
                 FilterResults fr = new FilterResults();
                 fr.values = entries;
                 fr.count = entries.size();
@@ -764,9 +760,7 @@ public class ManageApplications extends InstrumentedFragment
             @SuppressWarnings("unchecked")
             protected void publishResults(CharSequence constraint, FilterResults results) {
                 mCurFilterPrefix = constraint;
-                mEntries = (ArrayList<ApplicationsState.AppEntry>) results.values;
-                rebuildSections();
-                notifyDataSetChanged();
+                setEntries((ArrayList<ApplicationsState.AppEntry>) results.values);
             }
         };
 
@@ -779,6 +773,8 @@ public class ManageApplications extends InstrumentedFragment
             mManageApplications = manageApplications;
             mContext = manageApplications.getActivity();
             mPm = mContext.getPackageManager();
+            mCollation = AppEntryCollation.getInstance(
+                    mContext.getResources().getConfiguration().getLocales());
             mFilterMode = filterMode;
             if (mManageApplications.mListType == LIST_TYPE_NOTIFICATION) {
                 mExtraInfoBridge = new AppStateNotificationBridge(mContext, mState, this,
@@ -884,21 +880,38 @@ public class ManageApplications extends InstrumentedFragment
                     }
                     break;
                 default:
-                    comparatorObj = ApplicationsState.ALPHA_COMPARATOR;
+                    comparatorObj = mCollation.getAlphaComparator();
                     break;
             }
             filterObj = new CompoundFilter(filterObj, ApplicationsState.FILTER_NOT_HIDE);
 
             AppFilter finalFilterObj = filterObj;
+            final boolean ignoreUser = ignoresUser(mFilterMode);
             mBgHandler.post(() -> {
-                final ArrayList<AppEntry> entries = mSession.rebuild(finalFilterObj,
+                ArrayList<AppEntry> entries = mSession.rebuild(finalFilterObj,
                         comparatorObj, false);
                 if (entries != null) {
-                    mFgHandler.post(() -> onRebuildComplete(entries));
+                    prepareEntries(entries, ignoreUser);
                 }
             });
         }
 
+        /**
+         * Readies rebuilt entries on the background thread, then hands them to the UI thread.
+         */
+        private void prepareEntries(ArrayList<AppEntry> entries, boolean ignoreUser) {
+            if (ignoreUser) {
+                entries = removeDuplicateIgnoringUser(entries);
+            }
+            // Have the sections keys and the prefix index ready before the list reaches the UI
+            // thread.
+            mCollation.ensureKeys(entries);
+            final AppPrefixIndex prefixIndex = new AppPrefixIndex(entries);
+            prefixIndex.ensureBuilt();
+            final ArrayList<AppEntry> baseEntries = entries;
+            mFgHandler.post(() -> onRebuildComplete(baseEntries, prefixIndex));
+        }
+
 
         static private boolean packageNameEquals(PackageItemInfo info1, PackageItemInfo info2) {
             if (info1 == null || info2 == null) {
@@ -932,23 +945,29 @@ public class ManageApplications extends InstrumentedFragment
             return returnEntries;
         }
 
+        private static boolean ignoresUser(int filterMode) {
+            return filterMode == FILTER_APPS_POWER_WHITELIST
+                    || filterMode == FILTER_APPS_POWER_WHITELIST_ALL;
+        }
+
         @Override
         public void onRebuildComplete(ArrayList<AppEntry> entries) {
-            if (mFilterMode == FILTER_APPS_POWER_WHITELIST ||
-                    mFilterMode == FILTER_APPS_POWER_WHITELIST_ALL) {
-                entries = removeDuplicateIgnoringUser(entries);
-            }
-            mBaseEntries = entries;
-            if (mBaseEntries != null) {
-                mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
-                rebuildSections();
-            } else {
-                mEntries = null;
-                mSections = EMPTY_SECTIONS;
-                mPositionToSectionIndex = null;
+            if (entries == null) {
+                onRebuildComplete(null, null);
+                return;
             }
+            final boolean ignoreUser = ignoresUser(mFilterMode);
+            mBgHandler.post(() -> prepareEntries(entries, ignoreUser));
+        }
 
-            notifyDataSetChanged();
+        /**
+         * @param prefixIndex the prefix index of the given entries, already built.
+         */
+        private void onRebuildComplete(ArrayList<AppEntry> entries, AppPrefixIndex prefixIndex) {
+            mBaseEntries = entries;
+            mPrefixIndex = prefixIndex;
+            setEntries(mBaseEntries != null
+                    ? applyPrefixFilter(mCurFilterPrefix, mBaseEntries, mPrefixIndex) : null);
 
             if (mSession.getAllApps().size() != 0
                     && mManageApplications.mListContainer.getVisibility() != View.VISIBLE) {
@@ -963,42 +982,67 @@ public class ManageApplications extends InstrumentedFragment
             mManageApplications.setHasDisabled(mState.haveDisabledApps());
         }
 
-        private void rebuildSections() {
-            if (mEntries!= null && mManageApplications.mListView.isFastScrollEnabled()) {
-                // Rebuild sections
-                if (mIndex == null) {
-                    LocaleList locales = mContext.getResources().getConfiguration().getLocales();
-                    if (locales.size() == 0) {
-                        locales = new LocaleList(Locale.ENGLISH);
-                    }
-                    AlphabeticIndex<Locale> index = new AlphabeticIndex<>(locales.get(0));
-                    int localeCount = locales.size();
-                    for (int i = 1; i < localeCount; i++) {
-                        index.addLabels(locales.get(i));
-                    }
-                    // Ensure we always have some base English locale buckets
-                    index.addLabels(Locale.ENGLISH);
-                    mIndex = index.buildImmutableIndex();
+        /**
+         * Replaces the displayed entries. When the new list holds the same apps in the same
+         * order, which is the common case of size and extra info updates, only the visible rows
+         * whose entry changed are rebound instead of invalidating the whole list. ListView has
+         * no finer grained notification, so any other change invalidates the whole list.
+         */
+        private void setEntries(ArrayList<AppEntry> entries) {
+            final ArrayList<AppEntry> oldEntries = mEntries;
+            mEntries = entries;
+            // A label change can move an entry to another section without reordering the list
+            final boolean sectionsChanged = rebuildSections();
+            if (!sectionsChanged && hasSameEntries(oldEntries, entries)) {
+                rebindChangedViews();
+                return;
+            }
+            notifyDataSetChanged();
+        }
+
+        private static boolean hasSameEntries(ArrayList<AppEntry> oldEntries,
+                ArrayList<AppEntry> newEntries) {
+            if (oldEntries == null || newEntries == null) {
+                return oldEntries == newEntries;
+            }
+            final int N = newEntries.size();
+            if (oldEntries.size() != N) {
+                return false;
+            }
+            for (int i = 0; i < N; i++) {
+                if (oldEntries.get(i) != newEntries.get(i)) {
+                    return false;
                 }
+            }
+            return true;
+        }
 
-                ArrayList<SectionInfo> sections = new ArrayList<>();
-                int lastSecId = -1;
-                int totalEntries = mEntries.size();
-                mPositionToSectionIndex = new int[totalEntries];
-
-                for (int pos = 0; pos < totalEntries; pos++) {
-                    String label = mEntries.get(pos).label;
-                    int secId = mIndex.getBucketIndex(TextUtils.isEmpty(label) ? "" : label);
-                    if (secId != lastSecId) {
-                        lastSecId = secId;
-                        sections.add(new SectionInfo(mIndex.getBucket(secId).getLabel(), pos));
+        private void rebindChangedViews() {
+            for (int i = 0; i < mActive.size(); i++) {
+                AppViewHolder holder = (AppViewHolder) mActive.get(i).getTag();
+                synchronized (holder.entry) {
+                    if (!holder.isBoundToCurrentState()) {
+                        bindEntry(holder, holder.entry);
                     }
-                    mPositionToSectionIndex[pos] = sections.size() - 1;
                 }
-                mSections = sections.toArray(EMPTY_SECTIONS);
+            }
+        }
+
+        /**
+         * @return whether the sections changed.
+         */
+        private boolean rebuildSections() {
+            if (mEntries != null && mManageApplications.mListView.isFastScrollEnabled()) {
+                if (mSections == null) {
+                    mSections = new AppListSections(mCollation);
+                    mSections.update(mEntries);
+                    return true;
+                }
+                return mSections.update(mEntries);
             } else {
-                mSections = EMPTY_SECTIONS;
-                mPositionToSectionIndex = null;
+                final boolean changed = mSections != null;
+                mSections = null;
+                return changed;
             }
         }
 
@@ -1009,22 +1053,13 @@ public class ManageApplications extends InstrumentedFragment
         }
 
         ArrayList<ApplicationsState.AppEntry> applyPrefixFilter(CharSequence prefix,
-                                                                ArrayList<ApplicationsState.AppEntry> origEntries) {
+                ArrayList<ApplicationsState.AppEntry> origEntries, AppPrefixIndex prefixIndex) {
             if (prefix == null || prefix.length() == 0) {
                 return origEntries;
+            } else if (prefixIndex == null) {
+                return new ArrayList<ApplicationsState.AppEntry>();
             } else {
-                String prefixStr = ApplicationsState.normalize(prefix.toString());
-                final String spacePrefixStr = " " + prefixStr;
-                ArrayList<ApplicationsState.AppEntry> newEntries
-                        = new ArrayList<ApplicationsState.AppEntry>();
-                for (int i = 0; i < origEntries.size(); i++) {
-                    ApplicationsState.AppEntry entry = origEntries.get(i);
-                    String nlabel = entry.getNormalizedLabel();
-                    if (nlabel.startsWith(prefixStr) || nlabel.indexOf(spacePrefixStr) != -1) {
-                        newEntries.add(entry);
-                    }
-                }
-                return newEntries;
+                return prefixIndex.search(prefix);
             }
         }
 
@@ -1108,6 +1143,11 @@ public class ManageApplications extends InstrumentedFragment
             return mEntries.get(position).id;
         }
 
+        @Override
+        public boolean hasStableIds() {
+            return true;
+        }
+
         @Override
         public boolean areAllItemsEnabled() {
             return false;
@@ -1130,7 +1170,14 @@ public class ManageApplications extends InstrumentedFragment
             convertView = holder.rootView;
 
             // Bind the data efficiently with the holder
-            ApplicationsState.AppEntry entry = mEntries.get(position);
+            bindEntry(holder, mEntries.get(position));
+            mActive.remove(convertView);
+            mActive.add(convertView);
+            convertView.setEnabled(isEnabled(position));
+            return convertView;
+        }
+
+        private void bindEntry(AppViewHolder holder, ApplicationsState.AppEntry entry) {
             synchronized (entry) {
                 holder.entry = entry;
                 if (entry.label != null) {
@@ -1150,11 +1197,8 @@ public class ManageApplications extends InstrumentedFragment
                 } else {
                     holder.disabled.setVisibility(View.GONE);
                 }
+                holder.setBound();
             }
-            mActive.remove(convertView);
-            mActive.add(convertView);
-            convertView.setEnabled(isEnabled(position));
-            return convertView;
         }
 
         private void updateSummary(AppViewHolder holder) {
@@ -1217,17 +1261,17 @@ public class ManageApplications extends InstrumentedFragment
 
         @Override
         public Object[] getSections() {
-            return mSections;
+            return mSections != null ? mSections.getSections() : EMPTY_SECTIONS;
         }
 
         @Override
         public int getPositionForSection(int sectionIndex) {
-            return mSections[sectionIndex].position;
+            return mSections.getPositionForSection(sectionIndex);
         }
 
         @Override
         public int getSectionForPosition(int position) {
-            return mPositionToSectionIndex[position];
+            return mSections.getSectionForPosition(position);
         }
     }
 
@@ -1276,21 +1320,6 @@ public class ManageApplications extends InstrumentedFragment
         }
     }
 
-    private static class SectionInfo {
-        final String label;
-        final int position;
-
-        public SectionInfo(String label, int position) {
-            this.label = label;
-            this.position = position;
-        }
-
-        @Override
-        public String toString() {
-            return label;
-        }
-    }
-
     public static final SummaryLoader.SummaryProviderFactory SUMMARY_PROVIDER_FACTORY
             = new SummaryLoader.SummaryProviderFactory() {
         @Override
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.util.ArraySet;
+import android.util.LongSparseArray;
+
+import com.android.internal.app.procstats.ProcessStats;
+
+/**
+ * Process wide cache of aggregated process stats, one {@link ProcStatsData.Snapshot} per
+ * duration.
+ *
+ * The memory screens, the app details and the dashboard summary all read the same stats, so a
+ * snapshot is served to all of them for {@link #MAX_AGE} after being loaded. Once it is older
+ * than {@link #REFRESH_AGE}, serving it also reloads it in the background for the next screen.
+ */
+final class ProcStatsCache {
+
+    static final long MAX_AGE = 30 * 1000;
+    static final long REFRESH_AGE = MAX_AGE / 2;
+
+    private static ProcStatsCache sInstance;
+
+    private final Context mContext;
+
+    // Only one snapshot is loaded at a time, concurrent requests wait for it.
+    private final Object mLoadLock = new Object();
+
+    // ----- following protected by this -----
+    private final LongSparseArray<ProcStatsData.Snapshot> mSnapshots = new LongSparseArray<>();
+    private final ArraySet<Long> mRefreshing = new ArraySet<>();
+
+    static synchronized ProcStatsCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ProcStatsCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ProcStatsCache(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * @return a snapshot of the given duration at most {@link #MAX_AGE} old, loading it if
+     * needed.
+     */
+    ProcStatsData.Snapshot getSnapshot(long duration) {
+        synchronized (this) {
+            final ProcStatsData.Snapshot snapshot = getFreshLocked(duration, MAX_AGE);
+            if (snapshot != null) {
+                if (getAge(snapshot) >= REFRESH_AGE) {
+                    refreshInBackgroundLocked(duration);
+                }
+                return snapshot;
+            }
+        }
+        return load(duration, MAX_AGE);
+    }
+
+    /**
+     * @return the cached snapshot of the given duration if it was built from the given stats,
+     * whatever its age, or null.
+     */
+    synchronized ProcStatsData.Snapshot peekSnapshot(long duration, ProcessStats stats) {
+        final ProcStatsData.Snapshot snapshot = mSnapshots.get(duration);
+        return snapshot != null && snapshot.stats == stats ? snapshot : null;
+    }
+
+    private ProcStatsData.Snapshot load(long duration, long maxAge) {
+        synchronized (mLoadLock) {
+            synchronized (this) {
+                // Someone else may have loaded it while we were waiting.
+                final ProcStatsData.Snapshot snapshot = getFreshLocked(duration, maxAge);
+                if (snapshot != null) {
+                    return snapshot;
+                }
+            }
+            final ProcStatsData.Snapshot snapshot =
+                    ProcStatsData.loadSnapshot(mContext, duration);
+            synchronized (this) {
+                mSnapshots.put(duration, snapshot);
+            }
+            return snapshot;
+        }
+    }
+
+    private void refreshInBackgroundLocked(final long duration) {
+        if (!mRefreshing.add(duration)) {
+            return;
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    load(duration, REFRESH_AGE);
+                } finally {
+                    synchronized (ProcStatsCache.this) {
+                        mRefreshing.remove(duration);
+                    }
+                }
+            }
+        });
+    }
+
+    private ProcStatsData.Snapshot getFreshLocked(long duration, long maxAge) {
+        // Drop expired snapshots, they can be large.
+        for (int i = mSnapshots.size() - 1; i >= 0; i--) {
+            if (getAge(mSnapshots.valueAt(i)) >= MAX_AGE) {
+                mSnapshots.removeAt(i);
+            }
+        }
+        final ProcStatsData.Snapshot snapshot = mSnapshots.get(duration);
+        return snapshot != null && getAge(snapshot) < maxAge ? snapshot : null;
+    }
+
+    private static long getAge(ProcStatsData.Snapshot snapshot) {
+        return SystemClock.elapsedRealtime() - snapshot.loadTime;
+    }
+}
@@ -72,6 +72,8 @@ public class ProcStatsData {
 
     private ArrayList<ProcStatsPackageEntry> pkgEntries;
 
+    private SparseArray<ProcStatsPackageEntry> mEntriesByUid;
+
     public ProcStatsData(Context context, boolean useXfer) {
         mContext = context;
         mPm = context.getPackageManager();
@@ -136,12 +138,90 @@ public class ProcStatsData {
         return pkgEntries;
     }
 
+    /**
+     * @return the first package entry with a process running as the given uid, or null.
+     */
+    public ProcStatsPackageEntry getEntryForUid(int uid) {
+        if (mEntriesByUid == null) {
+            mEntriesByUid = indexByUid(pkgEntries);
+        }
+        return mEntriesByUid.get(uid);
+    }
+
+    /**
+     * Refreshes the entries and memory info. With the default states, they come from the
+     * snapshot shared through {@link ProcStatsCache}, which is only reloaded once stale even
+     * when forceLoad is set.
+     */
     public void refreshStats(boolean forceLoad) {
-        if (mStats == null || forceLoad) {
+        final boolean defaultStates = mMemStates == ProcessStats.ALL_MEM_ADJ
+                && mStates == ProcessStats.BACKGROUND_PROC_STATES;
+        if (defaultStates) {
+            final ProcStatsCache cache = ProcStatsCache.getInstance(mContext);
+            final Snapshot snapshot = mStats == null || forceLoad
+                    ? cache.getSnapshot(mDuration) : cache.peekSnapshot(mDuration, mStats);
+            if (snapshot != null) {
+                mStats = snapshot.stats;
+                memTotalTime = snapshot.memTotalTime;
+                mMemInfo = snapshot.memInfo;
+                copyEntries(snapshot);
+                return;
+            }
+        } else if (mStats == null || forceLoad) {
             load();
         }
+        aggregate();
+    }
 
+    /**
+     * Takes copies of the entries of the given snapshot. Screens sort the entries and compute
+     * their metrics and UI data, possibly from different threads, so none of them may modify the
+     * shared ones.
+     */
+    private void copyEntries(Snapshot snapshot) {
+        final int N = snapshot.entries.size();
+        final ArrayMap<ProcStatsPackageEntry, ProcStatsPackageEntry> copies = new ArrayMap<>(N);
+        pkgEntries = new ArrayList<>(N);
+        for (int i = 0; i < N; i++) {
+            final ProcStatsPackageEntry entry = snapshot.entries.get(i);
+            final ProcStatsPackageEntry copy = new ProcStatsPackageEntry(entry);
+            pkgEntries.add(copy);
+            copies.put(entry, copy);
+        }
+        mEntriesByUid = new SparseArray<>(snapshot.entriesByUid.size());
+        for (int i = 0; i < snapshot.entriesByUid.size(); i++) {
+            mEntriesByUid.put(snapshot.entriesByUid.keyAt(i),
+                    copies.get(snapshot.entriesByUid.valueAt(i)));
+        }
+    }
+
+    static Snapshot loadSnapshot(Context context, long duration) {
+        final ProcStatsData data = new ProcStatsData(context, false);
+        data.mDuration = duration;
+        data.load();
+        data.aggregate();
+        return new Snapshot(data.mStats, data.memTotalTime, data.mMemInfo, data.pkgEntries,
+                indexByUid(data.pkgEntries));
+    }
+
+    private static SparseArray<ProcStatsPackageEntry> indexByUid(
+            List<ProcStatsPackageEntry> entries) {
+        final SparseArray<ProcStatsPackageEntry> entriesByUid = new SparseArray<>();
+        for (int i = 0; i < entries.size(); i++) {
+            final ProcStatsPackageEntry pkgEntry = entries.get(i);
+            for (int j = 0; j < pkgEntry.mEntries.size(); j++) {
+                final int uid = pkgEntry.mEntries.get(j).mUid;
+                if (entriesByUid.indexOfKey(uid) < 0) {
+                    entriesByUid.put(uid, pkgEntry);
+                }
+            }
+        }
+        return entriesByUid;
+    }
+
+    private void aggregate() {
         pkgEntries = new ArrayList<>();
+        mEntriesByUid = null;
 
         long now = SystemClock.uptimeMillis();
 
@@ -358,6 +438,30 @@ public class ProcStatsData {
         }
     }
 
+    /**
+     * Process stats over one duration with the default states, and their aggregation. Not
+     * modified once built, so that it can be shared by all screens, which work on copies of its
+     * entries.
+     */
+    static final class Snapshot {
+        final long loadTime = SystemClock.elapsedRealtime();
+        final ProcessStats stats;
+        final long memTotalTime;
+        final MemInfo memInfo;
+        final List<ProcStatsPackageEntry> entries;
+        final SparseArray<ProcStatsPackageEntry> entriesByUid;
+
+        Snapshot(ProcessStats stats, long memTotalTime, MemInfo memInfo,
+                List<ProcStatsPackageEntry> entries,
+                SparseArray<ProcStatsPackageEntry> entriesByUid) {
+            this.stats = stats;
+            this.memTotalTime = memTotalTime;
+            this.memInfo = memInfo;
+            this.entries = entries;
+            this.entriesByUid = entriesByUid;
+        }
+    }
+
     public static class MemInfo {
         public double realUsedRam;
         public double realFreeRam;
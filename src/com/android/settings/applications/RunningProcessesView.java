@@ -99,6 +99,11 @@ public class RunningProcessesView extends FrameLayout
         ViewHolder mHolder;
         long mFirstRunTime;
         boolean mSetBackground;
+        // Uptime currently displayed, in seconds, or one of the UPTIME_* states.
+        long mCurUptime = UPTIME_UNSET;
+
+        private static final long UPTIME_UNSET = -2;
+        private static final long UPTIME_NOT_RUNNING = -1;
 
         void updateTime(Context context, StringBuilder builder) {
             TextView uptimeView = null;
@@ -119,6 +124,7 @@ public class RunningProcessesView extends FrameLayout
                     // This is a background process; no uptime.
                     if (!mSetBackground) {
                         mSetBackground = true;
+                        mCurUptime = UPTIME_UNSET;
                         mHolder.uptime.setText("");
                     }
                 } else if (mItem instanceof RunningState.MergedItem) {
@@ -133,9 +139,14 @@ public class RunningProcessesView extends FrameLayout
                 if (mFirstRunTime >= 0) {
                     //Log.i("foo", "Time for " + mItem.mDisplayLabel
                     //        + ": " + (SystemClock.uptimeMillis()-mFirstRunTime));
-                    uptimeView.setText(DateUtils.formatElapsedTime(builder,
-                            (SystemClock.elapsedRealtime()-mFirstRunTime)/1000));
-                } else {
+                    final long uptime = (SystemClock.elapsedRealtime()-mFirstRunTime)/1000;
+                    // Only touch the view when the displayed text actually changes.
+                    if (uptime != mCurUptime) {
+                        mCurUptime = uptime;
+                        uptimeView.setText(DateUtils.formatElapsedTime(builder, uptime));
+                    }
+                } else if (mCurUptime != UPTIME_NOT_RUNNING) {
+                    mCurUptime = UPTIME_NOT_RUNNING;
                     boolean isService = false;
                     if (mItem instanceof RunningState.MergedItem) {
                         isService = ((RunningState.MergedItem)mItem).mServices.size() > 0;
@@ -329,6 +340,14 @@ public class RunningProcessesView extends FrameLayout
             mDataAvail = null;
         }
 
+        refreshHeader();
+    }
+
+    /**
+     * Updates the RAM header. Free and cached memory are read from the system each time, as
+     * they change without RunningState seeing any change.
+     */
+    private void refreshHeader() {
         mMemInfoReader.readMemInfo();
 
         /*
@@ -501,6 +520,10 @@ public class RunningProcessesView extends FrameLayout
     public void onRefreshUi(int what) {
         switch (what) {
             case REFRESH_TIME:
+                // The header keeps following the free memory while the contents update backs off
+                if (mState.hasData()) {
+                    refreshHeader();
+                }
                 updateTimes();
                 break;
             case REFRESH_DATA:
@@ -38,9 +38,11 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.text.format.Formatter;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.util.SparseArray;
 
@@ -51,8 +53,6 @@ import com.android.settingslib.applications.InterestingConfigChanges;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -74,6 +74,15 @@ public class RunningState {
     static final long TIME_UPDATE_DELAY = 1000;
     static final long CONTENTS_UPDATE_DELAY = 2000;
 
+    // In adaptive refresh mode, number of updates without any visible change after which
+    // polling starts backing off, and the longest delay it backs off to.
+    static final int UNCHANGED_UPDATES_BEFORE_BACKOFF = 3;
+    static final long MAX_CONTENTS_UPDATE_DELAY = 16000;
+
+    // In adaptive refresh mode, PSS of processes whose pid did not change is only sampled
+    // this often.
+    static final long PSS_SAMPLE_INTERVAL = 10000;
+
     static final int MAX_SERVICES = 100;
 
     final Context mApplicationContext;
@@ -91,8 +100,8 @@ public class RunningState {
     // by uid and name.  Note that this mapping does not change even across
     // service restarts, and during a restart there will still be a process
     // entry.
-    final SparseArray<HashMap<String, ProcessItem>> mServiceProcessesByName
-            = new SparseArray<HashMap<String, ProcessItem>>();
+    final SparseArray<ArrayMap<String, ProcessItem>> mServiceProcessesByName
+            = new SparseArray<ArrayMap<String, ProcessItem>>();
     
     // Processes that are hosting a service we are interested in, organized
     // by their pid.  These disappear and re-appear as services are restarted.
@@ -126,20 +135,34 @@ public class RunningState {
     final SparseArray<MergedItem> mOtherUserBackgroundItems = new SparseArray<MergedItem>();
 
     static class AppProcessInfo {
-        final ActivityManager.RunningAppProcessInfo info;
+        ActivityManager.RunningAppProcessInfo info;
         boolean hasServices;
         boolean hasForegroundServices;
 
-        AppProcessInfo(ActivityManager.RunningAppProcessInfo _info) {
+        void set(ActivityManager.RunningAppProcessInfo _info) {
             info = _info;
+            hasServices = false;
+            hasForegroundServices = false;
         }
     }
 
-    // Temporary structure used when updating above information.
+    // Temporary structures used when updating above information, reused
+    // across updates so that polling does not churn the heap.
     final SparseArray<AppProcessInfo> mTmpAppProcesses = new SparseArray<AppProcessInfo>();
+    final ArrayList<AppProcessInfo> mAppProcessInfoPool = new ArrayList<AppProcessInfo>();
+    final ArrayList<ProcessItem> mTmpSortedProcesses = new ArrayList<ProcessItem>();
+    int[] mTmpPssPids = new int[0];
+    int[] mTmpPssItems = new int[0];
 
     int mSequence = 0;
 
+    // Whether polling backs off while nothing changes and PSS is sampled incrementally.
+    volatile boolean mAdaptiveRefresh = true;
+
+    // ----- following only used by the background thread -----
+    int mUnchangedUpdates;
+    long mLastPssSampleTime;
+
     final Comparator<RunningState.MergedItem> mBackgroundComparator
         = new Comparator<RunningState.MergedItem>() {
             @Override
@@ -239,12 +262,28 @@ public class RunningState {
                             return;
                         }
                     }
-                    Message cmd = mHandler.obtainMessage(MSG_REFRESH_UI);
-                    cmd.arg1 = update(mApplicationContext, mAm) ? 1 : 0;
-                    mHandler.sendMessage(cmd);
+                    if (msg.arg1 != 0) {
+                        // Explicit request, poll at full rate again.
+                        mUnchangedUpdates = 0;
+                    }
+                    final boolean adaptive = mAdaptiveRefresh;
+                    int refresh = update(mApplicationContext, mAm);
+                    if (refresh == OnRefreshUiListener.REFRESH_TIME) {
+                        mUnchangedUpdates++;
+                        if (!adaptive) {
+                            refresh = OnRefreshUiListener.REFRESH_DATA;
+                        }
+                    } else {
+                        mUnchangedUpdates = 0;
+                    }
+                    if (refresh != OnRefreshUiListener.REFRESH_TIME) {
+                        Message cmd = mHandler.obtainMessage(MSG_REFRESH_UI);
+                        cmd.arg1 = refresh;
+                        mHandler.sendMessage(cmd);
+                    }
                     removeMessages(MSG_UPDATE_CONTENTS);
                     msg = obtainMessage(MSG_UPDATE_CONTENTS);
-                    sendMessageDelayed(msg, CONTENTS_UPDATE_DELAY);
+                    sendMessageDelayed(msg, getContentsUpdateDelay(adaptive));
                     break;
             }
         }
@@ -252,6 +291,18 @@ public class RunningState {
 
     final BackgroundHandler mBackgroundHandler;
 
+    private long getContentsUpdateDelay(boolean adaptive) {
+        long delay = CONTENTS_UPDATE_DELAY;
+        if (adaptive) {
+            // Double the delay for each further update without changes.
+            for (int i = UNCHANGED_UPDATES_BEFORE_BACKOFF; i <= mUnchangedUpdates
+                    && delay < MAX_CONTENTS_UPDATE_DELAY; i++) {
+                delay *= 2;
+            }
+        }
+        return Math.min(delay, MAX_CONTENTS_UPDATE_DELAY);
+    }
+
     final Handler mHandler = new Handler() {
         int mNextUpdate = OnRefreshUiListener.REFRESH_TIME;
 
@@ -259,9 +310,8 @@ public class RunningState {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_REFRESH_UI:
-                    mNextUpdate = msg.arg1 != 0
-                            ? OnRefreshUiListener.REFRESH_STRUCTURE
-                            : OnRefreshUiListener.REFRESH_DATA;
+                    // Don't lose a pending structure change to a later data change.
+                    mNextUpdate = Math.max(mNextUpdate, msg.arg1);
                     break;
                 case MSG_UPDATE_TIME:
                     synchronized (mLock) {
@@ -295,7 +345,7 @@ public class RunningState {
                     mBackgroundHandler.removeMessages(MSG_RESET_CONTENTS);
                     mBackgroundHandler.sendEmptyMessage(MSG_RESET_CONTENTS);
                     mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
-                    mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
+                    mBackgroundHandler.obtainMessage(MSG_UPDATE_CONTENTS, 1, 0).sendToTarget();
                 } else {
                     usersChanged = true;
                 }
@@ -351,6 +401,7 @@ public class RunningState {
         long mSize;
         String mSizeStr;
         String mCurSizeStr;
+        long mSizeStrKey = -1;
         boolean mNeedDivider;
         boolean mBackground;
 
@@ -359,6 +410,26 @@ public class RunningState {
             mUserId = userId;
         }
 
+        /**
+         * Formats {@link #mSize} into {@link #mSizeStr}, unless it did not cross a display
+         * boundary since the last time.
+         *
+         * @return whether the text changed.
+         */
+        boolean updateSizeStr(Context context) {
+            final long key = getSizeDisplayKey(mSize);
+            if (mSizeStr != null && key == mSizeStrKey) {
+                return false;
+            }
+            mSizeStrKey = key;
+            String sizeStr = Formatter.formatShortFileSize(context, mSize);
+            if (!sizeStr.equals(mSizeStr)) {
+                mSizeStr = sizeStr;
+                return true;
+            }
+            return false;
+        }
+
         public Drawable loadIcon(Context context, RunningState state) {
             if (mPackageInfo != null) {
                 Drawable unbadgedIcon = mPackageInfo.loadUnbadgedIcon(state.mPm);
@@ -373,6 +444,10 @@ public class RunningState {
         ActivityManager.RunningServiceInfo mRunningService;
         ServiceInfo mServiceInfo;
         boolean mShownAsStarted;
+
+        // Client the description was built for.
+        String mClientPackage;
+        int mClientLabel;
         
         MergedItem mMergedItem;
         
@@ -382,8 +457,8 @@ public class RunningState {
     }
 
     static class ProcessItem extends BaseItem {
-        final HashMap<ComponentName, ServiceItem> mServices
-                = new HashMap<ComponentName, ServiceItem>();
+        final ArrayMap<ComponentName, ServiceItem> mServices
+                = new ArrayMap<ComponentName, ServiceItem>();
         final SparseArray<ProcessItem> mDependentProcesses
                 = new SparseArray<ProcessItem>();
         
@@ -400,6 +475,11 @@ public class RunningState {
         MergedItem mMergedItem;
 
         boolean mInteresting;
+        boolean mLoggedUnknown;
+
+        // Last sampled PSS, in KB, and the pid it was sampled for.
+        long mPss;
+        int mPssPid;
 
         // Purely for sorting.
         boolean mIsSystem;
@@ -470,8 +550,7 @@ public class RunningState {
             // If still don't have anything to display, just use the
             // service info.
             if (mServices.size() > 0) {
-                ApplicationInfo ai = mServices.values().iterator().next()
-                        .mServiceInfo.applicationInfo;
+                ApplicationInfo ai = mServices.valueAt(0).mServiceInfo.applicationInfo;
                 mPackageInfo = ai;
                 mDisplayLabel = mPackageInfo.loadLabel(pm);
                 mLabel = mDisplayLabel.toString();
@@ -529,38 +608,41 @@ public class RunningState {
                     si.mShownAsStarted = false;
                     changed = true;
                 }
-                try {
-                    Resources clientr = pm.getResourcesForApplication(service.clientPackage);
-                    String label = clientr.getString(service.clientLabel);
-                    si.mDescription = context.getResources().getString(
-                            R.string.service_client_name, label);
-                } catch (PackageManager.NameNotFoundException e) {
-                    si.mDescription = null;
+                if (si.mClientLabel != service.clientLabel
+                        || !service.clientPackage.equals(si.mClientPackage)) {
+                    si.mClientPackage = service.clientPackage;
+                    si.mClientLabel = service.clientLabel;
+                    try {
+                        Resources clientr = pm.getResourcesForApplication(service.clientPackage);
+                        String label = clientr.getString(service.clientLabel);
+                        si.mDescription = context.getResources().getString(
+                                R.string.service_client_name, label);
+                    } catch (PackageManager.NameNotFoundException e) {
+                        si.mDescription = null;
+                    }
                 }
             } else {
                 if (!si.mShownAsStarted) {
                     si.mShownAsStarted = true;
                     changed = true;
+                    si.mClientPackage = null;
+                    si.mClientLabel = 0;
+                    si.mDescription = context.getResources().getString(
+                            R.string.service_started_by_app);
                 }
-                si.mDescription = context.getResources().getString(
-                        R.string.service_started_by_app);
             }
             
             return changed;
         }
         
+        /**
+         * @return whether the displayed size changed. This is not a structure change: the
+         * text of the current items is updated on the next time tick.
+         */
         boolean updateSize(Context context, long pss, int curSeq) {
             mSize = pss * 1024;
             if (mCurSeq == curSeq) {
-                String sizeStr = Formatter.formatShortFileSize(
-                        context, mSize);
-                if (!sizeStr.equals(mSizeStr)){
-                    mSizeStr = sizeStr;
-                    // We update this on the second tick where we update just
-                    // the text in the current items, so no need to say we
-                    // changed here.
-                    return false;
-                }
+                return updateSizeStr(context);
             }
             return false;
         }
@@ -694,17 +776,9 @@ public class RunningState {
                     mSize += mOtherProcesses.get(i).mSize;
                 }
             }
-            
-            String sizeStr = Formatter.formatShortFileSize(
-                    context, mSize);
-            if (!sizeStr.equals(mSizeStr)){
-                mSizeStr = sizeStr;
-                // We update this on the second tick where we update just
-                // the text in the current items, so no need to say we
-                // changed here.
-                return false;
-            }
-            return false;
+
+            // Not a structure change either, see ProcessItem.updateSize().
+            return updateSizeStr(context);
         }
 
         public Drawable loadIcon(Context context, RunningState state) {
@@ -748,6 +822,22 @@ public class RunningState {
         }
     }
     
+    /**
+     * @return a key which only changes when {@link Formatter#formatShortFileSize} may display
+     * the given size differently: it follows thousandths of a unit below 10 units, where the
+     * short format shows decimals, and half units above, where it rounds to whole units.
+     */
+    static long getSizeDisplayKey(long size) {
+        float value = size;
+        int unit = 0;
+        while (value > 900 && unit < 5) {
+            value = value / 1024;
+            unit++;
+        }
+        final long step = unit > 0 && value < 10 ? (long) (value * 1000) : (long) (value * 2);
+        return step * 8 + unit;
+    }
+
     static CharSequence makeLabel(PackageManager pm,
             String className, PackageItemInfo item) {
         if (item != null && (item.labelRes != 0
@@ -803,9 +893,9 @@ public class RunningState {
                 mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
                 mBackgroundHandler.sendEmptyMessage(MSG_RESET_CONTENTS);
             }
-            if (!mBackgroundHandler.hasMessages(MSG_UPDATE_CONTENTS)) {
-                mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
-            }
+            // Poll at full rate again, the paused UI may be stale.
+            mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
+            mBackgroundHandler.obtainMessage(MSG_UPDATE_CONTENTS, 1, 0).sendToTarget();
             mHandler.sendEmptyMessage(MSG_UPDATE_TIME);
         }
     }
@@ -813,10 +903,18 @@ public class RunningState {
     void updateNow() {
         synchronized (mLock) {
             mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
-            mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
+            mBackgroundHandler.obtainMessage(MSG_UPDATE_CONTENTS, 1, 0).sendToTarget();
         }
     }
 
+    /**
+     * Sets whether polling backs off while nothing visible changes and only samples the PSS of
+     * new processes between full samples. Enabled by default.
+     */
+    void setAdaptiveRefresh(boolean adaptive) {
+        mAdaptiveRefresh = adaptive;
+    }
+
     boolean hasData() {
         synchronized (mLock) {
             return mHaveData;
@@ -863,6 +961,13 @@ public class RunningState {
         mRunningProcesses.clear();
         mProcessItems.clear();
         mAllProcessItems.clear();
+        // Kept across resets, make sure they are formatted again for the new configuration.
+        for (int i = 0; i < mOtherUserMergedItems.size(); i++) {
+            mOtherUserMergedItems.valueAt(i).mSizeStr = null;
+        }
+        for (int i = 0; i < mOtherUserBackgroundItems.size(); i++) {
+            mOtherUserBackgroundItems.valueAt(i).mSizeStr = null;
+        }
     }
 
     private void addOtherUserItem(Context context, ArrayList<MergedItem> newMergedItems,
@@ -894,12 +999,18 @@ public class RunningState {
         userItem.mChildren.add(newItem);
     }
 
-    private boolean update(Context context, ActivityManager am) {
+    /**
+     * @return the kind of UI refresh needed: {@link OnRefreshUiListener#REFRESH_STRUCTURE} when
+     * items were added, removed or reordered, {@link OnRefreshUiListener#REFRESH_DATA} when only
+     * displayed sizes changed, and {@link OnRefreshUiListener#REFRESH_TIME} when nothing did.
+     */
+    private int update(Context context, ActivityManager am) {
         final PackageManager pm = context.getPackageManager();
 
         mSequence++;
         
         boolean changed = false;
+        boolean dataChanged = false;
 
         // Retrieve list of services, filtering out anything that definitely
         // won't be shown in the UI.
@@ -936,7 +1047,12 @@ public class RunningState {
         mTmpAppProcesses.clear();
         for (int i=0; i<NP; i++) {
             ActivityManager.RunningAppProcessInfo pi = processes.get(i);
-            mTmpAppProcesses.put(pi.pid, new AppProcessInfo(pi));
+            if (i >= mAppProcessInfoPool.size()) {
+                mAppProcessInfoPool.add(new AppProcessInfo());
+            }
+            AppProcessInfo ainfo = mAppProcessInfoPool.get(i);
+            ainfo.set(pi);
+            mTmpAppProcesses.put(pi.pid, ainfo);
         }
 
         // Initial iteration through running services to collect per-process
@@ -991,9 +1107,9 @@ public class RunningState {
                 }
             }
 
-            HashMap<String, ProcessItem> procs = mServiceProcessesByName.get(si.uid);
+            ArrayMap<String, ProcessItem> procs = mServiceProcessesByName.get(si.uid);
             if (procs == null) {
-                procs = new HashMap<String, ProcessItem>();
+                procs = new ArrayMap<String, ProcessItem>();
                 mServiceProcessesByName.put(si.uid, procs);
             }
             ProcessItem proc = procs.get(si.process);
@@ -1113,10 +1229,9 @@ public class RunningState {
         // Look for services and their primary processes that no longer exist...
         ArrayList<Integer> uidToDelete = null;
         for (int i=0; i<mServiceProcessesByName.size(); i++) {
-            HashMap<String, ProcessItem> procs = mServiceProcessesByName.valueAt(i);
-            Iterator<ProcessItem> pit = procs.values().iterator();
-            while (pit.hasNext()) {
-                ProcessItem pi = pit.next();
+            ArrayMap<String, ProcessItem> procs = mServiceProcessesByName.valueAt(i);
+            for (int j = procs.size() - 1; j >= 0; j--) {
+                ProcessItem pi = procs.valueAt(j);
                 if (pi.mCurSeq == mSequence) {
                     pi.ensureLabel(pm);
                     if (pi.mPid == 0) {
@@ -1126,7 +1241,7 @@ public class RunningState {
                     }
                 } else {
                     changed = true;
-                    pit.remove();
+                    procs.removeAt(j);
                     if (procs.size() == 0) {
                         if (uidToDelete == null) {
                             uidToDelete = new ArrayList<Integer>();
@@ -1138,12 +1253,10 @@ public class RunningState {
                     }
                     continue;
                 }
-                Iterator<ServiceItem> sit = pi.mServices.values().iterator();
-                while (sit.hasNext()) {
-                    ServiceItem si = sit.next();
-                    if (si.mCurSeq != mSequence) {
+                for (int k = pi.mServices.size() - 1; k >= 0; k--) {
+                    if (pi.mServices.valueAt(k).mCurSeq != mSequence) {
                         changed = true;
-                        sit.remove();
+                        pi.mServices.removeAt(k);
                     }
                 }
             }
@@ -1158,13 +1271,16 @@ public class RunningState {
 
         if (changed) {
             // First determine an order for the services.
-            ArrayList<ProcessItem> sortedProcesses = new ArrayList<ProcessItem>();
+            final ArrayList<ProcessItem> sortedProcesses = mTmpSortedProcesses;
             for (int i=0; i<mServiceProcessesByName.size(); i++) {
-                for (ProcessItem pi : mServiceProcessesByName.valueAt(i).values()) {
+                ArrayMap<String, ProcessItem> procs = mServiceProcessesByName.valueAt(i);
+                for (int j=0; j<procs.size(); j++) {
+                    ProcessItem pi = procs.valueAt(j);
                     pi.mIsSystem = false;
                     pi.mIsStarted = true;
                     pi.mActiveSince = Long.MAX_VALUE;
-                    for (ServiceItem si : pi.mServices.values()) {
+                    for (int k=0; k<pi.mServices.size(); k++) {
+                        ServiceItem si = pi.mServices.valueAt(k);
                         if (si.mServiceInfo != null
                                 && (si.mServiceInfo.applicationInfo.flags
                                         & ApplicationInfo.FLAG_SYSTEM) != 0) {
@@ -1204,7 +1320,8 @@ public class RunningState {
                 MergedItem mergedItem = null;
                 boolean haveAllMerged = false;
                 boolean needDivider = false;
-                for (ServiceItem si : pi.mServices.values()) {
+                for (int k=0; k<pi.mServices.size(); k++) {
+                    ServiceItem si = pi.mServices.valueAt(k);
                     si.mNeedDivider = needDivider;
                     needDivider = true;
                     newItems.add(si);
@@ -1222,7 +1339,8 @@ public class RunningState {
                         || mergedItem.mServices.size() != pi.mServices.size()) {
                     // Whoops, we need to build a new MergedItem!
                     mergedItem = new MergedItem(pi.mUserId);
-                    for (ServiceItem si : pi.mServices.values()) {
+                    for (int k=0; k<pi.mServices.size(); k++) {
+                        ServiceItem si = pi.mServices.valueAt(k);
                         mergedItem.mServices.add(si);
                         si.mMergedItem = mergedItem;
                     }
@@ -1240,6 +1358,7 @@ public class RunningState {
                     newMergedItems.add(mergedItem);
                 }
             }
+            sortedProcesses.clear();
 
             // Finally, interesting processes need to be shown and will
             // go at the top.
@@ -1281,7 +1400,9 @@ public class RunningState {
         // Count number of interesting other (non-active) processes, and
         // build a list of all processes we will retrieve memory for.
         mAllProcessItems.clear();
-        mAllProcessItems.addAll(mProcessItems);
+        for (int i=0; i<mProcessItems.size(); i++) {
+            mAllProcessItems.add(mProcessItems.get(i));
+        }
         int numBackgroundProcesses = 0;
         int numForegroundProcesses = 0;
         int numServiceProcesses = 0;
@@ -1299,7 +1420,8 @@ public class RunningState {
                         ActivityManager.RunningAppProcessInfo.IMPORTANCE_VISIBLE) {
                     numForegroundProcesses++;
                     mAllProcessItems.add(proc);
-                } else {
+                } else if (!proc.mLoggedUnknown) {
+                    proc.mLoggedUnknown = true;
                     Log.i("RunningState", "Unknown non-service process: "
                             + proc.mProcessName + " #" + proc.mPid);
                 }
@@ -1316,16 +1438,45 @@ public class RunningState {
         boolean diffUsers = false;
         try {
             final int numProc = mAllProcessItems.size();
-            int[] pids = new int[numProc];
+            // In adaptive mode, only new processes are sampled between full samples.
+            final long now = SystemClock.uptimeMillis();
+            final boolean sampleAll = !mAdaptiveRefresh
+                    || now - mLastPssSampleTime >= PSS_SAMPLE_INTERVAL;
+            if (mTmpPssItems.length < numProc) {
+                mTmpPssItems = new int[numProc];
+            }
+            final int[] sampled = mTmpPssItems;
+            int numSampled = 0;
             for (int i=0; i<numProc; i++) {
-                pids[i] = mAllProcessItems.get(i).mPid;
+                ProcessItem proc = mAllProcessItems.get(i);
+                if (sampleAll || proc.mPssPid != proc.mPid) {
+                    sampled[numSampled] = i;
+                    numSampled++;
+                }
+            }
+            if (numSampled > 0) {
+                // The pid array is sent as a whole, it must have the exact length.
+                if (mTmpPssPids.length != numSampled) {
+                    mTmpPssPids = new int[numSampled];
+                }
+                final int[] pids = mTmpPssPids;
+                for (int i=0; i<numSampled; i++) {
+                    pids[i] = mAllProcessItems.get(sampled[i]).mPid;
+                }
+                long[] pss = ActivityManagerNative.getDefault().getProcessPss(pids);
+                for (int i=0; i<numSampled; i++) {
+                    ProcessItem proc = mAllProcessItems.get(sampled[i]);
+                    proc.mPss = pss[i];
+                    proc.mPssPid = proc.mPid;
+                }
+            }
+            if (sampleAll) {
+                mLastPssSampleTime = now;
             }
-            long[] pss = ActivityManagerNative.getDefault()
-                    .getProcessPss(pids);
             int bgIndex = 0;
-            for (int i=0; i<pids.length; i++) {
+            for (int i=0; i<numProc; i++) {
                 ProcessItem proc = mAllProcessItems.get(i);
-                changed |= proc.updateSize(context, pss[i], mSequence);
+                dataChanged |= proc.updateSize(context, proc.mPss, mSequence);
                 if (proc.mCurSeq == mSequence) {
                     serviceProcessMemory += proc.mSize;
                 } else if (proc.mRunningProcessInfo.importance >=
@@ -1355,7 +1506,7 @@ public class RunningState {
                         }
                     }
                     mergedItem.update(context, true);
-                    mergedItem.updateSize(context);
+                    dataChanged |= mergedItem.updateSize(context);
                     bgIndex++;
                 } else if (proc.mRunningProcessInfo.importance <=
                         ActivityManager.RunningAppProcessInfo.IMPORTANCE_VISIBLE) {
@@ -1404,17 +1555,30 @@ public class RunningState {
                     MergedItem user = mOtherUserBackgroundItems.valueAt(i);
                     if (user.mCurSeq == mSequence) {
                         user.update(context, true);
-                        user.updateSize(context);
+                        dataChanged |= user.updateSize(context);
                     }
                 }
             }
         }
 
         for (int i=0; i<mMergedItems.size(); i++) {
-            mMergedItems.get(i).updateSize(context);
+            dataChanged |= mMergedItems.get(i).updateSize(context);
         }
         
         synchronized (mLock) {
+            // The header shows these totals, which can move without any item size string
+            // changing. Each PSS sample moves them a little, only count what can show.
+            if (mNumBackgroundProcesses != numBackgroundProcesses
+                    || mNumForegroundProcesses != numForegroundProcesses
+                    || mNumServiceProcesses != numServiceProcesses
+                    || getSizeDisplayKey(mBackgroundProcessMemory)
+                            != getSizeDisplayKey(backgroundProcessMemory)
+                    || getSizeDisplayKey(mForegroundProcessMemory)
+                            != getSizeDisplayKey(foregroundProcessMemory)
+                    || getSizeDisplayKey(mServiceProcessMemory)
+                            != getSizeDisplayKey(serviceProcessMemory)) {
+                dataChanged = true;
+            }
             mNumBackgroundProcesses = numBackgroundProcesses;
             mNumForegroundProcesses = numForegroundProcesses;
             mNumServiceProcesses = numServiceProcesses;
@@ -1434,7 +1598,10 @@ public class RunningState {
             }
         }
         
-        return changed;
+        if (changed) {
+            return OnRefreshUiListener.REFRESH_STRUCTURE;
+        }
+        return dataChanged ? OnRefreshUiListener.REFRESH_DATA : OnRefreshUiListener.REFRESH_TIME;
     }
     
     void setWatchingBackgroundItems(boolean watching) {
@@ -25,6 +25,9 @@ import android.database.Cursor;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.OperationCanceledException;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -45,7 +48,9 @@ import com.android.settings.SettingsActivity;
 import com.android.settings.Utils;
 import com.android.settings.search.Index;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 public class SearchResultsSummary extends InstrumentedFragment {
 
@@ -56,6 +61,12 @@ public class SearchResultsSummary extends InstrumentedFragment {
 
     private static final String SAVE_KEY_SHOW_RESULTS = ":settings:show_results";
 
+    // Default delay for coalescing keystrokes before running a search query
+    private static final long DEFAULT_QUERY_DEBOUNCE_MS = 150;
+
+    // Number of results handed to the adapter at once
+    private static final int RESULTS_PAGE_SIZE = 20;
+
     private SearchView mSearchView;
 
     private ListView mResultsListView;
@@ -73,24 +84,81 @@ public class SearchResultsSummary extends InstrumentedFragment {
 
     private boolean mShowResults;
 
+    private final Handler mHandler = new Handler();
+    private long mQueryDebounceMs = DEFAULT_QUERY_DEBOUNCE_MS;
+
+    private final Runnable mUpdateSearchResultsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updateSearchResults();
+        }
+    };
+
     /**
-     * A basic AsyncTask for updating the query results cursor
+     * A cancellable AsyncTask for updating the query results. Results are read in the
+     * background and handed to the adapter by pages of {@link #RESULTS_PAGE_SIZE}.
      */
-    private class UpdateSearchResultsTask extends AsyncTask<String, Void, Cursor> {
+    private class UpdateSearchResultsTask extends AsyncTask<String, List<SearchResult>, Integer> {
+        private final CancellationSignal mCancellationSignal = new CancellationSignal();
+        private boolean mFirstPage = true;
+
+        public void cancelQuery() {
+            cancel(false);
+            mCancellationSignal.cancel();
+        }
+
         @Override
-        protected Cursor doInBackground(String... params) {
-            return Index.getInstance(getActivity()).search(params[0]);
+        protected Integer doInBackground(String... params) {
+            final Cursor cursor;
+            try {
+                cursor = Index.getInstance(getActivity()).search(params[0], mCancellationSignal);
+            } catch (OperationCanceledException e) {
+                return 0;
+            }
+            int count = 0;
+            try {
+                List<SearchResult> page = new ArrayList<SearchResult>(RESULTS_PAGE_SIZE);
+                while (!isCancelled() && cursor.moveToNext()) {
+                    page.add(SearchResult.fromCursor(cursor));
+                    count++;
+                    if (page.size() == RESULTS_PAGE_SIZE) {
+                        publishProgress(page);
+                        page = new ArrayList<SearchResult>(RESULTS_PAGE_SIZE);
+                    }
+                }
+                if (!page.isEmpty() && !isCancelled()) {
+                    publishProgress(page);
+                }
+            } catch (OperationCanceledException e) {
+                // Nothing to do, the results are not going to be used
+            } finally {
+                cursor.close();
+            }
+            return count;
         }
 
         @Override
-        protected void onPostExecute(Cursor cursor) {
+        protected void onProgressUpdate(List<SearchResult>... pages) {
+            if (isCancelled() || mResultsAdapter == null) {
+                return;
+            }
+            if (mFirstPage) {
+                mFirstPage = false;
+                mResultsAdapter.setResults(pages[0]);
+                setResultsVisibility(true);
+            } else {
+                mResultsAdapter.addResults(pages[0]);
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Integer count) {
             if (!isCancelled()) {
-                MetricsLogger.action(getContext(), MetricsEvent.ACTION_SEARCH_RESULTS,
-                        cursor.getCount());
-                setResultsCursor(cursor);
-                setResultsVisibility(cursor.getCount() > 0);
-            } else if (cursor != null) {
-                cursor.close();
+                MetricsLogger.action(getContext(), MetricsEvent.ACTION_SEARCH_RESULTS, count);
+                if (count == 0) {
+                    setResults(null);
+                    setResultsVisibility(false);
+                }
             }
         }
     }
@@ -144,6 +212,8 @@ public class SearchResultsSummary extends InstrumentedFragment {
 
     @Override
     public void onDestroy() {
+        mHandler.removeCallbacks(mUpdateSearchResultsRunnable);
+
         mResultsListView = null;
         mResultsAdapter = null;
         mUpdateSearchResultsTask = null;
@@ -180,13 +250,15 @@ public class SearchResultsSummary extends InstrumentedFragment {
                     return;
                 }
 
-                final Cursor cursor = mResultsAdapter.mCursor;
-                cursor.moveToPosition(position);
+                if (position >= mResultsAdapter.getCount()) {
+                    return;
+                }
+                final SearchResult result = mResultsAdapter.mResults.get(position);
 
-                final String className = cursor.getString(Index.COLUMN_INDEX_CLASS_NAME);
-                final String screenTitle = cursor.getString(Index.COLUMN_INDEX_SCREEN_TITLE);
-                final String action = cursor.getString(Index.COLUMN_INDEX_INTENT_ACTION);
-                final String key = cursor.getString(Index.COLUMN_INDEX_KEY);
+                final String className = result.className;
+                final String screenTitle = result.screenTitle;
+                final String action = result.intentAction;
+                final String key = result.key;
 
                 final SettingsActivity sa = (SettingsActivity) getActivity();
                 sa.needToRevertToInitialFragment();
@@ -199,10 +271,8 @@ public class SearchResultsSummary extends InstrumentedFragment {
                 } else {
                     final Intent intent = new Intent(action);
 
-                    final String targetPackage = cursor.getString(
-                            Index.COLUMN_INDEX_INTENT_ACTION_TARGET_PACKAGE);
-                    final String targetClass = cursor.getString(
-                            Index.COLUMN_INDEX_INTENT_ACTION_TARGET_CLASS);
+                    final String targetPackage = result.intentTargetPackage;
+                    final String targetClass = result.intentTargetClass;
                     if (!TextUtils.isEmpty(targetPackage) && !TextUtils.isEmpty(targetClass)) {
                         final ComponentName component =
                                 new ComponentName(targetPackage, targetClass);
@@ -267,6 +337,13 @@ public class SearchResultsSummary extends InstrumentedFragment {
         mSearchView = searchView;
     }
 
+    /**
+     * Set the delay used to coalesce keystrokes before running a search query.
+     */
+    public void setQueryDebounce(long debounceMs) {
+        mQueryDebounceMs = debounceMs;
+    }
+
     private void setSuggestionsVisibility(boolean visible) {
         if (mLayoutSuggestions != null) {
             mLayoutSuggestions.setVisibility(visible ? View.VISIBLE : View.GONE);
@@ -305,7 +382,7 @@ public class SearchResultsSummary extends InstrumentedFragment {
         } else {
             mShowResults = true;
             setSuggestionsVisibility(false);
-            updateSearchResults();
+            scheduleSearchResults();
         }
 
         return true;
@@ -336,21 +413,19 @@ public class SearchResultsSummary extends InstrumentedFragment {
     }
 
     private void clearResults() {
+        mHandler.removeCallbacks(mUpdateSearchResultsRunnable);
         if (mUpdateSearchResultsTask != null) {
-            mUpdateSearchResultsTask.cancel(false);
+            mUpdateSearchResultsTask.cancelQuery();
             mUpdateSearchResultsTask = null;
         }
-        setResultsCursor(null);
+        setResults(null);
     }
 
-    private void setResultsCursor(Cursor cursor) {
+    private void setResults(List<SearchResult> results) {
         if (mResultsAdapter == null) {
             return;
         }
-        Cursor oldCursor = mResultsAdapter.swapCursor(cursor);
-        if (oldCursor != null) {
-            oldCursor.close();
-        }
+        mResultsAdapter.setResults(results);
     }
 
     private String getFilteredQueryString(CharSequence query) {
@@ -369,8 +444,9 @@ public class SearchResultsSummary extends InstrumentedFragment {
     }
 
     private void clearAllTasks() {
+        mHandler.removeCallbacks(mUpdateSearchResultsRunnable);
         if (mUpdateSearchResultsTask != null) {
-            mUpdateSearchResultsTask.cancel(false);
+            mUpdateSearchResultsTask.cancelQuery();
             mUpdateSearchResultsTask = null;
         }
         if (mUpdateSuggestionsTask != null) {
@@ -389,11 +465,24 @@ public class SearchResultsSummary extends InstrumentedFragment {
         }
     }
 
+    /**
+     * Coalesce keystrokes: the query is only run once the user stops typing for the debounce
+     * delay, and any query still in flight is canceled right away.
+     */
+    private void scheduleSearchResults() {
+        clearAllTasks();
+        if (mQueryDebounceMs <= 0) {
+            updateSearchResults();
+        } else {
+            mHandler.postDelayed(mUpdateSearchResultsRunnable, mQueryDebounceMs);
+        }
+    }
+
     private void updateSearchResults() {
         clearAllTasks();
         if (TextUtils.isEmpty(mQuery)) {
             setResultsVisibility(false);
-            setResultsCursor(null);
+            setResults(null);
         } else {
             mUpdateSearchResultsTask = new UpdateSearchResultsTask();
             mUpdateSearchResultsTask.execute(mQuery);
@@ -496,25 +585,38 @@ public class SearchResultsSummary extends InstrumentedFragment {
         public String entries;
         public int iconResId;
         public String key;
-
-        public SearchResult(Context context, String title, String summaryOn, String summaryOff,
-                            String entries, int iconResId, String key) {
-            this.context = context;
-            this.title = title;
-            this.summaryOn = summaryOn;
-            this.summaryOff = summaryOff;
-            this.entries = entries;
-            this.iconResId = iconResId;
-            this.key = key;
+        public String className;
+        public String screenTitle;
+        public String intentAction;
+        public String intentTargetPackage;
+        public String intentTargetClass;
+
+        public static SearchResult fromCursor(Cursor cursor) {
+            final SearchResult result = new SearchResult();
+            result.title = cursor.getString(Index.COLUMN_INDEX_TITLE);
+            result.summaryOn = cursor.getString(Index.COLUMN_INDEX_SUMMARY_ON);
+            result.summaryOff = cursor.getString(Index.COLUMN_INDEX_SUMMARY_OFF);
+            result.entries = cursor.getString(Index.COLUMN_INDEX_ENTRIES);
+            final String iconResStr = cursor.getString(Index.COLUMN_INDEX_ICON);
+            result.iconResId = TextUtils.isEmpty(iconResStr) ?
+                    R.drawable.empty_icon : Integer.parseInt(iconResStr);
+            result.key = cursor.getString(Index.COLUMN_INDEX_KEY);
+            result.className = cursor.getString(Index.COLUMN_INDEX_CLASS_NAME);
+            result.screenTitle = cursor.getString(Index.COLUMN_INDEX_SCREEN_TITLE);
+            result.intentAction = cursor.getString(Index.COLUMN_INDEX_INTENT_ACTION);
+            result.intentTargetPackage = cursor.getString(
+                    Index.COLUMN_INDEX_INTENT_ACTION_TARGET_PACKAGE);
+            result.intentTargetClass = cursor.getString(
+                    Index.COLUMN_INDEX_INTENT_ACTION_TARGET_CLASS);
+            return result;
         }
     }
 
     private static class SearchResultsAdapter extends BaseAdapter {
 
         private Context mContext;
-        private Cursor mCursor;
+        private final List<SearchResult> mResults = new ArrayList<SearchResult>();
         private LayoutInflater mInflater;
-        private boolean mDataValid;
         private HashMap<String, Context> mContextMap = new HashMap<String, Context>();
 
         private static final String PERCENT_RECLACE = "%s";
@@ -523,49 +625,35 @@ public class SearchResultsSummary extends InstrumentedFragment {
         public SearchResultsAdapter(Context context) {
             mContext = context;
             mInflater = (LayoutInflater) mContext.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-            mDataValid = false;
         }
 
-        public Cursor swapCursor(Cursor newCursor) {
-            if (newCursor == mCursor) {
-                return null;
-            }
-            Cursor oldCursor = mCursor;
-            mCursor = newCursor;
-            if (newCursor != null) {
-                mDataValid = true;
+        public void setResults(List<SearchResult> results) {
+            mResults.clear();
+            if (results != null) {
+                mResults.addAll(results);
                 notifyDataSetChanged();
             } else {
-                mDataValid = false;
                 notifyDataSetInvalidated();
             }
-            return oldCursor;
+        }
+
+        public void addResults(List<SearchResult> results) {
+            mResults.addAll(results);
+            notifyDataSetChanged();
         }
 
         @Override
         public int getCount() {
-            if (!mDataValid || mCursor == null || mCursor.isClosed()) return 0;
-            return mCursor.getCount();
+            return mResults.size();
         }
 
         @Override
         public Object getItem(int position) {
-            if (mDataValid && mCursor.moveToPosition(position)) {
-                final String title = mCursor.getString(Index.COLUMN_INDEX_TITLE);
-                final String summaryOn = mCursor.getString(Index.COLUMN_INDEX_SUMMARY_ON);
-                final String summaryOff = mCursor.getString(Index.COLUMN_INDEX_SUMMARY_OFF);
-                final String entries = mCursor.getString(Index.COLUMN_INDEX_ENTRIES);
-                final String iconResStr = mCursor.getString(Index.COLUMN_INDEX_ICON);
-                final String className = mCursor.getString(
-                        Index.COLUMN_INDEX_CLASS_NAME);
-                final String packageName = mCursor.getString(
-                        Index.COLUMN_INDEX_INTENT_ACTION_TARGET_PACKAGE);
-                final String key = mCursor.getString(
-                        Index.COLUMN_INDEX_KEY);
-
-                Context packageContext;
-                if (TextUtils.isEmpty(className) && !TextUtils.isEmpty(packageName)) {
-                    packageContext = mContextMap.get(packageName);
+            final SearchResult result = mResults.get(position);
+            if (result.context == null) {
+                final String packageName = result.intentTargetPackage;
+                if (TextUtils.isEmpty(result.className) && !TextUtils.isEmpty(packageName)) {
+                    Context packageContext = mContextMap.get(packageName);
                     if (packageContext == null) {
                         try {
                             packageContext = mContext.createPackageContext(packageName, 0);
@@ -575,17 +663,12 @@ public class SearchResultsSummary extends InstrumentedFragment {
                         }
                         mContextMap.put(packageName, packageContext);
                     }
+                    result.context = packageContext;
                 } else {
-                    packageContext = mContext;
+                    result.context = mContext;
                 }
-
-                final int iconResId = TextUtils.isEmpty(iconResStr) ?
-                        R.drawable.empty_icon : Integer.parseInt(iconResStr);
-
-                return new SearchResult(packageContext, title, summaryOn, summaryOff,
-                        entries, iconResId, key);
             }
-            return null;
+            return result;
         }
 
         @Override
@@ -595,14 +678,6 @@ public class SearchResultsSummary extends InstrumentedFragment {
 
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
-            if (!mDataValid && convertView == null) {
-                throw new IllegalStateException(
-                        "this should only be called when the cursor is valid");
-            }
-            if (!mCursor.moveToPosition(position)) {
-                throw new IllegalStateException("couldn't move cursor to position " + position);
-            }
-
             View view;
             TextView textTitle;
             ImageView imageView;
@@ -29,12 +29,12 @@ import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
 
+import com.android.settings.ProviderRegistry;
 import com.android.settings.SettingsActivity;
 import com.android.settingslib.drawer.DashboardCategory;
 import com.android.settingslib.drawer.SettingsDrawerActivity;
 import com.android.settingslib.drawer.Tile;
 
-import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -144,21 +144,12 @@ public class SummaryLoader {
             if (DEBUG) Log.d(TAG, "No fragment specified for " + tile.intent.getComponent());
             return null;
         }
-        try {
-            Class<?> cls = Class.forName(clsName);
-            Field field = cls.getField(SUMMARY_PROVIDER_FACTORY);
-            SummaryProviderFactory factory = (SummaryProviderFactory) field.get(null);
-            return factory.createSummaryProvider(mActivity, this);
-        } catch (ClassNotFoundException e) {
-            if (DEBUG) Log.d(TAG, "Couldn't find " + clsName, e);
-        } catch (NoSuchFieldException e) {
-            if (DEBUG) Log.d(TAG, "Couldn't find " + SUMMARY_PROVIDER_FACTORY, e);
-        } catch (ClassCastException e) {
-            if (DEBUG) Log.d(TAG, "Couldn't cast " + SUMMARY_PROVIDER_FACTORY, e);
-        } catch (IllegalAccessException e) {
-            if (DEBUG) Log.d(TAG, "Couldn't get " + SUMMARY_PROVIDER_FACTORY, e);
+        SummaryProviderFactory factory = ProviderRegistry.getSummaryProviderFactory(clsName);
+        if (factory == null) {
+            if (DEBUG) Log.d(TAG, "No " + SUMMARY_PROVIDER_FACTORY + " in " + clsName);
+            return null;
         }
-        return null;
+        return factory.createSummaryProvider(mActivity, this);
     }
 
     private Bundle getMetaData(Tile tile) {
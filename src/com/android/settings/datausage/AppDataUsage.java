@@ -48,7 +48,6 @@ import com.android.settings.applications.AppInfoBase;
 import com.android.settingslib.AppItem;
 import com.android.settingslib.Utils;
 import com.android.settingslib.net.ChartData;
-import com.android.settingslib.net.ChartDataLoader;
 import com.android.settingslib.net.UidDetailProvider;
 
 import java.util.concurrent.BlockingQueue;
@@ -241,7 +240,8 @@ public class AppDataUsage extends DataUsageBase implements Preference.OnPreferen
         }
         mPolicy = services.mPolicyEditor.getPolicy(mTemplate);
         getLoaderManager().restartLoader(LOADER_CHART_DATA,
-                ChartDataLoader.buildArgs(mTemplate, mAppItem), mChartDataCallbacks);
+                NetworkStatsCache.ChartLoader.buildArgs(mTemplate, mAppItem),
+                mChartDataCallbacks);
         updatePrefs();
     }
 
@@ -382,7 +382,7 @@ public class AppDataUsage extends DataUsageBase implements Preference.OnPreferen
             new LoaderManager.LoaderCallbacks<ChartData>() {
         @Override
         public Loader<ChartData> onCreateLoader(int id, Bundle args) {
-            return new ChartDataLoader(getActivity(), mStatsSession, args);
+            return new NetworkStatsCache.ChartLoader(getActivity(), mStatsSession, args);
         }
 
         @Override
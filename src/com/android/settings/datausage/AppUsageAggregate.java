@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.android.settings.datausage;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.net.NetworkStats;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.util.Log;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
+import com.android.settingslib.AppItem;
+import com.android.settingslib.net.UidDetailProvider;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+import static android.net.TrafficStats.UID_REMOVED;
+import static android.net.TrafficStats.UID_TETHERING;
+
+/**
+ * Data usage of a {@link NetworkStats} summary collapsed into the items of the apps list, in
+ * list order, as primitive columns. Computed in the background, the list only turns the rows it
+ * shows into {@link AppItem}s.
+ */
+final class AppUsageAggregate {
+    private static final String TAG = "DataUsage";
+
+    static final AppUsageAggregate EMPTY = new AppUsageAggregate(0);
+
+    int size;
+    int[] keys;
+    int[] categories;
+    long[] totals;
+    final BitSet restricted = new BitSet();
+    // Uids collapsed into row i are uids[uidStarts[i]] to uids[uidStarts[i + 1] - 1].
+    int[] uidStarts;
+    int[] uids;
+    long largest;
+
+    private AppUsageAggregate(int capacity) {
+        keys = new int[capacity];
+        categories = new int[capacity];
+        totals = new long[capacity];
+    }
+
+    /**
+     * Collapses the given stats per app, user and removed user, the way the list shows them.
+     */
+    static AppUsageAggregate compute(Context context, NetworkStats stats, int[] restrictedUids) {
+        final int currentUserId = ActivityManager.getCurrentUser();
+        final UserManager userManager = UserManager.get(context);
+        final BitSet profiles = new BitSet();
+        final List<UserHandle> profileHandles = userManager.getUserProfiles();
+        for (int i = 0; i < profileHandles.size(); i++) {
+            profiles.set(profileHandles.get(i).getIdentifier());
+        }
+
+        final int size = stats != null ? stats.size() : 0;
+        // Entries of managed profiles also count for their user.
+        final int maxMembers = profiles.cardinality() > 1 ? size * 2 : size;
+        final AppUsageAggregate aggregate =
+                new AppUsageAggregate(maxMembers + restrictedUids.length);
+        // Row of each uid of the stats, in stats order, including the managed user rows.
+        final int[] memberRows = new int[maxMembers];
+        final int[] memberUids = new int[maxMembers];
+        int memberCount = 0;
+        final SparseIntArray rows = new SparseIntArray();
+        // Whether other users exist, asked once per user.
+        final SparseBooleanArray existingUsers = new SparseBooleanArray();
+
+        boolean hasVideoCallUid = false;
+        int videoCallUid = 0;
+        if (context.getResources().getBoolean(
+                com.android.internal.R.bool.config_video_call_datausage_enable)) {
+            try {
+                final ApplicationInfo ai = context.getPackageManager().getApplicationInfo(
+                        "com.android.dialer", PackageManager.GET_ACTIVITIES);
+                videoCallUid = ai.uid;
+                hasVideoCallUid = true;
+            } catch (Exception e) {
+                Log.d(TAG, "get dialer getApplicationInfo failed " + e);
+            }
+        }
+
+        NetworkStats.Entry entry = null;
+        for (int i = 0; i < size; i++) {
+            entry = stats.getValues(i, entry);
+
+            // Decide how to collapse items together
+            final int uid = entry.uid;
+            final long bytes = entry.rxBytes + entry.txBytes;
+
+            final int collapseKey;
+            final int category;
+            final int userId = UserHandle.getUserId(uid);
+            if (UserHandle.isApp(uid)) {
+                if (profiles.get(userId)) {
+                    if (userId != currentUserId) {
+                        // Add to a managed user item.
+                        final int managedKey = UidDetailProvider.buildKeyForUser(userId);
+                        memberRows[memberCount] = aggregate.accumulate(rows, managedKey,
+                                AppItem.CATEGORY_USER, bytes);
+                        memberUids[memberCount] = uid;
+                        memberCount++;
+                    }
+                    // Add to app item.
+                    collapseKey = uid;
+                    category = AppItem.CATEGORY_APP;
+                } else {
+                    // If it is a removed user add it to the removed users' key
+                    final int index = existingUsers.indexOfKey(userId);
+                    final boolean exists;
+                    if (index >= 0) {
+                        exists = existingUsers.valueAt(index);
+                    } else {
+                        exists = userManager.getUserInfo(userId) != null;
+                        existingUsers.put(userId, exists);
+                    }
+                    if (!exists) {
+                        collapseKey = UID_REMOVED;
+                        category = AppItem.CATEGORY_APP;
+                    } else {
+                        // Add to other user item.
+                        collapseKey = UidDetailProvider.buildKeyForUser(userId);
+                        category = AppItem.CATEGORY_USER;
+                    }
+                }
+            } else if (uid == UID_REMOVED || uid == UID_TETHERING
+                    || (hasVideoCallUid && uid == videoCallUid)) {
+                collapseKey = uid;
+                category = AppItem.CATEGORY_APP;
+            } else {
+                collapseKey = android.os.Process.SYSTEM_UID;
+                category = AppItem.CATEGORY_APP;
+            }
+            memberRows[memberCount] = aggregate.accumulate(rows, collapseKey, category, bytes);
+            memberUids[memberCount] = uid;
+            memberCount++;
+        }
+
+        for (int uid : restrictedUids) {
+            // Only splice in restricted state for current user or managed users
+            if (!profiles.get(UserHandle.getUserId(uid))) {
+                continue;
+            }
+            int row = rows.get(uid, -1);
+            if (row < 0) {
+                // Left with the category of a new AppItem.
+                row = aggregate.add(rows, uid, 0);
+                aggregate.totals[row] = -1;
+            }
+            aggregate.restricted.set(row);
+        }
+
+        aggregate.sort(memberRows, memberUids, memberCount);
+        return aggregate;
+    }
+
+    private int add(SparseIntArray rows, int key, int category) {
+        final int row = size++;
+        keys[row] = key;
+        categories[row] = category;
+        rows.put(key, row);
+        return row;
+    }
+
+    private int accumulate(SparseIntArray rows, int key, int category, long bytes) {
+        int row = rows.get(key, -1);
+        if (row < 0) {
+            row = add(rows, key, category);
+        }
+        totals[row] += bytes;
+        largest = Math.max(largest, totals[row]);
+        return row;
+    }
+
+    /**
+     * Puts the rows in the order of {@link AppItem#compareTo}, and groups the uids per row.
+     */
+    private void sort(int[] memberRows, int[] memberUids, int memberCount) {
+        final Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                int comparison = Integer.compare(categories[lhs], categories[rhs]);
+                if (comparison == 0) {
+                    comparison = Long.compare(totals[rhs], totals[lhs]);
+                }
+                return comparison;
+            }
+        });
+
+        final int[] positions = new int[size];
+        final int[] sortedKeys = new int[size];
+        final int[] sortedCategories = new int[size];
+        final long[] sortedTotals = new long[size];
+        final BitSet sortedRestricted = new BitSet(size);
+        for (int i = 0; i < size; i++) {
+            final int row = order[i];
+            positions[row] = i;
+            sortedKeys[i] = keys[row];
+            sortedCategories[i] = categories[row];
+            sortedTotals[i] = totals[row];
+            sortedRestricted.set(i, restricted.get(row));
+        }
+        keys = sortedKeys;
+        categories = sortedCategories;
+        totals = sortedTotals;
+        restricted.clear();
+        restricted.or(sortedRestricted);
+
+        // Counting sort of the uids by the position of their row.
+        uidStarts = new int[size + 1];
+        for (int i = 0; i < memberCount; i++) {
+            uidStarts[positions[memberRows[i]] + 1]++;
+        }
+        for (int i = 0; i < size; i++) {
+            uidStarts[i + 1] += uidStarts[i];
+        }
+        uids = new int[memberCount];
+        final int[] next = Arrays.copyOf(uidStarts, size);
+        for (int i = 0; i < memberCount; i++) {
+            uids[next[positions[memberRows[i]]]++] = memberUids[i];
+        }
+    }
+
+    /**
+     * @return the list item of the given row.
+     */
+    AppItem createItem(int row) {
+        final AppItem item = new AppItem(keys[row]);
+        item.category = categories[row];
+        for (int i = uidStarts[row]; i < uidStarts[row + 1]; i++) {
+            item.addUid(uids[i]);
+        }
+        item.total = totals[row];
+        item.restricted = restricted.get(row);
+        return item;
+    }
+
+    /**
+     * @return the usage of the given row in percent of the largest one.
+     */
+    int getPercent(int row) {
+        return largest != 0 ? (int) (totals[row] * 100 / largest) : 0;
+    }
+}
@@ -14,13 +14,9 @@
 
 package com.android.settings.datausage;
 
-import android.app.ActivityManager;
 import android.app.LoaderManager.LoaderCallbacks;
 import android.content.Context;
 import android.content.Loader;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
-import android.content.pm.UserInfo;
 import android.graphics.Color;
 import android.net.ConnectivityManager;
 import android.net.INetworkStatsSession;
@@ -33,8 +29,6 @@ import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.RemoteException;
 import android.os.SystemProperties;
-import android.os.UserHandle;
-import android.os.UserManager;
 import android.support.v7.preference.Preference;
 import android.support.v7.preference.PreferenceGroup;
 import android.telephony.SubscriptionInfo;
@@ -43,7 +37,6 @@ import android.telephony.TelephonyManager;
 import android.text.format.DateUtils;
 import android.text.format.Formatter;
 import android.util.Log;
-import android.util.SparseArray;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemSelectedListener;
@@ -54,12 +47,8 @@ import com.android.settings.Utils;
 import com.android.settings.widget.ChartDataUsageView.DataUsageChartListener;
 import com.android.settingslib.AppItem;
 import com.android.settingslib.net.ChartData;
-import com.android.settingslib.net.ChartDataLoader;
-import com.android.settingslib.net.SummaryForAllUidLoader;
 import com.android.settingslib.net.UidDetailProvider;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -67,8 +56,6 @@ import java.util.Map;
 
 import static android.net.ConnectivityManager.TYPE_MOBILE;
 import static android.net.NetworkPolicyManager.POLICY_REJECT_METERED_BACKGROUND;
-import static android.net.TrafficStats.UID_REMOVED;
-import static android.net.TrafficStats.UID_TETHERING;
 import static android.telephony.TelephonyManager.SIM_STATE_READY;
 import static com.android.settings.datausage.DataUsageSummary.TEST_RADIOS;
 import static com.android.settings.datausage.DataUsageSummary.TEST_RADIOS_PROP;
@@ -122,6 +109,7 @@ public class DataUsageList extends DataUsageBase {
     private Preference mUsageSummary;
     private PreferenceGroup mApps;
     private View mHeader;
+    private AggregateTask mAggregateTask;
 
     @Override
     protected int getMetricsCategory() {
@@ -220,6 +208,7 @@ public class DataUsageList extends DataUsageBase {
                     // wait a few seconds before kicking off
                     Thread.sleep(2 * DateUtils.SECOND_IN_MILLIS);
                     services.mStatsService.forceUpdate();
+                    NetworkStatsCache.getInstance().invalidate();
                 } catch (InterruptedException e) {
                 } catch (RemoteException e) {
                 }
@@ -237,6 +226,10 @@ public class DataUsageList extends DataUsageBase {
 
     @Override
     public void onDestroy() {
+        if (mAggregateTask != null) {
+            mAggregateTask.cancel(false);
+            mAggregateTask = null;
+        }
         mUidDetailProvider.clearCache();
         mUidDetailProvider = null;
 
@@ -271,7 +264,7 @@ public class DataUsageList extends DataUsageBase {
         // TODO: consider chaining two loaders together instead of reloading
         // network history when showing app detail.
         getLoaderManager().restartLoader(LOADER_CHART_DATA,
-                ChartDataLoader.buildArgs(mTemplate, null), mChartDataCallbacks);
+                NetworkStatsCache.ChartLoader.buildArgs(mTemplate, null), mChartDataCallbacks);
 
         // detail mode can change visible menus, invalidate
         getActivity().invalidateOptionsMenu();
@@ -377,7 +370,9 @@ public class DataUsageList extends DataUsageBase {
 
         // kick off loader for detailed stats
         getLoaderManager().restartLoader(LOADER_SUMMARY,
-                SummaryForAllUidLoader.buildArgs(mTemplate, start, end), mSummaryCallbacks);
+                NetworkStatsCache.SummaryLoader.buildArgs(mTemplate, start, end),
+                mSummaryCallbacks);
+        prefetchAdjacentCycles();
 
         final long totalBytes = entry != null ? entry.rxBytes + entry.txBytes : 0;
         final String totalPhrase = Formatter.formatFileSize(context, totalBytes);
@@ -391,107 +386,102 @@ public class DataUsageList extends DataUsageBase {
     }
 
     /**
-     * Bind the given {@link NetworkStats}, or {@code null} to clear list.
+     * Loads the cycles before and after the selected one in the background, the ones most likely
+     * to be picked next.
      */
-    public void bindStats(NetworkStats stats, int[] restrictedUids) {
-        ArrayList<AppItem> items = new ArrayList<>();
-        long largest = 0;
-
-        final int currentUserId = ActivityManager.getCurrentUser();
-        UserManager userManager = UserManager.get(getContext());
-        final List<UserHandle> profiles = userManager.getUserProfiles();
-        final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
-
-        PackageManager pm = getContext().getPackageManager();
-        ApplicationInfo ai = null;
-        try{
-            ai = pm.getApplicationInfo("com.android.dialer", PackageManager.GET_ACTIVITIES);
-         } catch(Exception e) {
-           Log.d(TAG, "get dialer getApplicationInfo failed " + e);
-        }
-
-        NetworkStats.Entry entry = null;
-        final int size = stats != null ? stats.size() : 0;
-        for (int i = 0; i < size; i++) {
-            entry = stats.getValues(i, entry);
-
-            // Decide how to collapse items together
-            final int uid = entry.uid;
-
-            final int collapseKey;
-            final int category;
-            final int userId = UserHandle.getUserId(uid);
-            if (UserHandle.isApp(uid)) {
-                if (profiles.contains(new UserHandle(userId))) {
-                    if (userId != currentUserId) {
-                        // Add to a managed user item.
-                        final int managedKey = UidDetailProvider.buildKeyForUser(userId);
-                        largest = accumulate(managedKey, knownItems, entry, AppItem.CATEGORY_USER,
-                                items, largest);
-                    }
-                    // Add to app item.
-                    collapseKey = uid;
-                    category = AppItem.CATEGORY_APP;
-                } else {
-                    // If it is a removed user add it to the removed users' key
-                    final UserInfo info = userManager.getUserInfo(userId);
-                    if (info == null) {
-                        collapseKey = UID_REMOVED;
-                        category = AppItem.CATEGORY_APP;
-                    } else {
-                        // Add to other user item.
-                        collapseKey = UidDetailProvider.buildKeyForUser(userId);
-                        category = AppItem.CATEGORY_USER;
-                    }
-                }
-            } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
-                collapseKey = uid;
-                category = AppItem.CATEGORY_APP;
-            } else if ((ai != null) && (uid == ai.uid) && getContext().getResources().getBoolean(
-                    com.android.internal.R.bool.config_video_call_datausage_enable)){
-                collapseKey = uid;
-                category = AppItem.CATEGORY_APP;
-            } else {
-                collapseKey = android.os.Process.SYSTEM_UID;
-                category = AppItem.CATEGORY_APP;
+    private void prefetchAdjacentCycles() {
+        final int position = mCycleSpinner.getSelectedItemPosition();
+        if (position < 0) {
+            return;
+        }
+        final NetworkStatsCache cache = NetworkStatsCache.getInstance();
+        for (int i = position - 1; i <= position + 1; i += 2) {
+            if (i >= 0 && i < mCycleAdapter.getCount()) {
+                final CycleAdapter.CycleItem cycle = mCycleAdapter.getItem(i);
+                cache.prefetchSummary(mStatsSession, mTemplate, cycle.start, cycle.end);
             }
-            largest = accumulate(collapseKey, knownItems, entry, category, items, largest);
         }
+    }
 
-        final int restrictedUidsMax = restrictedUids.length;
-        for (int i = 0; i < restrictedUidsMax; ++i) {
-            final int uid = restrictedUids[i];
-            // Only splice in restricted state for current user or managed users
-            if (!profiles.contains(new UserHandle(UserHandle.getUserId(uid)))) {
-                continue;
-            }
+    /**
+     * Bind the given {@link NetworkStats}, or {@code null} to clear list. The stats are
+     * collapsed per app in the background.
+     */
+    public void bindStats(NetworkStats stats) {
+        if (mAggregateTask != null) {
+            mAggregateTask.cancel(false);
+            mAggregateTask = null;
+        }
+        if (stats == null) {
+            bindAggregate(AppUsageAggregate.EMPTY);
+            return;
+        }
+        mAggregateTask = new AggregateTask(getContext().getApplicationContext(), stats);
+        mAggregateTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
 
-            AppItem item = knownItems.get(uid);
-            if (item == null) {
-                item = new AppItem(uid);
-                item.total = -1;
-                items.add(item);
-                knownItems.put(item.key, item);
+    private void bindAggregate(AppUsageAggregate aggregate) {
+        // Keep the rows of the apps still listed, only their usage changes.
+        cacheRemoveAllPrefs(mApps);
+        mApps.setOrderingAsAdded(false);
+        for (int i = 0; i < aggregate.size; i++) {
+            final String key = Integer.toString(aggregate.keys[i]);
+            final AppItem item = aggregate.createItem(i);
+            final int percentTotal = aggregate.getPercent(i);
+            AppDataUsagePreference preference =
+                    (AppDataUsagePreference) getCachedPreference(key);
+            if (preference == null) {
+                preference = new AppDataUsagePreference(getContext(), item, percentTotal,
+                        mUidDetailProvider);
+                preference.setKey(key);
+                preference.setOnPreferenceClickListener(mAppClickListener);
+            } else {
+                preference.setItem(item, percentTotal);
             }
-            item.restricted = true;
+            preference.setOrder(i);
+            mApps.addPreference(preference);
         }
+        removeCachedPrefs(mApps);
+    }
 
-        Collections.sort(items);
-        mApps.removeAll();
-        for (int i = 0; i < items.size(); i++) {
-            final int percentTotal = largest != 0 ? (int) (items.get(i).total * 100 / largest) : 0;
-            AppDataUsagePreference preference = new AppDataUsagePreference(getContext(),
-                    items.get(i), percentTotal, mUidDetailProvider);
-            preference.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
-                @Override
-                public boolean onPreferenceClick(Preference preference) {
-                    AppDataUsagePreference pref = (AppDataUsagePreference) preference;
-                    AppItem item = pref.getItem();
-                    startAppDataUsage(item);
-                    return true;
-                }
-            });
-            mApps.addPreference(preference);
+    private final Preference.OnPreferenceClickListener mAppClickListener =
+            new Preference.OnPreferenceClickListener() {
+        @Override
+        public boolean onPreferenceClick(Preference preference) {
+            AppDataUsagePreference pref = (AppDataUsagePreference) preference;
+            AppItem item = pref.getItem();
+            startAppDataUsage(item);
+            return true;
+        }
+    };
+
+    /**
+     * Collapses the stats per app, user and removed user off the main thread.
+     */
+    private class AggregateTask extends AsyncTask<Void, Void, AppUsageAggregate> {
+        private final Context mContext;
+        private final NetworkStats mStats;
+
+        AggregateTask(Context context, NetworkStats stats) {
+            mContext = context;
+            mStats = stats;
+        }
+
+        @Override
+        protected AppUsageAggregate doInBackground(Void... params) {
+            final int[] restrictedUids = services.mPolicyManager.getUidsWithPolicy(
+                    POLICY_REJECT_METERED_BACKGROUND);
+            return AppUsageAggregate.compute(mContext, mStats, restrictedUids);
+        }
+
+        @Override
+        protected void onPostExecute(AppUsageAggregate aggregate) {
+            if (mAggregateTask != this || !isAdded()) {
+                return;
+            }
+            mAggregateTask = null;
+            bindAggregate(aggregate);
+            updateEmptyVisible();
         }
     }
 
@@ -502,29 +492,6 @@ public class DataUsageList extends DataUsageBase {
         startFragment(this, AppDataUsage.class.getName(), R.string.app_data_usage, 0, args);
     }
 
-    /**
-     * Accumulate data usage of a network stats entry for the item mapped by the collapse key.
-     * Creates the item if needed.
-     * @param collapseKey the collapse key used to map the item.
-     * @param knownItems collection of known (already existing) items.
-     * @param entry the network stats entry to extract data usage from.
-     * @param itemCategory the item is categorized on the list view by this category. Must be
-     */
-    private static long accumulate(int collapseKey, final SparseArray<AppItem> knownItems,
-            NetworkStats.Entry entry, int itemCategory, ArrayList<AppItem> items, long largest) {
-        final int uid = entry.uid;
-        AppItem item = knownItems.get(collapseKey);
-        if (item == null) {
-            item = new AppItem(collapseKey);
-            item.category = itemCategory;
-            items.add(item);
-            knownItems.put(item.key, item);
-        }
-        item.addUid(uid);
-        item.total += entry.rxBytes + entry.txBytes;
-        return Math.max(largest, item.total);
-    }
-
     /**
      * Test if device has a mobile data radio with SIM in ready state.
      */
@@ -612,7 +579,7 @@ public class DataUsageList extends DataUsageBase {
             ChartData>() {
         @Override
         public Loader<ChartData> onCreateLoader(int id, Bundle args) {
-            return new ChartDataLoader(getActivity(), mStatsSession, args);
+            return new NetworkStatsCache.ChartLoader(getActivity(), mStatsSession, args);
         }
 
         @Override
@@ -646,37 +613,34 @@ public class DataUsageList extends DataUsageBase {
             NetworkStats>() {
         @Override
         public Loader<NetworkStats> onCreateLoader(int id, Bundle args) {
-            return new SummaryForAllUidLoader(getActivity(), mStatsSession, args);
+            return new NetworkStatsCache.SummaryLoader(getActivity(), mStatsSession, args);
         }
 
         @Override
         public void onLoadFinished(Loader<NetworkStats> loader, NetworkStats data) {
-            final int[] restrictedUids = services.mPolicyManager.getUidsWithPolicy(
-                    POLICY_REJECT_METERED_BACKGROUND);
-            bindStats(data, restrictedUids);
-            updateEmptyVisible();
+            bindStats(data);
         }
 
         @Override
         public void onLoaderReset(Loader<NetworkStats> loader) {
-            bindStats(null, new int[0]);
+            bindStats(null);
             updateEmptyVisible();
         }
+    };
 
-        private void updateEmptyVisible() {
-            if ((mApps.getPreferenceCount() != 0) !=
-                    (getPreferenceScreen().getPreferenceCount() != 0)) {
-                // We still show chart if mShowDataUsage is enabled, then we can adjust left and
-                // right sweep
-                if (mApps.getPreferenceCount() != 0 || mShowDataUsage) {
-                    getPreferenceScreen().addPreference(mUsageAmount);
-                    getPreferenceScreen().addPreference(mApps);
-                } else {
-                    getPreferenceScreen().removeAll();
-                }
+    private void updateEmptyVisible() {
+        if ((mApps.getPreferenceCount() != 0) !=
+                (getPreferenceScreen().getPreferenceCount() != 0)) {
+            // We still show chart if mShowDataUsage is enabled, then we can adjust left and
+            // right sweep
+            if (mApps.getPreferenceCount() != 0 || mShowDataUsage) {
+                getPreferenceScreen().addPreference(mUsageAmount);
+                getPreferenceScreen().addPreference(mApps);
+            } else {
+                getPreferenceScreen().removeAll();
             }
         }
-    };
+    }
 
     private DataUsageChartListener mChartListener = new DataUsageChartListener() {
         @Override
@@ -708,12 +672,14 @@ public class DataUsageList extends DataUsageBase {
     private void setPolicyWarningBytes(long warningBytes) {
         if (LOGD) Log.d(TAG, "setPolicyWarningBytes()");
         services.mPolicyEditor.setPolicyWarningBytes(mTemplate, warningBytes);
+        NetworkStatsCache.getInstance().invalidate();
         updatePolicy(false);
     }
 
     private void setPolicyLimitBytes(long limitBytes) {
         if (LOGD) Log.d(TAG, "setPolicyLimitBytes()");
         services.mPolicyEditor.setPolicyLimitBytes(mTemplate, limitBytes);
+        NetworkStatsCache.getInstance().invalidate();
         updatePolicy(false);
     }
 }
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.android.settings.datausage;
+
+import android.content.Context;
+import android.net.INetworkStatsSession;
+import android.net.NetworkStats;
+import android.net.NetworkTemplate;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+import android.util.ArraySet;
+import android.util.Log;
+import android.util.LruCache;
+import android.util.SparseBooleanArray;
+import com.android.settingslib.AppItem;
+import com.android.settingslib.net.ChartData;
+import com.android.settingslib.net.ChartDataLoader;
+import com.android.settingslib.net.SummaryForAllUidLoader;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+import static android.net.NetworkStats.UID_ALL;
+
+/**
+ * Process wide cache of the stats read by the data usage screens, keyed by template, range and
+ * uids.
+ *
+ * Switching back to a cycle or coming back to a screen is then served from memory. Entries are
+ * dropped after {@link #MAX_AGE}, and all at once when the stats are polled or the policy
+ * changes.
+ */
+final class NetworkStatsCache {
+    private static final String TAG = "NetworkStatsCache";
+
+    private static final String KEY_TEMPLATE = "template";
+    private static final String KEY_APP = "app";
+    private static final String KEY_START = "start";
+    private static final String KEY_END = "end";
+
+    static final long MAX_AGE = 2 * DateUtils.MINUTE_IN_MILLIS;
+
+    // A few cycles of the list and the charts of the apps around them.
+    private static final int MAX_ENTRIES = 16;
+
+    private static NetworkStatsCache sInstance;
+
+    private final LruCache<Key, Entry> mEntries = new LruCache<>(MAX_ENTRIES);
+
+    // ----- following protected by this -----
+    // Bumped by invalidate(), so that loads started before are not stored.
+    private int mGeneration;
+    private final ArraySet<Key> mPrefetching = new ArraySet<>();
+
+    static synchronized NetworkStatsCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new NetworkStatsCache();
+        }
+        return sInstance;
+    }
+
+    private static final class Key {
+        final NetworkTemplate template;
+        final long start;
+        final long end;
+        final int uid;
+        // The uids summed up for the item, the same item key can collapse different ones.
+        final int[] uids;
+
+        Key(NetworkTemplate template, long start, long end, int uid) {
+            this(template, start, end, uid, null);
+        }
+
+        Key(NetworkTemplate template, long start, long end, int uid, int[] uids) {
+            this.template = template;
+            this.start = start;
+            this.end = end;
+            this.uid = uid;
+            this.uids = uids;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return start == other.start && end == other.end && uid == other.uid
+                    && Arrays.equals(uids, other.uids)
+                    && Objects.equals(template, other.template);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(template, start, end, uid) * 31 + Arrays.hashCode(uids);
+        }
+    }
+
+    private static final class Entry {
+        final Object value;
+        final long loadTime;
+
+        Entry(Object value) {
+            this.value = value;
+            loadTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private Object get(Key key) {
+        final Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() - entry.loadTime >= MAX_AGE) {
+            mEntries.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    private synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    private synchronized void put(Key key, Object value, int generation) {
+        if (value != null && generation == mGeneration) {
+            mEntries.put(key, new Entry(value));
+        }
+    }
+
+    /**
+     * Drops everything, for when the stats or the policy changed.
+     */
+    synchronized void invalidate() {
+        mGeneration++;
+        mEntries.evictAll();
+    }
+
+    /**
+     * Loads the summary of all uids for the given range in the background, unless it is cached
+     * already, so that switching to that range later is instant.
+     */
+    synchronized void prefetchSummary(final INetworkStatsSession session,
+            final NetworkTemplate template, final long start, final long end) {
+        final Key key = new Key(template, start, end, UID_ALL);
+        if (get(key) != null || !mPrefetching.add(key)) {
+            return;
+        }
+        final int generation = mGeneration;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    put(key, session.getSummaryForAllUid(template, start, end, false),
+                            generation);
+                } catch (RemoteException | RuntimeException e) {
+                    // The screen may have closed its session since.
+                    Log.w(TAG, "Failed to prefetch summary", e);
+                } finally {
+                    synchronized (NetworkStatsCache.this) {
+                        mPrefetching.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * {@link SummaryForAllUidLoader} going through the cache.
+     */
+    static class SummaryLoader extends SummaryForAllUidLoader {
+        private final Key mKey;
+
+        static Bundle buildArgs(NetworkTemplate template, long start, long end) {
+            final Bundle args = new Bundle();
+            args.putParcelable(KEY_TEMPLATE, template);
+            args.putLong(KEY_START, start);
+            args.putLong(KEY_END, end);
+            return args;
+        }
+
+        SummaryLoader(Context context, INetworkStatsSession session, Bundle args) {
+            this(context, session, (NetworkTemplate) args.getParcelable(KEY_TEMPLATE),
+                    args.getLong(KEY_START), args.getLong(KEY_END));
+        }
+
+        private SummaryLoader(Context context, INetworkStatsSession session,
+                NetworkTemplate template, long start, long end) {
+            super(context, session, SummaryForAllUidLoader.buildArgs(template, start, end));
+            mKey = new Key(template, start, end, UID_ALL);
+        }
+
+        @Override
+        public NetworkStats loadInBackground() {
+            final NetworkStatsCache cache = getInstance();
+            NetworkStats stats = (NetworkStats) cache.get(mKey);
+            if (stats == null) {
+                final int generation = cache.getGeneration();
+                stats = super.loadInBackground();
+                cache.put(mKey, stats, generation);
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * {@link ChartDataLoader} going through the cache. The chart covers the whole history of the
+     * template, for the given app if any.
+     */
+    static class ChartLoader extends ChartDataLoader {
+        private final Key mKey;
+
+        static Bundle buildArgs(NetworkTemplate template, AppItem app) {
+            final Bundle args = new Bundle();
+            args.putParcelable(KEY_TEMPLATE, template);
+            args.putParcelable(KEY_APP, app);
+            return args;
+        }
+
+        ChartLoader(Context context, INetworkStatsSession session, Bundle args) {
+            this(context, session, (NetworkTemplate) args.getParcelable(KEY_TEMPLATE),
+                    (AppItem) args.getParcelable(KEY_APP));
+        }
+
+        private ChartLoader(Context context, INetworkStatsSession session,
+                NetworkTemplate template, AppItem app) {
+            super(context, session, ChartDataLoader.buildArgs(template, app));
+            mKey = app != null ? new Key(template, 0, 0, app.key, getUids(app.uids))
+                    : new Key(template, 0, 0, UID_ALL);
+        }
+
+        private static int[] getUids(SparseBooleanArray uids) {
+            final int[] result = new int[uids.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = uids.keyAt(i);
+            }
+            return result;
+        }
+
+        @Override
+        public ChartData loadInBackground() {
+            final NetworkStatsCache cache = getInstance();
+            ChartData data = (ChartData) cache.get(mKey);
+            if (data == null) {
+                final int generation = cache.getGeneration();
+                data = super.loadInBackground();
+                cache.put(mKey, data, generation);
+            }
+            return data;
+        }
+    }
+}
@@ -23,57 +23,123 @@ import android.content.ServiceConnection;
 import android.net.TrafficStats;
 import android.os.AsyncTask;
 import android.os.IBinder;
+import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.storage.StorageManager;
 import android.os.storage.VolumeInfo;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
 import android.telecom.Log;
 import android.text.format.DateUtils;
 import android.text.format.Formatter;
 
 import com.android.internal.app.IMediaContainerService;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.android.settings.deviceinfo.StorageSettings.TAG;
 
-public abstract class MigrateEstimateTask extends AsyncTask<Void, Void, Long> implements
+/**
+ * Estimates the size of the current primary shared storage and how long moving it to a target
+ * volume takes. The size is measured by walking the tree in parallel, reporting partial totals
+ * as they accumulate; the speed is measured by a short write to the target.
+ */
+public abstract class MigrateEstimateTask extends AsyncTask<Void, Long, Long> implements
         ServiceConnection {
     private static final String EXTRA_SIZE_BYTES = "size_bytes";
+    private static final String EXTRA_SPEED_BPS = "speed_bps";
 
     private static final ComponentName DEFAULT_CONTAINER_COMPONENT = new ComponentName(
             "com.android.defcontainer", "com.android.defcontainer.DefaultContainerService");
 
     /**
-     * Assume roughly a Class 10 card.
+     * Assume roughly a Class 10 card when the target can't be measured.
      */
     private static final long SPEED_ESTIMATE_BPS = 10 * TrafficStats.MB_IN_BYTES;
 
+    /**
+     * Bytes written to the target to measure its speed, enough to get past the caches of the
+     * card without keeping the user waiting.
+     */
+    private static final long PROBE_BYTES = 4 * TrafficStats.MB_IN_BYTES;
+    private static final String PROBE_FILE_NAME = ".migrate_speed_probe";
+
+    private static final long PROGRESS_INTERVAL_MILLIS = 250;
+
+    // Walking is bound by storage latency rather than CPU, a few threads are enough.
+    private static final int PARALLELISM =
+            Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    private static final ForkJoinPool.ForkJoinWorkerThreadFactory WORKER_FACTORY =
+            new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+        @Override
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            return new ForkJoinWorkerThread(pool) {
+                @Override
+                protected void onStart() {
+                    super.onStart();
+                    setName("MigrateEstimate #" + getPoolIndex());
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                }
+            };
+        }
+    };
+
     private final Context mContext;
     private final StorageManager mStorage;
 
     private final CountDownLatch mConnected = new CountDownLatch(1);
     private IMediaContainerService mService;
 
+    private VolumeInfo mTarget;
+
     private long mSizeBytes = -1;
+    private volatile long mSpeedBps = -1;
 
     public MigrateEstimateTask(Context context) {
         mContext = context;
         mStorage = context.getSystemService(StorageManager.class);
     }
 
+    /**
+     * Sets the volume the storage would move to, to measure its speed.
+     */
+    public void setTarget(VolumeInfo target) {
+        mTarget = target;
+    }
+
     public void copyFrom(Intent intent) {
         mSizeBytes = intent.getLongExtra(EXTRA_SIZE_BYTES, -1);
+        mSpeedBps = intent.getLongExtra(EXTRA_SPEED_BPS, -1);
     }
 
     public void copyTo(Intent intent) {
         intent.putExtra(EXTRA_SIZE_BYTES, mSizeBytes);
+        intent.putExtra(EXTRA_SPEED_BPS, mSpeedBps);
     }
 
     @Override
     protected Long doInBackground(Void... params) {
         if (mSizeBytes != -1) {
+            if (mSpeedBps <= 0) {
+                mSpeedBps = measureSpeed(mTarget);
+            }
             return mSizeBytes;
         }
 
@@ -85,9 +151,47 @@ public abstract class MigrateEstimateTask extends AsyncTask<Void, Void, Long> im
             return -1L;
         }
 
-        final String path = emulatedVol.getPath().getAbsolutePath();
+        final File path = emulatedVol.getPath();
         Log.d(TAG, "Estimating for current path " + path);
 
+        if (path.list() == null) {
+            Log.w(TAG, "Can't read " + path + ", asking container service");
+            if (mSpeedBps <= 0) {
+                mSpeedBps = measureSpeed(mTarget);
+            }
+            return calculateDirectorySize(path.getAbsolutePath());
+        }
+
+        final AtomicLong total = new AtomicLong();
+        final ForkJoinPool pool = new ForkJoinPool(PARALLELISM, WORKER_FACTORY, null, false);
+        try {
+            final ForkJoinTask<Void> walk = pool.submit(new SizeTask(path, total));
+
+            // Measure the target while the source is being walked.
+            if (mSpeedBps <= 0) {
+                mSpeedBps = measureSpeed(mTarget);
+            }
+
+            while (true) {
+                try {
+                    walk.get(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                    return total.get();
+                } catch (TimeoutException e) {
+                    if (isCancelled()) {
+                        return -1L;
+                    }
+                    publishProgress(total.get());
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            Log.w(TAG, "Failed to measure " + path);
+            return -1L;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private long calculateDirectorySize(String path) {
         final Intent intent = new Intent().setComponent(DEFAULT_CONTAINER_COMPONENT);
         mContext.bindServiceAsUser(intent, this, Context.BIND_AUTO_CREATE, UserHandle.SYSTEM);
 
@@ -104,15 +208,98 @@ public abstract class MigrateEstimateTask extends AsyncTask<Void, Void, Long> im
         return -1L;
     }
 
+    /**
+     * Adds up the space used by a directory and everything under it, forking a task per
+     * subdirectory. Symbolic links are counted but not followed.
+     */
+    private class SizeTask extends RecursiveAction {
+        private final File mDir;
+        private final AtomicLong mTotal;
+
+        SizeTask(File dir, AtomicLong total) {
+            mDir = dir;
+            mTotal = total;
+        }
+
+        @Override
+        protected void compute() {
+            final String[] names = mDir.list();
+            if (names == null || MigrateEstimateTask.this.isCancelled()) {
+                return;
+            }
+            final ArrayList<SizeTask> subdirs = new ArrayList<>();
+            long size = 0;
+            for (String name : names) {
+                final File file = new File(mDir, name);
+                final StructStat stat;
+                try {
+                    stat = Os.lstat(file.getPath());
+                } catch (ErrnoException e) {
+                    continue;
+                }
+                size += stat.st_blocks * 512;
+                if (OsConstants.S_ISDIR(stat.st_mode)) {
+                    subdirs.add(new SizeTask(file, mTotal));
+                }
+            }
+            mTotal.addAndGet(size);
+            invokeAll(subdirs);
+        }
+    }
+
+    /**
+     * @return the speed at which the given volume takes a short synced write, or
+     * {@link #SPEED_ESTIMATE_BPS} if it can't be measured.
+     */
+    private static long measureSpeed(VolumeInfo target) {
+        final File dir = target != null ? target.getPath() : null;
+        if (dir == null) {
+            return SPEED_ESTIMATE_BPS;
+        }
+        final File probe = new File(dir, PROBE_FILE_NAME);
+        final byte[] buffer = new byte[64 * 1024];
+        try (FileOutputStream out = new FileOutputStream(probe)) {
+            final long start = SystemClock.elapsedRealtime();
+            for (long written = 0; written < PROBE_BYTES; written += buffer.length) {
+                out.write(buffer);
+            }
+            out.getFD().sync();
+            final long elapsed = SystemClock.elapsedRealtime() - start;
+            Log.d(TAG, "Wrote " + PROBE_BYTES + " bytes to " + dir + " in " + elapsed + "ms");
+            if (elapsed > 0) {
+                return PROBE_BYTES * DateUtils.SECOND_IN_MILLIS / elapsed;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to measure speed of " + dir);
+        } finally {
+            probe.delete();
+        }
+        return SPEED_ESTIMATE_BPS;
+    }
+
+    @Override
+    protected void onProgressUpdate(Long... values) {
+        onProgressUpdate(Formatter.formatFileSize(mContext, values[0]), getTime(values[0]));
+    }
+
     @Override
     protected void onPostExecute(Long result) {
         mSizeBytes = result;
-        long timeMillis = (mSizeBytes * DateUtils.SECOND_IN_MILLIS) / SPEED_ESTIMATE_BPS;
+        final String size = Formatter.formatFileSize(mContext, mSizeBytes);
+        onPostExecute(size, getTime(mSizeBytes));
+    }
+
+    private String getTime(long sizeBytes) {
+        final long speedBps = mSpeedBps > 0 ? mSpeedBps : SPEED_ESTIMATE_BPS;
+        long timeMillis = (sizeBytes * DateUtils.SECOND_IN_MILLIS) / speedBps;
         timeMillis = Math.max(timeMillis, DateUtils.SECOND_IN_MILLIS);
+        return DateUtils.formatDuration(timeMillis).toString();
+    }
 
-        final String size = Formatter.formatFileSize(mContext, mSizeBytes);
-        final String time = DateUtils.formatDuration(timeMillis).toString();
-        onPostExecute(size, time);
+    /**
+     * Called with the estimate so far while the storage is being measured.
+     */
+    public void onProgressUpdate(String size, String time) {
     }
 
     public abstract void onPostExecute(String size, String time);
@@ -28,6 +28,7 @@ import android.content.pm.IPackageDataObserver;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.UserInfo;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.UserHandle;
@@ -60,6 +61,7 @@ import com.android.settings.SettingsPreferenceFragment;
 import com.android.settings.Utils;
 import com.android.settings.applications.ManageApplications;
 import com.android.settings.deletionhelper.AutomaticStorageManagerSettings;
+import com.android.settings.deviceinfo.StorageMeasurementCache.Snapshot;
 import com.android.settings.deviceinfo.StorageSettings.MountTask;
 import com.android.settingslib.deviceinfo.StorageMeasurement;
 import com.android.settingslib.deviceinfo.StorageMeasurement.MeasurementDetails;
@@ -123,6 +125,10 @@ public class PrivateVolumeSettings extends SettingsPreferenceFragment {
     private long mSystemSize;
 
     private StorageMeasurement mMeasure;
+    private StorageMeasurementCache mMeasureCache;
+    private LoadSnapshotTask mLoadSnapshotTask;
+    // Measure again even if the last snapshot still looks fine.
+    private boolean mForceMeasure;
 
     private UserInfo mCurrentUser;
 
@@ -179,6 +185,7 @@ public class PrivateVolumeSettings extends SettingsPreferenceFragment {
 
         mMeasure = new StorageMeasurement(context, mVolume, mSharedVolume);
         mMeasure.setReceiver(mReceiver);
+        mMeasureCache = StorageMeasurementCache.getInstance(context);
 
         if (!isVolumeValid()) {
             getActivity().finish();
@@ -274,10 +281,44 @@ public class PrivateVolumeSettings extends SettingsPreferenceFragment {
                 Formatter.formatFileSize(context, mTotalSize)));
         mSummary.setPercent((int) ((usedBytes * 100) / mTotalSize));
 
-        mMeasure.forceMeasure();
+        // Show the last measurement right away, and only measure again when it is outdated.
+        if (mLoadSnapshotTask != null) {
+            mLoadSnapshotTask.cancel(false);
+        }
+        mLoadSnapshotTask = new LoadSnapshotTask(mForceMeasure);
+        mLoadSnapshotTask.execute();
+        mForceMeasure = false;
         mNeedsUpdate = false;
     }
 
+    private class LoadSnapshotTask extends AsyncTask<Void, Void, Snapshot> {
+        private final VolumeInfo mTaskVolume = mVolume;
+        private final VolumeInfo mTaskSharedVolume = mSharedVolume;
+        private final boolean mForce;
+        private boolean mStale;
+
+        LoadSnapshotTask(boolean force) {
+            mForce = force;
+        }
+
+        @Override
+        protected Snapshot doInBackground(Void... params) {
+            final Snapshot snapshot = mMeasureCache.load(mTaskVolume);
+            mStale = mForce || mMeasureCache.isStale(snapshot, mTaskVolume, mTaskSharedVolume);
+            return snapshot;
+        }
+
+        @Override
+        protected void onPostExecute(Snapshot snapshot) {
+            if (snapshot != null) {
+                updateDetails(snapshot.details);
+            }
+            if (mStale) {
+                mMeasure.forceMeasure();
+            }
+        }
+    }
+
     private void addPreference(PreferenceGroup group, Preference pref) {
         pref.setOrder(Preference.DEFAULT_ORDER);
         group.addPreference(pref);
@@ -382,6 +423,9 @@ public class PrivateVolumeSettings extends SettingsPreferenceFragment {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        if (mLoadSnapshotTask != null) {
+            mLoadSnapshotTask.cancel(false);
+        }
         if (mMeasure != null) {
             mMeasure.onDestroy();
         }
@@ -569,6 +613,7 @@ public class PrivateVolumeSettings extends SettingsPreferenceFragment {
         @Override
         public void onDetailsChanged(MeasurementDetails details) {
             updateDetails(details);
+            mMeasureCache.save(mVolume, mSharedVolume, details);
         }
     };
 
@@ -926,6 +971,7 @@ public class PrivateVolumeSettings extends SettingsPreferenceFragment {
                     mTarget.getActivity().runOnUiThread(new Runnable() {
                         @Override
                         public void run() {
+                            mTarget.mForceMeasure = true;
                             mTarget.update();
                         }
                     });
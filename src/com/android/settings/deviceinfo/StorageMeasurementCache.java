@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.AsyncTask;
+import android.os.Environment;
+import android.os.UserHandle;
+import android.os.storage.VolumeInfo;
+import android.text.format.DateUtils;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.SparseLongArray;
+
+import com.android.settingslib.deviceinfo.StorageMeasurement.MeasurementDetails;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import static android.net.TrafficStats.MB_IN_BYTES;
+
+/**
+ * Process wide cache of the {@link MeasurementDetails} of each private volume, persisted per
+ * volume and user so that the storage screen shows the last numbers right away, even after the
+ * process was killed.
+ *
+ * A snapshot is measured again only once it is older than {@link #MAX_AGE}, the free space of
+ * the volume moved by more than {@link #MAX_FREE_DELTA}, files were added, removed or moved
+ * in the media directories, or apps were installed, removed, updated or moved on the volume.
+ */
+final class StorageMeasurementCache {
+    private static final String TAG = "StorageMeasurementCache";
+
+    private static final String DIR_NAME = "storage_measurements";
+    private static final int VERSION = 2;
+
+    static final long MAX_AGE = 6 * DateUtils.HOUR_IN_MILLIS;
+
+    // Logs and caches keep moving the free space a little, nothing that shows in the sizes.
+    static final long MAX_FREE_DELTA = 16 * MB_IN_BYTES;
+
+    // The directories StorageMeasurement sorts the media into.
+    private static final String[] MEDIA_DIRECTORIES = {
+            Environment.DIRECTORY_DCIM, Environment.DIRECTORY_PICTURES,
+            Environment.DIRECTORY_MOVIES, Environment.DIRECTORY_MUSIC,
+            Environment.DIRECTORY_ALARMS, Environment.DIRECTORY_NOTIFICATIONS,
+            Environment.DIRECTORY_RINGTONES, Environment.DIRECTORY_PODCASTS,
+            Environment.DIRECTORY_DOWNLOADS,
+    };
+
+    private static StorageMeasurementCache sInstance;
+
+    private final PackageManager mPm;
+    private final File mDir;
+
+    // ----- following protected by this -----
+    private final ArrayMap<String, Snapshot> mSnapshots = new ArrayMap<>();
+
+    static synchronized StorageMeasurementCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new StorageMeasurementCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private StorageMeasurementCache(Context context) {
+        mPm = context.getPackageManager();
+        mDir = new File(context.getCacheDir(), DIR_NAME);
+    }
+
+    static final class Snapshot {
+        final MeasurementDetails details;
+        // Wall clock time, so that it still means something after a reboot.
+        final long measureTime;
+        final long freeBytes;
+        final long mediaSignature;
+        final long packageSignature;
+
+        Snapshot(MeasurementDetails details, long measureTime, long freeBytes,
+                long mediaSignature, long packageSignature) {
+            this.details = details;
+            this.measureTime = measureTime;
+            this.freeBytes = freeBytes;
+            this.mediaSignature = mediaSignature;
+            this.packageSignature = packageSignature;
+        }
+    }
+
+    /**
+     * @return the last snapshot of the given volume for this user, whatever its age, or null.
+     * May read from disk, call it in the background.
+     */
+    Snapshot load(VolumeInfo volume) {
+        final String key = getKey(volume);
+        synchronized (this) {
+            final Snapshot snapshot = mSnapshots.get(key);
+            if (snapshot != null) {
+                return snapshot;
+            }
+        }
+        final Snapshot snapshot = read(new AtomicFile(new File(mDir, key)));
+        if (snapshot != null) {
+            synchronized (this) {
+                if (!mSnapshots.containsKey(key)) {
+                    mSnapshots.put(key, snapshot);
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return whether the given snapshot needs to be measured again. Stats the volume and the
+     * media directories and lists the packages, call it in the background.
+     */
+    boolean isStale(Snapshot snapshot, VolumeInfo volume, VolumeInfo sharedVolume) {
+        if (snapshot == null) {
+            return true;
+        }
+        final long age = System.currentTimeMillis() - snapshot.measureTime;
+        if (age < 0 || age >= MAX_AGE) {
+            return true;
+        }
+        final long freeBytes = volume.getPath().getFreeSpace();
+        if (Math.abs(freeBytes - snapshot.freeBytes) > MAX_FREE_DELTA) {
+            return true;
+        }
+        if (getMediaSignature(sharedVolume, snapshot.details) != snapshot.mediaSignature) {
+            return true;
+        }
+        return getPackageSignature(volume, snapshot.details) != snapshot.packageSignature;
+    }
+
+    /**
+     * Keeps the given measurement of the given volume, and writes it to disk in the background.
+     */
+    void save(final VolumeInfo volume, final VolumeInfo sharedVolume,
+            final MeasurementDetails details) {
+        final String key = getKey(volume);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Snapshot snapshot = new Snapshot(details, System.currentTimeMillis(),
+                        volume.getPath().getFreeSpace(),
+                        getMediaSignature(sharedVolume, details),
+                        getPackageSignature(volume, details));
+                synchronized (StorageMeasurementCache.this) {
+                    mSnapshots.put(key, snapshot);
+                    // Writes of the same volume stay in order.
+                    write(new AtomicFile(new File(mDir, key)), snapshot);
+                }
+            }
+        });
+    }
+
+    private static String getKey(VolumeInfo volume) {
+        final String fsUuid = volume.getFsUuid();
+        return (fsUuid != null ? fsUuid : "internal") + "_" + UserHandle.myUserId();
+    }
+
+    /**
+     * Combines the modification times of the media directories of each measured user and of
+     * their direct subdirectories, such as DCIM/Camera, which change whenever a file is added,
+     * removed or moved in them.
+     */
+    private static long getMediaSignature(VolumeInfo sharedVolume, MeasurementDetails details) {
+        if (sharedVolume == null || !sharedVolume.isMountedReadable()) {
+            return 0;
+        }
+        long signature = 0;
+        for (int i = 0; i < details.mediaSize.size(); i++) {
+            final int userId = details.mediaSize.keyAt(i);
+            final File base = sharedVolume.getPathForUser(userId);
+            if (base == null) {
+                continue;
+            }
+            signature = signature * 31 + userId;
+            for (String name : MEDIA_DIRECTORIES) {
+                final File dir = new File(base, name);
+                signature = signature * 31 + dir.lastModified();
+                final File[] children = dir.listFiles();
+                if (children == null) {
+                    continue;
+                }
+                for (File child : children) {
+                    if (child.isDirectory()) {
+                        signature = signature * 31 + child.lastModified();
+                    }
+                }
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * Combines the name, version and update time of the packages of each measured user living on
+     * the given volume. The order of the packages does not matter.
+     */
+    private long getPackageSignature(VolumeInfo volume, MeasurementDetails details) {
+        final String volumeUuid = volume.getFsUuid();
+        long signature = 0;
+        for (int i = 0; i < details.appsSize.size(); i++) {
+            final int userId = details.appsSize.keyAt(i);
+            signature = signature * 31 + userId;
+            final List<PackageInfo> packages = mPm.getInstalledPackagesAsUser(
+                    PackageManager.GET_UNINSTALLED_PACKAGES, userId);
+            long packagesSignature = 0;
+            for (PackageInfo info : packages) {
+                if (info.applicationInfo == null
+                        || !Objects.equals(volumeUuid, info.applicationInfo.volumeUuid)) {
+                    continue;
+                }
+                packagesSignature += (info.packageName.hashCode() * 31L + info.lastUpdateTime)
+                        * 31 + info.versionCode;
+            }
+            signature = signature * 31 + packagesSignature;
+        }
+        return signature;
+    }
+
+    private static Snapshot read(AtomicFile file) {
+        if (!file.getBaseFile().exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(file.openRead()))) {
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            final long measureTime = in.readLong();
+            final long freeBytes = in.readLong();
+            final long mediaSignature = in.readLong();
+            final long packageSignature = in.readLong();
+
+            final MeasurementDetails details = new MeasurementDetails();
+            details.totalSize = in.readLong();
+            details.availSize = in.readLong();
+            details.cacheSize = in.readLong();
+            readSparseLongArray(in, details.appsSize);
+            readSparseLongArray(in, details.miscSize);
+            readSparseLongArray(in, details.usersSize);
+            final int mediaCount = in.readInt();
+            for (int i = 0; i < mediaCount; i++) {
+                final int userId = in.readInt();
+                final int size = in.readInt();
+                final HashMap<String, Long> media = new HashMap<>(size);
+                for (int j = 0; j < size; j++) {
+                    media.put(in.readUTF(), in.readLong());
+                }
+                details.mediaSize.put(userId, media);
+            }
+            return new Snapshot(details, measureTime, freeBytes, mediaSignature,
+                    packageSignature);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read " + file.getBaseFile(), e);
+            return null;
+        }
+    }
+
+    private static void write(AtomicFile file, Snapshot snapshot) {
+        file.getBaseFile().getParentFile().mkdirs();
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(VERSION);
+            out.writeLong(snapshot.measureTime);
+            out.writeLong(snapshot.freeBytes);
+            out.writeLong(snapshot.mediaSignature);
+            out.writeLong(snapshot.packageSignature);
+
+            final MeasurementDetails details = snapshot.details;
+            out.writeLong(details.totalSize);
+            out.writeLong(details.availSize);
+            out.writeLong(details.cacheSize);
+            writeSparseLongArray(out, details.appsSize);
+            writeSparseLongArray(out, details.miscSize);
+            writeSparseLongArray(out, details.usersSize);
+            out.writeInt(details.mediaSize.size());
+            for (int i = 0; i < details.mediaSize.size(); i++) {
+                out.writeInt(details.mediaSize.keyAt(i));
+                final HashMap<String, Long> media = details.mediaSize.valueAt(i);
+                out.writeInt(media.size());
+                for (Map.Entry<String, Long> entry : media.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(entry.getValue());
+                }
+            }
+            out.flush();
+            file.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + file.getBaseFile(), e);
+            file.failWrite(fos);
+        }
+    }
+
+    private static void readSparseLongArray(DataInputStream in, SparseLongArray array)
+            throws IOException {
+        final int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            array.put(in.readInt(), in.readLong());
+        }
+    }
+
+    private static void writeSparseLongArray(DataOutputStream out, SparseLongArray array)
+            throws IOException {
+        out.writeInt(array.size());
+        for (int i = 0; i < array.size(); i++) {
+            out.writeInt(array.keyAt(i));
+            out.writeLong(array.valueAt(i));
+        }
+    }
+}
@@ -19,6 +19,7 @@ package com.android.settings.deviceinfo;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.storage.DiskInfo;
+import android.os.storage.VolumeInfo;
 import android.widget.CompoundButton;
 import android.widget.CompoundButton.OnCheckedChangeListener;
 import android.widget.RadioButton;
@@ -53,6 +54,12 @@ public class StorageWizardMigrate extends StorageWizardBase {
         getNextButton().setEnabled(false);
 
         mEstimate = new MigrateEstimateTask(this) {
+            @Override
+            public void onProgressUpdate(String size, String time) {
+                setBodyText(R.string.storage_wizard_migrate_body,
+                        mDisk.getDescription(), time, size);
+            }
+
             @Override
             public void onPostExecute(String size, String time) {
                 setBodyText(R.string.storage_wizard_migrate_body,
@@ -60,10 +67,20 @@ public class StorageWizardMigrate extends StorageWizardBase {
             }
         };
 
+        mEstimate.setTarget(findFirstVolume(VolumeInfo.TYPE_PRIVATE));
         mEstimate.copyFrom(getIntent());
         mEstimate.execute();
     }
 
+    @Override
+    protected void onDestroy() {
+        if (mEstimate != null) {
+            // Stop measuring once the wizard is left.
+            mEstimate.cancel(false);
+        }
+        super.onDestroy();
+    }
+
     private final OnCheckedChangeListener mRadioListener = new OnCheckedChangeListener() {
         @Override
         public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
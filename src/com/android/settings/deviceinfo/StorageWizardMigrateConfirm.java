@@ -60,6 +60,12 @@ public class StorageWizardMigrateConfirm extends StorageWizardBase {
         setSecondaryBodyText(R.string.storage_wizard_migrate_details, targetDescrip);
 
         mEstimate = new MigrateEstimateTask(this) {
+            @Override
+            public void onProgressUpdate(String size, String time) {
+                setBodyText(R.string.storage_wizard_migrate_confirm_body, time, size,
+                        sourceDescrip);
+            }
+
             @Override
             public void onPostExecute(String size, String time) {
                 setBodyText(R.string.storage_wizard_migrate_confirm_body, time, size,
@@ -67,12 +73,22 @@ public class StorageWizardMigrateConfirm extends StorageWizardBase {
             }
         };
 
+        mEstimate.setTarget(mVolume);
         mEstimate.copyFrom(getIntent());
         mEstimate.execute();
 
         getNextButton().setText(R.string.storage_wizard_migrate_confirm_next);
     }
 
+    @Override
+    protected void onDestroy() {
+        if (mEstimate != null) {
+            // Stop measuring once the wizard is left.
+            mEstimate.cancel(false);
+        }
+        super.onDestroy();
+    }
+
     @Override
     public void onNavigateNext() {
         int moveId;
@@ -28,6 +28,7 @@ public class BatteryCellParser implements BatteryInfo.BatteryDataParser, Battery
     private int mLastValue;
     private long mLength;
     private long mLastTime;
+    private SparseIntArray mColorArray;
 
     protected int getValue(HistoryItem rec) {
         int bin;
@@ -48,6 +49,7 @@ public class BatteryCellParser implements BatteryInfo.BatteryDataParser, Battery
     @Override
     public void onParsingStarted(long startTime, long endTime) {
         mLength = endTime - startTime;
+        mColorArray = null;
     }
 
     @Override
@@ -88,11 +90,14 @@ public class BatteryCellParser implements BatteryInfo.BatteryDataParser, Battery
 
     @Override
     public SparseIntArray getColorArray() {
-        SparseIntArray ret = new SparseIntArray();
-        for (int i = 0; i < mData.size(); i++) {
-            ret.put(mData.keyAt(i), getColor(mData.valueAt(i)));
+        // Asked for on every draw, only build it once per parsing.
+        if (mColorArray == null) {
+            mColorArray = new SparseIntArray(mData.size());
+            for (int i = 0; i < mData.size(); i++) {
+                mColorArray.put(mData.keyAt(i), getColor(mData.valueAt(i)));
+            }
         }
-        return ret;
+        return mColorArray;
     }
 
     private int getColor(int i) {
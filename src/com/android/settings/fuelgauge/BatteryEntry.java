@@ -23,19 +23,28 @@ import android.content.pm.IPackageManager;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.UserInfo;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Handler;
+import android.os.Process;
 import android.os.RemoteException;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.util.Log;
+import android.util.LruCache;
+import android.util.SparseArray;
 
 import com.android.internal.os.BatterySipper;
 import com.android.settings.R;
 import com.android.settingslib.Utils;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Wraps the power usage data of a BatterySipper with information about package name
@@ -45,71 +54,162 @@ public class BatteryEntry {
     public static final int MSG_UPDATE_NAME_ICON = 1;
     public static final int MSG_REPORT_FULLY_DRAWN = 2;
 
-    static final HashMap<String,UidToDetail> sUidCache = new HashMap<String,UidToDetail>();
+    // Workers loading names and icons, a few so that a slow package does not hold up the list.
+    private static final int MAX_LOADER_THREADS = 2;
+    private static final int LOADER_THREAD_KEEP_ALIVE_SECONDS = 30;
 
-    static final ArrayList<BatteryEntry> mRequestQueue = new ArrayList<BatteryEntry>();
+    // Names and icons of the uids loaded before, bounded by the bytes of their icons.
+    private static final int UID_CACHE_MAX_BYTES = 4 * 1024 * 1024;
+
+    static final LruCache<Integer, UidToDetail> sUidCache =
+            new LruCache<Integer, UidToDetail>(UID_CACHE_MAX_BYTES) {
+        @Override
+        protected int sizeOf(Integer uid, UidToDetail utd) {
+            return utd.getByteCount();
+        }
+    };
+
+    // Loads requested and not finished yet, one per uid. Also guards the following fields.
+    private static final SparseArray<LoadTask> sPendingTasks = new SparseArray<LoadTask>();
+    private static int sNextPriority;
     static Handler sHandler;
 
-    static private class NameAndIconLoader extends Thread {
-        private boolean mAbort = false;
+    private static ThreadPoolExecutor sLoaderExecutor;
 
-        public NameAndIconLoader() {
-            super("BatteryUsage Icon Loader");
+    /**
+     * Loads the name and icon of one uid for all the entries requesting it. Tasks run in the
+     * order they were requested, which is the order of the list, so that the rows on screen are
+     * filled in first.
+     */
+    private static final class LoadTask implements Runnable, Comparable<LoadTask> {
+        final int mUid;
+        final int mPriority;
+        final ArrayList<BatteryEntry> mEntries = new ArrayList<BatteryEntry>(1);
+        boolean mSubmitted;
+        boolean mCancelled;
+
+        LoadTask(int uid, int priority) {
+            mUid = uid;
+            mPriority = priority;
         }
 
-        public void abort() {
-            mAbort = true;
+        @Override
+        public int compareTo(LoadTask other) {
+            return Integer.compare(mPriority, other.mPriority);
         }
 
         @Override
         public void run() {
-            while (true) {
-                BatteryEntry be;
-                synchronized (mRequestQueue) {
-                    if (mRequestQueue.isEmpty() || mAbort) {
-                        if (sHandler != null) {
-                            sHandler.sendEmptyMessage(MSG_REPORT_FULLY_DRAWN);
-                        }
-                        mRequestQueue.clear();
-                        return;
-                    }
-                    be = mRequestQueue.remove(0);
+            final BatteryEntry first;
+            synchronized (sPendingTasks) {
+                if (mCancelled) {
+                    return;
+                }
+                first = mEntries.get(0);
+            }
+            first.loadNameAndIcon();
+
+            final BatteryEntry[] others;
+            final Handler handler;
+            synchronized (sPendingTasks) {
+                if (sPendingTasks.get(mUid) == this) {
+                    sPendingTasks.remove(mUid);
+                }
+                others = mEntries.subList(1, mEntries.size()).toArray(
+                        new BatteryEntry[mEntries.size() - 1]);
+                handler = mCancelled ? null : sHandler;
+                if (handler != null && sPendingTasks.size() == 0) {
+                    handler.sendEmptyMessage(MSG_REPORT_FULLY_DRAWN);
+                }
+            }
+            for (BatteryEntry entry : others) {
+                entry.name = first.name;
+                entry.icon = first.icon;
+                entry.defaultPackageName = first.defaultPackageName;
+                entry.packages = first.packages;
+                if (handler != null) {
+                    handler.sendMessage(handler.obtainMessage(MSG_UPDATE_NAME_ICON, entry));
                 }
-                be.loadNameAndIcon();
             }
         }
     }
 
-    private static NameAndIconLoader mRequestThread;
+    private static synchronized ThreadPoolExecutor getLoaderExecutor() {
+        if (sLoaderExecutor == null) {
+            sLoaderExecutor = new ThreadPoolExecutor(MAX_LOADER_THREADS, MAX_LOADER_THREADS,
+                    LOADER_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger(1);
+
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(
+                                            Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, "BatteryUsage Icon Loader #" + mCount.getAndIncrement());
+                        }
+                    });
+            sLoaderExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sLoaderExecutor;
+    }
 
+    /**
+     * Starts loading the names and icons requested since the last call.
+     */
     public static void startRequestQueue() {
-        if (sHandler != null) {
-            synchronized (mRequestQueue) {
-                if (!mRequestQueue.isEmpty()) {
-                    if (mRequestThread != null) {
-                        mRequestThread.abort();
-                    }
-                    mRequestThread = new NameAndIconLoader();
-                    mRequestThread.setPriority(Thread.MIN_PRIORITY);
-                    mRequestThread.start();
-                    mRequestQueue.notify();
+        synchronized (sPendingTasks) {
+            if (sHandler == null) {
+                return;
+            }
+            for (int i = 0; i < sPendingTasks.size(); i++) {
+                final LoadTask task = sPendingTasks.valueAt(i);
+                if (!task.mSubmitted) {
+                    task.mSubmitted = true;
+                    getLoaderExecutor().execute(task);
                 }
             }
         }
     }
 
+    /**
+     * Cancels the loads not finished yet, and stops reporting to the handler.
+     */
     public static void stopRequestQueue() {
-        synchronized (mRequestQueue) {
-            if (mRequestThread != null) {
-                mRequestThread.abort();
-                mRequestThread = null;
-                sHandler = null;
+        synchronized (sPendingTasks) {
+            for (int i = 0; i < sPendingTasks.size(); i++) {
+                final LoadTask task = sPendingTasks.valueAt(i);
+                task.mCancelled = true;
+                if (task.mSubmitted) {
+                    getLoaderExecutor().remove(task);
+                }
             }
+            sPendingTasks.clear();
+            sNextPriority = 0;
+            sHandler = null;
         }
     }
 
     public static void clearUidCache() {
-        sUidCache.clear();
+        sUidCache.evictAll();
+    }
+
+    private static void requestNameAndIcon(BatteryEntry entry, int uid) {
+        synchronized (sPendingTasks) {
+            if (sHandler == null) {
+                return;
+            }
+            LoadTask task = sPendingTasks.get(uid);
+            if (task == null) {
+                task = new LoadTask(uid, sNextPriority++);
+                sPendingTasks.put(uid, task);
+            }
+            task.mEntries.add(entry);
+        }
     }
 
     public final Context context;
@@ -119,15 +219,31 @@ public class BatteryEntry {
     public Drawable icon;
     public int iconId; // For passing to the detail screen.
     public String defaultPackageName;
+    // Packages of the uid, loaded with the name. The sipper is shared and left untouched.
+    public String[] packages;
 
     static class UidToDetail {
         String name;
         String packageName;
         Drawable icon;
+
+        int getByteCount() {
+            if (icon instanceof BitmapDrawable) {
+                final Bitmap bitmap = ((BitmapDrawable) icon).getBitmap();
+                if (bitmap != null) {
+                    return bitmap.getAllocationByteCount();
+                }
+            }
+            // Roughly what the drawable takes once rendered.
+            return icon != null
+                    ? Math.max(1, icon.getIntrinsicWidth() * icon.getIntrinsicHeight() * 4) : 1;
+        }
     }
 
     public BatteryEntry(Context context, Handler handler, UserManager um, BatterySipper sipper) {
-        sHandler = handler;
+        synchronized (sPendingTasks) {
+            sHandler = handler;
+        }
         this.context = context;
         this.sipper = sipper;
         switch (sipper.drainType) {
@@ -206,9 +322,8 @@ public class BatteryEntry {
     }
 
     void getQuickNameIconForUid(final int uid) {
-        final String uidString = Integer.toString(uid);
-        if (sUidCache.containsKey(uidString)) {
-            UidToDetail utd = sUidCache.get(uidString);
+        final UidToDetail utd = sUidCache.get(uid);
+        if (utd != null) {
             defaultPackageName = utd.packageName;
             name = utd.name;
             icon = utd.icon;
@@ -228,11 +343,7 @@ public class BatteryEntry {
             icon = context.getDrawable(iconId);
         }
 
-        if (sHandler != null) {
-            synchronized (mRequestQueue) {
-                mRequestQueue.add(this);
-            }
-        }
+        requestNameAndIcon(this, uid);
     }
 
     /**
@@ -246,10 +357,10 @@ public class BatteryEntry {
 
         PackageManager pm = context.getPackageManager();
         final int uid = sipper.uidObj.getUid();
-        sipper.mPackages = pm.getPackagesForUid(uid);
-        if (sipper.mPackages != null) {
-            String[] packageLabels = new String[sipper.mPackages.length];
-            System.arraycopy(sipper.mPackages, 0, packageLabels, 0, sipper.mPackages.length);
+        packages = pm.getPackagesForUid(uid);
+        if (packages != null) {
+            String[] packageLabels = new String[packages.length];
+            System.arraycopy(packages, 0, packageLabels, 0, packages.length);
 
             // Convert package names to user-facing labels where possible
             IPackageManager ipm = AppGlobals.getPackageManager();
@@ -268,7 +379,7 @@ public class BatteryEntry {
                         packageLabels[i] = label.toString();
                     }
                     if (ai.icon != 0) {
-                        defaultPackageName = sipper.mPackages[i];
+                        defaultPackageName = packages[i];
                         icon = ai.loadIcon(pm);
                         break;
                     }
@@ -282,7 +393,7 @@ public class BatteryEntry {
                 name = packageLabels[0];
             } else {
                 // Look for an official name for this UID.
-                for (String pkgName : sipper.mPackages) {
+                for (String pkgName : packages) {
                     try {
                         final PackageInfo pi = ipm.getPackageInfo(pkgName, 0 /* no flags */, userId);
                         if (pi == null) {
@@ -323,9 +434,10 @@ public class BatteryEntry {
         utd.name = name;
         utd.icon = icon;
         utd.packageName = defaultPackageName;
-        sUidCache.put(uidString, utd);
-        if (sHandler != null) {
-            sHandler.sendMessage(sHandler.obtainMessage(MSG_UPDATE_NAME_ICON, this));
+        sUidCache.put(uid, utd);
+        final Handler handler = sHandler;
+        if (handler != null) {
+            handler.sendMessage(handler.obtainMessage(MSG_UPDATE_NAME_ICON, this));
         }
     }
 }
@@ -30,6 +30,7 @@ public class BatteryFlagParser implements BatteryInfo.BatteryDataParser, Battery
     private boolean mLastSet;
     private long mLength;
     private long mLastTime;
+    private SparseIntArray mColorArray;
 
     public BatteryFlagParser(int accent, boolean state2, int flag) {
         mAccentColor = accent;
@@ -44,6 +45,7 @@ public class BatteryFlagParser implements BatteryInfo.BatteryDataParser, Battery
     @Override
     public void onParsingStarted(long startTime, long endTime) {
         mLength = endTime - startTime;
+        mColorArray = null;
     }
 
     @Override
@@ -84,11 +86,14 @@ public class BatteryFlagParser implements BatteryInfo.BatteryDataParser, Battery
 
     @Override
     public SparseIntArray getColorArray() {
-        SparseIntArray ret = new SparseIntArray();
-        for (int i = 0; i < mData.size(); i++) {
-            ret.put(mData.keyAt(i), getColor(mData.valueAt(i)));
+        // Asked for on every draw, only build it once per parsing.
+        if (mColorArray == null) {
+            mColorArray = new SparseIntArray(mData.size());
+            for (int i = 0; i < mData.size(); i++) {
+                mColorArray.put(mData.keyAt(i), getColor(mData.valueAt(i)));
+            }
         }
-        return ret;
+        return mColorArray;
     }
 
     private int getColor(boolean b) {
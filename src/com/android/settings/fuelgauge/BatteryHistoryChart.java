@@ -29,13 +29,11 @@ import android.graphics.Typeface;
 import android.os.BatteryStats;
 import android.os.BatteryStats.HistoryItem;
 import android.os.SystemClock;
-import android.telephony.ServiceState;
 import android.text.TextPaint;
 import android.text.format.DateFormat;
 import android.text.format.Formatter;
 import android.util.AttributeSet;
 import android.util.Log;
-import android.util.TimeUtils;
 import android.util.TypedValue;
 import android.view.View;
 import com.android.settings.R;
@@ -211,7 +209,7 @@ public class BatteryHistoryChart extends View {
     int mLevelLeft;
     int mLevelRight;
 
-    int mNumHist;
+    BatteryHistoryModel mModel;
     long mHistStart;
     long mHistDataEnd;
     long mHistEnd;
@@ -513,64 +511,17 @@ public class BatteryHistoryChart extends View {
         mChargeDurationString = "";
         setContentDescription(mInfo.mChargeLabelString);
 
-        int pos = 0;
-        int lastInteresting = 0;
-        byte lastLevel = -1;
         mBatLow = 0;
         mBatHigh = 100;
-        mStartWallTime = 0;
-        mEndDataWallTime = 0;
-        mEndWallTime = 0;
-        mHistStart = 0;
-        mHistEnd = 0;
-        long lastWallTime = 0;
-        long lastRealtime = 0;
-        int aggrStates = 0;
-        int aggrStates2 = 0;
-        boolean first = true;
-        if (stats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (stats.getNextHistoryLocked(rec)) {
-                pos++;
-                if (first) {
-                    first = false;
-                    mHistStart = rec.time;
-                }
-                if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
-                        || rec.cmd == HistoryItem.CMD_RESET) {
-                    // If there is a ridiculously large jump in time, then we won't be
-                    // able to create a good chart with that data, so just ignore the
-                    // times we got before and pretend like our data extends back from
-                    // the time we have now.
-                    // Also, if we are getting a time change and we are less than 5 minutes
-                    // since the start of the history real time, then also use this new
-                    // time to compute the base time, since whatever time we had before is
-                    // pretty much just noise.
-                    if (rec.currentTime > (lastWallTime+(180*24*60*60*1000L))
-                            || rec.time < (mHistStart+(5*60*1000L))) {
-                        mStartWallTime = 0;
-                    }
-                    lastWallTime = rec.currentTime;
-                    lastRealtime = rec.time;
-                    if (mStartWallTime == 0) {
-                        mStartWallTime = lastWallTime - (lastRealtime-mHistStart);
-                    }
-                }
-                if (rec.isDeltaData()) {
-                    if (rec.batteryLevel != lastLevel || pos == 1) {
-                        lastLevel = rec.batteryLevel;
-                    }
-                    lastInteresting = pos;
-                    mHistDataEnd = rec.time;
-                    aggrStates |= rec.states;
-                    aggrStates2 |= rec.states2;
-                }
-            }
-        }
+        mModel = BatteryHistoryModel.decode(stats);
+        mHistStart = mModel.histStart;
+        mHistDataEnd = mModel.histDataEnd;
+        mStartWallTime = mModel.startWallTime;
+        final int aggrStates = mModel.aggregateStates;
+        final int aggrStates2 = mModel.aggregateStates2;
         mHistEnd = mHistDataEnd + (mInfo.remainingTimeUs/1000);
-        mEndDataWallTime = lastWallTime + mHistDataEnd - lastRealtime;
+        mEndDataWallTime = mModel.endDataWallTime;
         mEndWallTime = mEndDataWallTime + (mInfo.remainingTimeUs/1000);
-        mNumHist = lastInteresting;
         mHaveGps = (aggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
         mHaveFlashlight = (aggrStates2&HistoryItem.STATE2_FLASHLIGHT_FLAG) != 0;
         mHaveCamera = (aggrStates2&HistoryItem.STATE2_CAMERA_FLAG) != 0;
@@ -643,6 +594,25 @@ public class BatteryHistoryChart extends View {
         }
     }
 
+    /**
+     * Extends the line of a state to the given pixel column. A state that was only on for part
+     * of the column still gets a pixel.
+     *
+     * @return whether the state is on at the end of the column.
+     */
+    private static boolean addFlagLine(Path path, int x, int y, int flag, int anyFlags,
+            int lastFlags, boolean wasOn) {
+        final boolean on = (anyFlags & flag) != 0;
+        final boolean endOn = (lastFlags & flag) != 0;
+        if (on && !wasOn) {
+            path.moveTo(x, y);
+        }
+        if ((wasOn || on) && !endOn) {
+            path.lineTo(on ? x + 1 : x, y);
+        }
+        return endOn;
+    }
+
     private boolean is24Hour() {
         return DateFormat.is24HourFormat(getContext());
     }
@@ -753,8 +723,6 @@ public class BatteryHistoryChart extends View {
         final long walltimeStart = mStartWallTime;
         final long walltimeChange = mEndWallTime > walltimeStart
                 ? (mEndWallTime-walltimeStart) : 1;
-        long curWalltime = mStartWallTime;
-        long lastRealtime = 0;
 
         final int batLow = mBatLow;
         final int batChange = mBatHigh-mBatLow;
@@ -763,221 +731,98 @@ public class BatteryHistoryChart extends View {
         mLevelBottom = mLevelTop + levelh;
 
         int x = mLevelLeft, y = 0, startX = mLevelLeft, lastX = -1, lastY = -1;
-        int i = 0;
         Path curLevelPath = null;
         Path lastLinePath = null;
         boolean lastCharging = false, lastScreenOn = false, lastGpsOn = false;
         boolean lastFlashlightOn = false, lastCameraOn = false;
-        boolean lastWifiRunning = false, lastWifiSupplRunning = false, lastCpuRunning = false;
-        int lastWifiSupplState = BatteryStats.WIFI_SUPPL_STATE_INVALID;
-        final int N = mNumHist;
-        if (mEndDataWallTime > mStartWallTime && mStats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (mStats.getNextHistoryLocked(rec) && i < N) {
-                if (rec.isDeltaData()) {
-                    curWalltime += rec.time-lastRealtime;
-                    lastRealtime = rec.time;
-                    x = mLevelLeft + (int)(((curWalltime-walltimeStart)*levelWidth)/walltimeChange);
-                    if (x < 0) {
-                        x = 0;
-                    }
-                    if (false) {
-                        StringBuilder sb = new StringBuilder(128);
-                        sb.append("walloff=");
-                        TimeUtils.formatDuration(curWalltime - walltimeStart, sb);
-                        sb.append(" wallchange=");
-                        TimeUtils.formatDuration(walltimeChange, sb);
-                        sb.append(" x=");
-                        sb.append(x);
-                        Log.d("foo", sb.toString());
+        boolean lastWifiRunning = false, lastCpuRunning = false;
+        if (mEndDataWallTime > mStartWallTime && !mModel.isEmpty()) {
+            // One entry per pixel column, computed once per width.
+            final BatteryHistoryModel.Buckets buckets =
+                    mModel.getBuckets(levelWidth, mEndWallTime);
+            for (int i = 0; i < buckets.size; i++) {
+                if (buckets.gaps[i]) {
+                    if (curLevelPath != null) {
+                        finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
+                                lastCharging, lastScreenOn, lastGpsOn, lastFlashlightOn,
+                                lastCameraOn, lastWifiRunning, lastCpuRunning, lastLinePath);
+                        lastX = lastY = -1;
+                        curLevelPath = null;
+                        lastLinePath = null;
+                        lastCharging = lastScreenOn = lastGpsOn = lastFlashlightOn =
+                                lastCameraOn = lastWifiRunning = lastCpuRunning = false;
                     }
-                    y = mLevelTop + levelh - ((rec.batteryLevel-batLow)*(levelh-1))/batChange;
-
-                    if (lastX != x) {
-                        // We have moved by at least a pixel.
-                        if (lastY != y) {
-                            // Don't plot changes within a pixel.
-                            Path path;
-                            byte value = rec.batteryLevel;
-                            if (value <= mBatteryCriticalLevel) path = mBatCriticalPath;
-                            else if (value <= mBatteryWarnLevel) path = mBatWarnPath;
-                            else path = null; //mBatGoodPath;
-
-                            if (path != lastLinePath) {
-                                if (lastLinePath != null) {
-                                    lastLinePath.lineTo(x, y);
-                                }
-                                if (path != null) {
-                                    path.moveTo(x, y);
-                                }
-                                lastLinePath = path;
-                            } else if (path != null) {
-                                path.lineTo(x, y);
-                            }
-
-                            if (curLevelPath == null) {
-                                curLevelPath = mBatLevelPath;
-                                curLevelPath.moveTo(x, y);
-                                startX = x;
-                            } else {
-                                curLevelPath.lineTo(x, y);
-                            }
-                            lastX = x;
-                            lastY = y;
-                        }
-                    }
-
-                    if (mLargeMode) {
-                        final boolean charging =
-                            (rec.states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
-                        if (charging != lastCharging) {
-                            if (charging) {
-                                mChargingPath.moveTo(x, h-mChargingOffset);
-                            } else {
-                                mChargingPath.lineTo(x, h-mChargingOffset);
-                            }
-                            lastCharging = charging;
-                        }
-
-                        final boolean screenOn =
-                            (rec.states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
-                        if (screenOn != lastScreenOn) {
-                            if (screenOn) {
-                                mScreenOnPath.moveTo(x, h-mScreenOnOffset);
-                            } else {
-                                mScreenOnPath.lineTo(x, h-mScreenOnOffset);
-                            }
-                            lastScreenOn = screenOn;
-                        }
-
-                        final boolean gpsOn =
-                            (rec.states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
-                        if (gpsOn != lastGpsOn) {
-                            if (gpsOn) {
-                                mGpsOnPath.moveTo(x, h-mGpsOnOffset);
-                            } else {
-                                mGpsOnPath.lineTo(x, h-mGpsOnOffset);
-                            }
-                            lastGpsOn = gpsOn;
-                        }
-
-                        final boolean flashlightOn =
-                            (rec.states2&HistoryItem.STATE2_FLASHLIGHT_FLAG) != 0;
-                        if (flashlightOn != lastFlashlightOn) {
-                            if (flashlightOn) {
-                                mFlashlightOnPath.moveTo(x, h-mFlashlightOnOffset);
-                            } else {
-                                mFlashlightOnPath.lineTo(x, h-mFlashlightOnOffset);
-                            }
-                            lastFlashlightOn = flashlightOn;
-                        }
-
-                        final boolean cameraOn =
-                            (rec.states2&HistoryItem.STATE2_CAMERA_FLAG) != 0;
-                        if (cameraOn != lastCameraOn) {
-                            if (cameraOn) {
-                                mCameraOnPath.moveTo(x, h-mCameraOnOffset);
-                            } else {
-                                mCameraOnPath.lineTo(x, h-mCameraOnOffset);
-                            }
-                            lastCameraOn = cameraOn;
-                        }
-
-                        final int wifiSupplState =
-                            ((rec.states2&HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK)
-                                    >> HistoryItem.STATE2_WIFI_SUPPL_STATE_SHIFT);
-                        boolean wifiRunning;
-                        if (lastWifiSupplState != wifiSupplState) {
-                            lastWifiSupplState = wifiSupplState;
-                            switch (wifiSupplState) {
-                                case BatteryStats.WIFI_SUPPL_STATE_DISCONNECTED:
-                                case BatteryStats.WIFI_SUPPL_STATE_DORMANT:
-                                case BatteryStats.WIFI_SUPPL_STATE_INACTIVE:
-                                case BatteryStats.WIFI_SUPPL_STATE_INTERFACE_DISABLED:
-                                case BatteryStats.WIFI_SUPPL_STATE_INVALID:
-                                case BatteryStats.WIFI_SUPPL_STATE_UNINITIALIZED:
-                                    wifiRunning = lastWifiSupplRunning = false;
-                                    break;
-                                default:
-                                    wifiRunning = lastWifiSupplRunning = true;
-                                    break;
-                            }
-                        } else {
-                            wifiRunning = lastWifiSupplRunning;
-                        }
-                        if ((rec.states&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
-                                |HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
-                                |HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0) {
-                            wifiRunning = true;
-                        }
-                        if (wifiRunning != lastWifiRunning) {
-                            if (wifiRunning) {
-                                mWifiRunningPath.moveTo(x, h-mWifiRunningOffset);
-                            } else {
-                                mWifiRunningPath.lineTo(x, h-mWifiRunningOffset);
-                            }
-                            lastWifiRunning = wifiRunning;
-                        }
+                    continue;
+                }
 
-                        final boolean cpuRunning =
-                            (rec.states&HistoryItem.STATE_CPU_RUNNING_FLAG) != 0;
-                        if (cpuRunning != lastCpuRunning) {
-                            if (cpuRunning) {
-                                mCpuRunningPath.moveTo(x, h - mCpuRunningOffset);
-                            } else {
-                                mCpuRunningPath.lineTo(x, h - mCpuRunningOffset);
-                            }
-                            lastCpuRunning = cpuRunning;
+                x = mLevelLeft + buckets.x[i];
+                // Go through the first, highest, lowest and last level of the column, so that
+                // short spikes survive the downsampling.
+                for (int k = 0; k < 4; k++) {
+                    final byte value = k == 0 ? buckets.firstLevels[i]
+                            : k == 1 ? buckets.maxLevels[i]
+                            : k == 2 ? buckets.minLevels[i]
+                            : buckets.lastLevels[i];
+                    y = mLevelTop + levelh - ((value-batLow)*(levelh-1))/batChange;
+                    if (lastY == y) {
+                        // Don't plot changes within a pixel.
+                        continue;
+                    }
+                    Path path;
+                    if (value <= mBatteryCriticalLevel) path = mBatCriticalPath;
+                    else if (value <= mBatteryWarnLevel) path = mBatWarnPath;
+                    else path = null; //mBatGoodPath;
+
+                    if (path != lastLinePath) {
+                        if (lastLinePath != null) {
+                            lastLinePath.lineTo(x, y);
                         }
-
-                        if (mLargeMode && mHavePhoneSignal) {
-                            int bin;
-                            if (((rec.states&HistoryItem.STATE_PHONE_STATE_MASK)
-                                    >> HistoryItem.STATE_PHONE_STATE_SHIFT)
-                                    == ServiceState.STATE_POWER_OFF) {
-                                bin = 0;
-                            } else if ((rec.states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
-                                bin = 1;
-                            } else {
-                                bin = (rec.states&HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
-                                        >> HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_SHIFT;
-                                bin += 2;
-                            }
-                            mPhoneSignalChart.addTick(x, bin);
+                        if (path != null) {
+                            path.moveTo(x, y);
                         }
+                        lastLinePath = path;
+                    } else if (path != null) {
+                        path.lineTo(x, y);
                     }
 
-                } else {
-                    long lastWalltime = curWalltime;
-                    if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
-                            || rec.cmd == HistoryItem.CMD_RESET) {
-                        if (rec.currentTime >= mStartWallTime) {
-                            curWalltime = rec.currentTime;
-                        } else {
-                            curWalltime = mStartWallTime + (rec.time-mHistStart);
-                        }
-                        lastRealtime = rec.time;
+                    if (curLevelPath == null) {
+                        curLevelPath = mBatLevelPath;
+                        curLevelPath.moveTo(x, y);
+                        startX = x;
+                    } else {
+                        curLevelPath.lineTo(x, y);
                     }
+                    lastX = x;
+                    lastY = y;
+                }
 
-                    if (rec.cmd != HistoryItem.CMD_OVERFLOW
-                            && (rec.cmd != HistoryItem.CMD_CURRENT_TIME
-                                    || Math.abs(lastWalltime-curWalltime) > (60*60*1000))) {
-                        if (curLevelPath != null) {
-                            finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
-                                    lastCharging, lastScreenOn, lastGpsOn, lastFlashlightOn,
-                                    lastCameraOn, lastWifiRunning, lastCpuRunning, lastLinePath);
-                            lastX = lastY = -1;
-                            curLevelPath = null;
-                            lastLinePath = null;
-                            lastCharging = lastScreenOn = lastGpsOn = lastFlashlightOn =
-                                    lastCameraOn = lastCpuRunning = false;
-                        }
+                if (mLargeMode) {
+                    final int anyFlags = buckets.anyFlags[i];
+                    final int flags = buckets.lastFlags[i];
+                    lastCharging = addFlagLine(mChargingPath, x, h-mChargingOffset,
+                            BatteryHistoryModel.FLAG_CHARGING, anyFlags, flags, lastCharging);
+                    lastScreenOn = addFlagLine(mScreenOnPath, x, h-mScreenOnOffset,
+                            BatteryHistoryModel.FLAG_SCREEN_ON, anyFlags, flags, lastScreenOn);
+                    lastGpsOn = addFlagLine(mGpsOnPath, x, h-mGpsOnOffset,
+                            BatteryHistoryModel.FLAG_GPS_ON, anyFlags, flags, lastGpsOn);
+                    lastFlashlightOn = addFlagLine(mFlashlightOnPath, x, h-mFlashlightOnOffset,
+                            BatteryHistoryModel.FLAG_FLASHLIGHT_ON, anyFlags, flags,
+                            lastFlashlightOn);
+                    lastCameraOn = addFlagLine(mCameraOnPath, x, h-mCameraOnOffset,
+                            BatteryHistoryModel.FLAG_CAMERA_ON, anyFlags, flags, lastCameraOn);
+                    lastWifiRunning = addFlagLine(mWifiRunningPath, x, h-mWifiRunningOffset,
+                            BatteryHistoryModel.FLAG_WIFI_RUNNING, anyFlags, flags,
+                            lastWifiRunning);
+                    lastCpuRunning = addFlagLine(mCpuRunningPath, x, h - mCpuRunningOffset,
+                            BatteryHistoryModel.FLAG_CPU_RUNNING, anyFlags, flags,
+                            lastCpuRunning);
+                    if (mHavePhoneSignal) {
+                        mPhoneSignalChart.addTick(x,
+                                (flags & BatteryHistoryModel.PHONE_SIGNAL_MASK)
+                                        >> BatteryHistoryModel.PHONE_SIGNAL_SHIFT);
                     }
                 }
-                
-                i++;
             }
-            mStats.finishIteratingHistoryLocked();
         }
 
         if (lastY < 0 || lastX < 0) {
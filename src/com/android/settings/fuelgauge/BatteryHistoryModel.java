@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.os.BatteryStats;
+import android.os.BatteryStats.HistoryItem;
+import android.telephony.ServiceState;
+import android.util.SparseArray;
+
+import java.util.Arrays;
+
+/**
+ * Battery history decoded in a single pass into primitive columns: wall time, level and the
+ * state bits drawn by {@link BatteryHistoryChart}, one row per data point or gap.
+ *
+ * The chart never reads the history again. On each new width it asks for {@link Buckets}, the
+ * rows reduced to one entry per pixel column, which are kept for the last few widths so that
+ * relayouts and rotations only rebuild paths.
+ */
+final class BatteryHistoryModel {
+
+    static final int FLAG_CHARGING = 1 << 0;
+    static final int FLAG_SCREEN_ON = 1 << 1;
+    static final int FLAG_GPS_ON = 1 << 2;
+    static final int FLAG_FLASHLIGHT_ON = 1 << 3;
+    static final int FLAG_CAMERA_ON = 1 << 4;
+    static final int FLAG_WIFI_RUNNING = 1 << 5;
+    static final int FLAG_CPU_RUNNING = 1 << 6;
+    static final int PHONE_SIGNAL_SHIFT = 8;
+    static final int PHONE_SIGNAL_MASK = 0xf << PHONE_SIGNAL_SHIFT;
+
+    // Rows hold their history command until the wall times are known, then one of these.
+    private static final byte ROW_DATA = HistoryItem.CMD_UPDATE;
+    private static final byte ROW_GAP = HistoryItem.CMD_NULL;
+
+    // A time change larger than this breaks the chart.
+    private static final long TIME_CHANGE_GAP = 60 * 60 * 1000;
+
+    // Both orientations, so that rotating back and forth does not reduce the rows again.
+    private static final int MAX_CACHED_WIDTHS = 2;
+
+    final long histStart;
+    final long histDataEnd;
+    final long startWallTime;
+    final long endDataWallTime;
+    final int aggregateStates;
+    final int aggregateStates2;
+
+    private final int mRowCount;
+    private final int mGapCount;
+    private final byte[] mKinds;
+    private final long[] mWallTimes;
+    private final byte[] mLevels;
+    private final int[] mFlags;
+
+    private final SparseArray<Buckets> mBuckets = new SparseArray<>(MAX_CACHED_WIDTHS);
+    private long mBucketsEndWallTime;
+
+    /**
+     * Rows reduced to one entry per pixel column, with the range of levels and the state bits
+     * seen in that column. Gaps are kept as entries of their own.
+     */
+    static final class Buckets {
+        int size;
+        boolean[] gaps;
+        int[] x;
+        byte[] firstLevels;
+        byte[] minLevels;
+        byte[] maxLevels;
+        byte[] lastLevels;
+        // State bits set at any point in the column, and at its end.
+        int[] anyFlags;
+        int[] lastFlags;
+
+        Buckets(int capacity) {
+            gaps = new boolean[capacity];
+            x = new int[capacity];
+            firstLevels = new byte[capacity];
+            minLevels = new byte[capacity];
+            maxLevels = new byte[capacity];
+            lastLevels = new byte[capacity];
+            anyFlags = new int[capacity];
+            lastFlags = new int[capacity];
+        }
+
+        private int add() {
+            if (size == x.length) {
+                final int capacity = size * 2 + 1;
+                gaps = Arrays.copyOf(gaps, capacity);
+                x = Arrays.copyOf(x, capacity);
+                firstLevels = Arrays.copyOf(firstLevels, capacity);
+                minLevels = Arrays.copyOf(minLevels, capacity);
+                maxLevels = Arrays.copyOf(maxLevels, capacity);
+                lastLevels = Arrays.copyOf(lastLevels, capacity);
+                anyFlags = Arrays.copyOf(anyFlags, capacity);
+                lastFlags = Arrays.copyOf(lastFlags, capacity);
+            }
+            return size++;
+        }
+    }
+
+    private BatteryHistoryModel(long histStart, long histDataEnd, long startWallTime,
+            long endDataWallTime, int aggregateStates, int aggregateStates2, int rowCount,
+            int gapCount, byte[] kinds, long[] wallTimes, byte[] levels, int[] flags) {
+        this.histStart = histStart;
+        this.histDataEnd = histDataEnd;
+        this.startWallTime = startWallTime;
+        this.endDataWallTime = endDataWallTime;
+        this.aggregateStates = aggregateStates;
+        this.aggregateStates2 = aggregateStates2;
+        mRowCount = rowCount;
+        mGapCount = gapCount;
+        mKinds = kinds;
+        mWallTimes = wallTimes;
+        mLevels = levels;
+        mFlags = flags;
+    }
+
+    /**
+     * Reads the history of the given stats once.
+     */
+    static BatteryHistoryModel decode(BatteryStats stats) {
+        int capacity = 256;
+        byte[] kinds = new byte[capacity];
+        long[] times = new long[capacity];
+        // Holds the current time of time changes until they are turned into wall times.
+        long[] wallTimes = new long[capacity];
+        byte[] levels = new byte[capacity];
+        int[] flags = new int[capacity];
+        int count = 0;
+        int lastDataCount = 0;
+
+        long histStart = 0;
+        long histDataEnd = 0;
+        long startWallTime = 0;
+        long lastWallTime = 0;
+        long lastRealtime = 0;
+        int aggrStates = 0;
+        int aggrStates2 = 0;
+        boolean first = true;
+        if (stats.startIteratingHistoryLocked()) {
+            final HistoryItem rec = new HistoryItem();
+            while (stats.getNextHistoryLocked(rec)) {
+                if (first) {
+                    first = false;
+                    histStart = rec.time;
+                }
+                final boolean timeChange = rec.cmd == HistoryItem.CMD_CURRENT_TIME
+                        || rec.cmd == HistoryItem.CMD_RESET;
+                if (timeChange) {
+                    // If there is a ridiculously large jump in time, then we won't be
+                    // able to create a good chart with that data, so just ignore the
+                    // times we got before and pretend like our data extends back from
+                    // the time we have now.
+                    // Also, if we are getting a time change and we are less than 5 minutes
+                    // since the start of the history real time, then also use this new
+                    // time to compute the base time, since whatever time we had before is
+                    // pretty much just noise.
+                    if (rec.currentTime > (lastWallTime + (180 * 24 * 60 * 60 * 1000L))
+                            || rec.time < (histStart + (5 * 60 * 1000L))) {
+                        startWallTime = 0;
+                    }
+                    lastWallTime = rec.currentTime;
+                    lastRealtime = rec.time;
+                    if (startWallTime == 0) {
+                        startWallTime = lastWallTime - (lastRealtime - histStart);
+                    }
+                }
+                final boolean data = rec.isDeltaData();
+                if (!data && rec.cmd == HistoryItem.CMD_OVERFLOW) {
+                    continue;
+                }
+
+                if (count == capacity) {
+                    capacity *= 2;
+                    kinds = Arrays.copyOf(kinds, capacity);
+                    times = Arrays.copyOf(times, capacity);
+                    wallTimes = Arrays.copyOf(wallTimes, capacity);
+                    levels = Arrays.copyOf(levels, capacity);
+                    flags = Arrays.copyOf(flags, capacity);
+                }
+                kinds[count] = data ? ROW_DATA : rec.cmd;
+                times[count] = rec.time;
+                if (data) {
+                    levels[count] = rec.batteryLevel;
+                    flags[count] = getFlags(rec);
+                    histDataEnd = rec.time;
+                    aggrStates |= rec.states;
+                    aggrStates2 |= rec.states2;
+                    lastDataCount = count + 1;
+                } else {
+                    wallTimes[count] = rec.currentTime;
+                }
+                count++;
+            }
+            stats.finishIteratingHistoryLocked();
+        }
+
+        // Nothing after the last data point is drawn. Turn real times into wall times in place,
+        // keeping only the time changes that break the chart.
+        int rowCount = 0;
+        int gapCount = 0;
+        long curWalltime = startWallTime;
+        long lastRowRealtime = 0;
+        for (int i = 0; i < lastDataCount; i++) {
+            if (kinds[i] == ROW_DATA) {
+                curWalltime += times[i] - lastRowRealtime;
+                lastRowRealtime = times[i];
+                kinds[rowCount] = ROW_DATA;
+                wallTimes[rowCount] = curWalltime;
+                levels[rowCount] = levels[i];
+                flags[rowCount] = flags[i];
+                rowCount++;
+                continue;
+            }
+            final long lastRowWalltime = curWalltime;
+            final byte cmd = kinds[i];
+            if (cmd == HistoryItem.CMD_CURRENT_TIME || cmd == HistoryItem.CMD_RESET) {
+                if (wallTimes[i] >= startWallTime) {
+                    curWalltime = wallTimes[i];
+                } else {
+                    curWalltime = startWallTime + (times[i] - histStart);
+                }
+                lastRowRealtime = times[i];
+            }
+            if (cmd != HistoryItem.CMD_CURRENT_TIME
+                    || Math.abs(lastRowWalltime - curWalltime) > TIME_CHANGE_GAP) {
+                kinds[rowCount] = ROW_GAP;
+                wallTimes[rowCount] = curWalltime;
+                rowCount++;
+                gapCount++;
+            }
+        }
+
+        return new BatteryHistoryModel(histStart, histDataEnd, startWallTime,
+                lastWallTime + histDataEnd - lastRealtime, aggrStates, aggrStates2, rowCount,
+                gapCount, kinds, wallTimes, levels, flags);
+    }
+
+    private static int getFlags(HistoryItem rec) {
+        int flags = 0;
+        if ((rec.states & HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0) {
+            flags |= FLAG_CHARGING;
+        }
+        if ((rec.states & HistoryItem.STATE_SCREEN_ON_FLAG) != 0) {
+            flags |= FLAG_SCREEN_ON;
+        }
+        if ((rec.states & HistoryItem.STATE_GPS_ON_FLAG) != 0) {
+            flags |= FLAG_GPS_ON;
+        }
+        if ((rec.states2 & HistoryItem.STATE2_FLASHLIGHT_FLAG) != 0) {
+            flags |= FLAG_FLASHLIGHT_ON;
+        }
+        if ((rec.states2 & HistoryItem.STATE2_CAMERA_FLAG) != 0) {
+            flags |= FLAG_CAMERA_ON;
+        }
+        if (isWifiRunning(rec)) {
+            flags |= FLAG_WIFI_RUNNING;
+        }
+        if ((rec.states & HistoryItem.STATE_CPU_RUNNING_FLAG) != 0) {
+            flags |= FLAG_CPU_RUNNING;
+        }
+        return flags | (getPhoneSignalBin(rec) << PHONE_SIGNAL_SHIFT);
+    }
+
+    private static boolean isWifiRunning(HistoryItem rec) {
+        if ((rec.states & (HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
+                | HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
+                | HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0) {
+            return true;
+        }
+        switch ((rec.states2 & HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK)
+                >> HistoryItem.STATE2_WIFI_SUPPL_STATE_SHIFT) {
+            case BatteryStats.WIFI_SUPPL_STATE_DISCONNECTED:
+            case BatteryStats.WIFI_SUPPL_STATE_DORMANT:
+            case BatteryStats.WIFI_SUPPL_STATE_INACTIVE:
+            case BatteryStats.WIFI_SUPPL_STATE_INTERFACE_DISABLED:
+            case BatteryStats.WIFI_SUPPL_STATE_INVALID:
+            case BatteryStats.WIFI_SUPPL_STATE_UNINITIALIZED:
+                return false;
+        }
+        return true;
+    }
+
+    private static int getPhoneSignalBin(HistoryItem rec) {
+        if (((rec.states & HistoryItem.STATE_PHONE_STATE_MASK)
+                >> HistoryItem.STATE_PHONE_STATE_SHIFT) == ServiceState.STATE_POWER_OFF) {
+            return 0;
+        } else if ((rec.states & HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
+            return 1;
+        }
+        return ((rec.states & HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
+                >> HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_SHIFT) + 2;
+    }
+
+    boolean isEmpty() {
+        return mRowCount == 0;
+    }
+
+    /**
+     * @return the rows reduced to pixel columns 0 to {@code width} spanning the wall times from
+     * {@link #startWallTime} to the given end.
+     */
+    Buckets getBuckets(int width, long endWallTime) {
+        if (endWallTime != mBucketsEndWallTime) {
+            mBuckets.clear();
+            mBucketsEndWallTime = endWallTime;
+        }
+        Buckets buckets = mBuckets.get(width);
+        if (buckets == null) {
+            buckets = reduce(width, endWallTime);
+            if (mBuckets.size() >= MAX_CACHED_WIDTHS) {
+                mBuckets.clear();
+            }
+            mBuckets.put(width, buckets);
+        }
+        return buckets;
+    }
+
+    private Buckets reduce(int width, long endWallTime) {
+        final long walltimeChange = endWallTime > startWallTime
+                ? (endWallTime - startWallTime) : 1;
+        final Buckets buckets = new Buckets(Math.min(mRowCount, width + 1 + 2 * mGapCount));
+        int open = -1;
+        for (int i = 0; i < mRowCount; i++) {
+            if (mKinds[i] == ROW_GAP) {
+                buckets.gaps[buckets.add()] = true;
+                open = -1;
+                continue;
+            }
+            int x = (int) (((mWallTimes[i] - startWallTime) * width) / walltimeChange);
+            if (x < 0) {
+                x = 0;
+            }
+            final byte level = mLevels[i];
+            final int flags = mFlags[i];
+            if (open >= 0 && buckets.x[open] == x) {
+                if (level < buckets.minLevels[open]) {
+                    buckets.minLevels[open] = level;
+                }
+                if (level > buckets.maxLevels[open]) {
+                    buckets.maxLevels[open] = level;
+                }
+                buckets.lastLevels[open] = level;
+                buckets.anyFlags[open] |= flags;
+                buckets.lastFlags[open] = flags;
+            } else {
+                open = buckets.add();
+                buckets.gaps[open] = false;
+                buckets.x[open] = x;
+                buckets.firstLevels[open] = level;
+                buckets.minLevels[open] = level;
+                buckets.maxLevels[open] = level;
+                buckets.lastLevels[open] = level;
+                buckets.anyFlags[open] = flags;
+                buckets.lastFlags[open] = flags;
+            }
+        }
+        return buckets;
+    }
+}
@@ -77,6 +77,10 @@ public class BatteryHistoryPreference extends Preference {
         ((TextView) view.findViewById(R.id.estimation)).setText(mBatteryInfo.remainingLabel);
         UsageView usageView = (UsageView) view.findViewById(R.id.battery_usage);
         usageView.findViewById(R.id.label_group).setAlpha(.7f);
-        mBatteryInfo.bindHistory(usageView);
+        if (usageView.getTag() != mBatteryInfo) {
+            // Binding parses the whole history, only do it for new stats or a new view.
+            mBatteryInfo.bindHistory(usageView);
+            usageView.setTag(mBatteryInfo);
+        }
     }
 }
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+
+import com.android.internal.os.BatterySipper;
+import com.android.internal.os.BatteryStatsHelper;
+
+import java.util.List;
+
+/**
+ * Battery usage since the last charge, computed once by {@link BatterySnapshotProvider} and
+ * shared by every screen showing it. The helper must not be refreshed by its users.
+ */
+public final class BatterySnapshot {
+
+    private final BatteryStatsHelper mHelper;
+    private final long mCreationTime;
+
+    private final SparseArray<BatterySipper> mSippersByUid = new SparseArray<>();
+    private final ArrayMap<String, BatterySipper> mSippersByPackage = new ArrayMap<>();
+
+    BatterySnapshot(BatteryStatsHelper helper) {
+        mHelper = helper;
+        mCreationTime = SystemClock.elapsedRealtime();
+
+        final List<BatterySipper> usageList = helper.getUsageList();
+        final int N = usageList.size();
+        for (int i = 0; i < N; i++) {
+            final BatterySipper sipper = usageList.get(i);
+            final int uid = sipper.getUid();
+            if (mSippersByUid.indexOfKey(uid) < 0) {
+                mSippersByUid.put(uid, sipper);
+            }
+            final String[] packages = sipper.getPackages();
+            if (packages != null) {
+                for (String packageName : packages) {
+                    if (!mSippersByPackage.containsKey(packageName)) {
+                        mSippersByPackage.put(packageName, sipper);
+                    }
+                }
+            }
+        }
+    }
+
+    public BatteryStatsHelper getHelper() {
+        return mHelper;
+    }
+
+    long getCreationTime() {
+        return mCreationTime;
+    }
+
+    /**
+     * @return the first entry of the usage list for the given uid, or null.
+     */
+    public BatterySipper getSipperForUid(int uid) {
+        return mSippersByUid.get(uid);
+    }
+
+    /**
+     * @return the first entry of the usage list including the given package, or null.
+     */
+    public BatterySipper getSipperForPackage(String packageName) {
+        return mSippersByPackage.get(packageName);
+    }
+}
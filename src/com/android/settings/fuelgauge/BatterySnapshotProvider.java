@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.AsyncTask;
+import android.os.BatteryManager;
+import android.os.BatteryStats;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.os.UserManager;
+
+import com.android.internal.os.BatteryStatsHelper;
+
+import java.util.ArrayList;
+
+/**
+ * Process wide source of {@link BatterySnapshot}s, so that the fuel gauge screens and app
+ * details share one battery stats computation instead of each running their own.
+ *
+ * A snapshot is reused for {@link #MAX_AGE}, or until the battery level or charging state
+ * changes. Concurrent requests wait for the same computation, which never runs on the main
+ * thread.
+ */
+public final class BatterySnapshotProvider {
+
+    private static final long MAX_AGE = 30 * 1000;
+
+    public interface Callback {
+        /**
+         * Called on the main thread once a snapshot is available.
+         */
+        void onSnapshotLoaded(BatterySnapshot snapshot);
+    }
+
+    private static BatterySnapshotProvider sInstance;
+
+    private final Context mContext;
+    private final UserManager mUm;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Only one snapshot is computed at a time, blocking requests wait for it.
+    private final Object mLoadLock = new Object();
+
+    // ----- following protected by this -----
+    private BatterySnapshot mSnapshot;
+    // Incremented on invalidation, so that a computation started before is not cached.
+    private int mGeneration;
+    private final ArrayList<Callback> mCallbacks = new ArrayList<>();
+
+    // Releases the helper of an expired snapshot, it holds the stats of every uid.
+    private final Runnable mExpireSnapshot = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (BatterySnapshotProvider.this) {
+                if (mSnapshot != null && !isValidLocked()) {
+                    mSnapshot = null;
+                }
+            }
+        }
+    };
+
+    // ----- following only used on the main thread -----
+    private int mLevel = -1;
+    private int mStatus = -1;
+    private int mPlugged = -1;
+
+    private final BroadcastReceiver mBatteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            final int status = intent.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+            final int plugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, -1);
+            if (level != mLevel || status != mStatus || plugged != mPlugged) {
+                mLevel = level;
+                mStatus = status;
+                mPlugged = plugged;
+                invalidate();
+            }
+        }
+    };
+
+    public static synchronized BatterySnapshotProvider getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BatterySnapshotProvider(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private BatterySnapshotProvider(Context context) {
+        mContext = context;
+        mUm = (UserManager) context.getSystemService(Context.USER_SERVICE);
+        mContext.registerReceiver(mBatteryReceiver,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED), null, mHandler);
+    }
+
+    /**
+     * Drops the current snapshot, the next request computes a new one.
+     */
+    public synchronized void invalidate() {
+        mSnapshot = null;
+        mHandler.removeCallbacks(mExpireSnapshot);
+        mGeneration++;
+    }
+
+    /**
+     * @return an up to date snapshot, computing it if needed. Must not be called on the main
+     * thread.
+     */
+    public BatterySnapshot getSnapshot() {
+        synchronized (mLoadLock) {
+            final int generation;
+            synchronized (this) {
+                if (isValidLocked()) {
+                    return mSnapshot;
+                }
+                generation = mGeneration;
+            }
+            final BatteryStatsHelper helper = new BatteryStatsHelper(mContext, true);
+            helper.create((Bundle) null);
+            helper.refreshStats(BatteryStats.STATS_SINCE_CHARGED, mUm.getUserProfiles());
+            final BatterySnapshot snapshot = new BatterySnapshot(helper);
+            synchronized (this) {
+                if (generation == mGeneration) {
+                    mSnapshot = snapshot;
+                    mHandler.removeCallbacks(mExpireSnapshot);
+                    mHandler.postDelayed(mExpireSnapshot, MAX_AGE);
+                }
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Delivers an up to date snapshot to the callback, right away if there is one, otherwise
+     * once computed in the background.
+     */
+    public void loadSnapshot(Callback callback) {
+        final BatterySnapshot snapshot;
+        synchronized (this) {
+            if (isValidLocked()) {
+                snapshot = mSnapshot;
+            } else {
+                mCallbacks.add(callback);
+                if (mCallbacks.size() > 1) {
+                    // Already being computed.
+                    return;
+                }
+                snapshot = null;
+            }
+        }
+        if (snapshot != null) {
+            callback.onSnapshotLoaded(snapshot);
+            return;
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final BatterySnapshot snapshot = getSnapshot();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        final Callback[] callbacks;
+                        synchronized (BatterySnapshotProvider.this) {
+                            callbacks = mCallbacks.toArray(new Callback[mCallbacks.size()]);
+                            mCallbacks.clear();
+                        }
+                        for (Callback callback : callbacks) {
+                            callback.onSnapshotLoaded(snapshot);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stops a pending {@link #loadSnapshot} from calling back.
+     */
+    public synchronized void cancelLoad(Callback callback) {
+        mCallbacks.remove(callback);
+    }
+
+    private boolean isValidLocked() {
+        return mSnapshot != null
+                && SystemClock.elapsedRealtime() - mSnapshot.getCreationTime() < MAX_AGE;
+    }
+}
@@ -20,6 +20,7 @@ import android.content.Context;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.support.v7.preference.PreferenceViewHolder;
+import android.text.TextUtils;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
@@ -48,14 +49,23 @@ public class PowerGaugePreference extends TintablePreference {
         mIconSize = context.getResources().getDimensionPixelSize(R.dimen.app_icon_size);
     }
 
-    public void setContentDescription(String name) {
-        mContentDescription = name;
-        notifyChanged();
+    public void setContentDescription(CharSequence name) {
+        if (!TextUtils.equals(name, mContentDescription)) {
+            mContentDescription = name;
+            notifyChanged();
+        }
     }
 
     public void setPercent(double percentOfMax, double percentOfTotal) {
-        mProgress = Utils.formatPercentage((int) (percentOfTotal + 0.5));
-        notifyChanged();
+        final CharSequence progress = Utils.formatPercentage((int) (percentOfTotal + 0.5));
+        if (!TextUtils.equals(progress, mProgress)) {
+            mProgress = progress;
+            notifyChanged();
+        }
+    }
+
+    void setInfo(BatteryEntry info) {
+        mInfo = info;
     }
 
     BatteryEntry getInfo() {
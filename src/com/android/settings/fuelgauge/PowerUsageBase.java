@@ -20,7 +20,6 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.os.BatteryStats;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -41,9 +40,12 @@ public abstract class PowerUsageBase extends SettingsPreferenceFragment {
     // +1 to allow ordering for PowerUsageSummary.
     private static final int MENU_STATS_REFRESH = Menu.FIRST + 1;
 
+    // Shared with other screens, null until the first snapshot is loaded.
     protected BatteryStatsHelper mStatsHelper;
     protected UserManager mUm;
 
+    private BatterySnapshotProvider mSnapshotProvider;
+
     private String mBatteryLevel;
     private String mBatteryStatus;
 
@@ -51,22 +53,15 @@ public abstract class PowerUsageBase extends SettingsPreferenceFragment {
     public void onAttach(Activity activity) {
         super.onAttach(activity);
         mUm = (UserManager) activity.getSystemService(Context.USER_SERVICE);
-        mStatsHelper = new BatteryStatsHelper(activity, true);
+        mSnapshotProvider = BatterySnapshotProvider.getInstance(activity);
     }
 
     @Override
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
-        mStatsHelper.create(icicle);
         setHasOptionsMenu(true);
     }
 
-    @Override
-    public void onStart() {
-        super.onStart();
-        mStatsHelper.clearStats();
-    }
-
     @Override
     public void onResume() {
         super.onResume();
@@ -75,7 +70,7 @@ public abstract class PowerUsageBase extends SettingsPreferenceFragment {
                 new IntentFilter(Intent.ACTION_BATTERY_CHANGED)));
         if (mHandler.hasMessages(MSG_REFRESH_STATS)) {
             mHandler.removeMessages(MSG_REFRESH_STATS);
-            mStatsHelper.clearStats();
+            mSnapshotProvider.invalidate();
         }
     }
 
@@ -89,14 +84,7 @@ public abstract class PowerUsageBase extends SettingsPreferenceFragment {
     public void onStop() {
         super.onStop();
         mHandler.removeMessages(MSG_REFRESH_STATS);
-    }
-
-    @Override
-    public void onDestroy() {
-        super.onDestroy();
-        if (getActivity().isChangingConfigurations()) {
-            mStatsHelper.storeState();
-        }
+        mSnapshotProvider.cancelLoad(mSnapshotCallback);
     }
 
     @Override
@@ -112,7 +100,7 @@ public abstract class PowerUsageBase extends SettingsPreferenceFragment {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case MENU_STATS_REFRESH:
-                mStatsHelper.clearStats();
+                mSnapshotProvider.invalidate();
                 refreshStats();
                 mHandler.removeMessages(MSG_REFRESH_STATS);
                 return true;
@@ -120,8 +108,18 @@ public abstract class PowerUsageBase extends SettingsPreferenceFragment {
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Loads the battery stats in the background, or picks up those already loaded by another
+     * screen, then calls {@link #refreshUi}.
+     */
     protected void refreshStats() {
-        mStatsHelper.refreshStats(BatteryStats.STATS_SINCE_CHARGED, mUm.getUserProfiles());
+        mSnapshotProvider.loadSnapshot(mSnapshotCallback);
+    }
+
+    /**
+     * Called on the main thread once {@link #mStatsHelper} holds up to date stats.
+     */
+    protected void refreshUi() {
     }
 
     protected void updatePreference(BatteryHistoryPreference historyPref) {
@@ -149,13 +147,25 @@ public abstract class PowerUsageBase extends SettingsPreferenceFragment {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_REFRESH_STATS:
-                    mStatsHelper.clearStats();
+                    mSnapshotProvider.invalidate();
                     refreshStats();
                     break;
             }
         }
     };
 
+    private final BatterySnapshotProvider.Callback mSnapshotCallback =
+            new BatterySnapshotProvider.Callback() {
+        @Override
+        public void onSnapshotLoaded(BatterySnapshot snapshot) {
+            if (getActivity() == null) {
+                return;
+            }
+            mStatsHelper = snapshot.getHelper();
+            refreshUi();
+        }
+    };
+
     private BroadcastReceiver mBatteryInfoReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
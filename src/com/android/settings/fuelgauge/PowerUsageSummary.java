@@ -19,6 +19,7 @@ package com.android.settings.fuelgauge;
 import android.app.Activity;
 import android.content.Context;
 import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
 import android.os.BatteryStats;
 import android.os.Build;
 import android.os.Bundle;
@@ -32,6 +33,7 @@ import android.support.v14.preference.SwitchPreference;
 import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.util.TypedValue;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -41,6 +43,7 @@ import android.view.SubMenu;
 import com.android.internal.logging.MetricsProto.MetricsEvent;
 import com.android.internal.os.BatterySipper;
 import com.android.internal.os.BatterySipper.DrainType;
+import com.android.internal.os.BatteryStatsHelper;
 import com.android.internal.os.PowerProfile;
 import com.android.settings.R;
 import com.android.settings.Settings.HighPowerApplicationsActivity;
@@ -89,6 +92,8 @@ public class PowerUsageSummary extends PowerUsageBase {
     private PreferenceGroup mAppListGroup;
     private SwitchPreference mBatteryPct;
 
+    private RowsLoader mRowsLoader;
+
     private int mStatsType = BatteryStats.STATS_SINCE_CHARGED;
     private boolean isShowBatteryPct;
 
@@ -128,6 +133,10 @@ public class PowerUsageSummary extends PowerUsageBase {
 
     @Override
     public void onPause() {
+        if (mRowsLoader != null) {
+            mRowsLoader.cancel(false);
+            mRowsLoader = null;
+        }
         BatteryEntry.stopRequestQueue();
         mHandler.removeMessages(BatteryEntry.MSG_UPDATE_NAME_ICON);
         super.onPause();
@@ -285,10 +294,13 @@ public class PowerUsageSummary extends PowerUsageBase {
      * We want to coalesce some UIDs. For example, dex2oat runs under a shared gid that
      * exists for all users of the same app. We detect this case and merge the power use
      * for dex2oat to the device OWNER's use of the app.
+     * The given sippers are shared with other screens and left untouched, merged ones are
+     * copies.
      * @return A sorted list of apps using power.
      */
     private static List<BatterySipper> getCoalescedUsageList(final List<BatterySipper> sippers) {
         final SparseArray<BatterySipper> uidList = new SparseArray<>();
+        final SparseBooleanArray copiedUids = new SparseBooleanArray();
 
         final ArrayList<BatterySipper> results = new ArrayList<>();
         final int numSippers = sippers.size();
@@ -296,6 +308,7 @@ public class PowerUsageSummary extends PowerUsageBase {
             BatterySipper sipper = sippers.get(i);
             if (sipper.getUid() > 0) {
                 int realUid = sipper.getUid();
+                boolean copied = false;
 
                 // Check if this UID is a shared GID. If so, we combine it with the OWNER's
                 // actual app UID.
@@ -321,15 +334,27 @@ public class PowerUsageSummary extends PowerUsageBase {
                     newSipper.packageWithHighestDrain = sipper.packageWithHighestDrain;
                     newSipper.mPackages = sipper.mPackages;
                     sipper = newSipper;
+                    copied = true;
                 }
 
                 int index = uidList.indexOfKey(realUid);
                 if (index < 0) {
                     // New entry.
                     uidList.put(realUid, sipper);
+                    copiedUids.put(realUid, copied);
                 } else {
                     // Combine BatterySippers if we already have one with this UID.
-                    final BatterySipper existingSipper = uidList.valueAt(index);
+                    BatterySipper existingSipper = uidList.valueAt(index);
+                    if (!copiedUids.get(realUid)) {
+                        final BatterySipper copy = new BatterySipper(existingSipper.drainType,
+                                existingSipper.uidObj, 0.0);
+                        copy.add(existingSipper);
+                        copy.packageWithHighestDrain = existingSipper.packageWithHighestDrain;
+                        copy.mPackages = existingSipper.mPackages;
+                        uidList.setValueAt(index, copy);
+                        copiedUids.put(realUid, true);
+                        existingSipper = copy;
+                    }
                     existingSipper.add(sipper);
                     if (existingSipper.packageWithHighestDrain == null
                             && sipper.packageWithHighestDrain != null) {
@@ -371,34 +396,120 @@ public class PowerUsageSummary extends PowerUsageBase {
         return results;
     }
 
-    protected void refreshStats() {
-        super.refreshStats();
+    @Override
+    protected void refreshUi() {
         updatePreference(mHistPref);
+        if (mRowsLoader != null) {
+            mRowsLoader.cancel(false);
+        }
+        mRowsLoader = new RowsLoader(getActivity(), mStatsHelper, mStatsType);
+        mRowsLoader.execute();
+    }
+
+    /**
+     * Applies rows computed by {@link RowsLoader}, reusing the preferences already shown for the
+     * same keys. Only the icons of apps not seen before are still placeholders, they are filled
+     * in as {@link BatteryEntry} loads them.
+     */
+    private void applyRows(List<UsageRow> rows) {
         cacheRemoveAllPrefs(mAppListGroup);
         mAppListGroup.setOrderingAsAdded(false);
-        boolean addedSome = false;
-
-        final PowerProfile powerProfile = mStatsHelper.getPowerProfile();
-        final BatteryStats stats = mStatsHelper.getStats();
-        final double averagePower = powerProfile.getAveragePower(PowerProfile.POWER_SCREEN_FULL);
 
         TypedValue value = new TypedValue();
         getContext().getTheme().resolveAttribute(android.R.attr.colorControlNormal, value, true);
         int colorControl = getContext().getColor(value.resourceId);
 
-        if (averagePower >= MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP || USE_FAKE_DATA) {
+        final int numRows = rows.size();
+        for (int i = 0; i < numRows; i++) {
+            final UsageRow row = rows.get(i);
+            PowerGaugePreference pref = (PowerGaugePreference) getCachedPreference(row.key);
+            if (pref == null) {
+                pref = new PowerGaugePreference(getPrefContext(), row.icon,
+                        row.contentDescription, row.entry);
+                pref.setKey(row.key);
+            } else {
+                pref.setInfo(row.entry);
+                pref.setIcon(row.icon);
+                pref.setContentDescription(row.contentDescription);
+            }
+            pref.setTitle(row.entry.getLabel());
+            pref.setOrder(i + 1);
+            pref.setPercent(row.percentOfMax, row.percentOfTotal);
+            if (row.tint) {
+                pref.setTint(colorControl);
+            }
+            mAppListGroup.addPreference(pref);
+        }
+        if (numRows == 0) {
+            addNotAvailableMessage();
+        }
+        removeCachedPrefs(mAppListGroup);
+
+        BatteryEntry.startRequestQueue();
+    }
+
+    /**
+     * One app or subsystem of the list, fully computed off the main thread.
+     */
+    private static final class UsageRow {
+        final String key;
+        final BatteryEntry entry;
+        final Drawable icon;
+        final CharSequence contentDescription;
+        final double percentOfMax;
+        final double percentOfTotal;
+        final boolean tint;
+
+        UsageRow(String key, BatteryEntry entry, Drawable icon, CharSequence contentDescription,
+                double percentOfMax, double percentOfTotal, boolean tint) {
+            this.key = key;
+            this.entry = entry;
+            this.icon = icon;
+            this.contentDescription = contentDescription;
+            this.percentOfMax = percentOfMax;
+            this.percentOfTotal = percentOfTotal;
+            this.tint = tint;
+        }
+    }
+
+    /**
+     * Coalesces and filters the usage list, and resolves labels and badged icons, in the
+     * background.
+     */
+    private class RowsLoader extends AsyncTask<Void, Void, List<UsageRow>> {
+        private final Context mContext;
+        private final BatteryStatsHelper mHelper;
+        private final int mType;
+
+        RowsLoader(Context context, BatteryStatsHelper helper, int statsType) {
+            mContext = context;
+            mHelper = helper;
+            mType = statsType;
+        }
+
+        @Override
+        protected List<UsageRow> doInBackground(Void... params) {
+            final ArrayList<UsageRow> rows = new ArrayList<>();
+            final PowerProfile powerProfile = mHelper.getPowerProfile();
+            final BatteryStats stats = mHelper.getStats();
+            final double averagePower =
+                    powerProfile.getAveragePower(PowerProfile.POWER_SCREEN_FULL);
+            if (averagePower < MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP && !USE_FAKE_DATA) {
+                return rows;
+            }
+
             final List<BatterySipper> usageList = getCoalescedUsageList(
-                    USE_FAKE_DATA ? getFakeStats() : mStatsHelper.getUsageList());
+                    USE_FAKE_DATA ? getFakeStats() : mHelper.getUsageList());
 
             final int dischargeAmount = USE_FAKE_DATA ? 5000
-                    : stats != null ? stats.getDischargeAmount(mStatsType) : 0;
+                    : stats != null ? stats.getDischargeAmount(mType) : 0;
             final int numSippers = usageList.size();
-            for (int i = 0; i < numSippers; i++) {
+            for (int i = 0; i < numSippers && !isCancelled(); i++) {
                 final BatterySipper sipper = usageList.get(i);
                 if ((sipper.totalPowerMah * SECONDS_IN_HOUR) < MIN_POWER_THRESHOLD_MILLI_AMP) {
                     continue;
                 }
-                double totalPower = USE_FAKE_DATA ? 4000 : mStatsHelper.getTotalPower();
+                double totalPower = USE_FAKE_DATA ? 4000 : mHelper.getTotalPower();
                 final double percentOfTotal =
                         ((sipper.totalPowerMah / totalPower) * dischargeAmount);
                 if (((int) (percentOfTotal + .5)) < 1) {
@@ -407,7 +518,7 @@ public class PowerUsageSummary extends PowerUsageBase {
                 if (sipper.drainType == BatterySipper.DrainType.OVERCOUNTED) {
                     // Don't show over-counted unless it is at least 2/3 the size of
                     // the largest real entry, and its percent of total is more significant
-                    if (sipper.totalPowerMah < ((mStatsHelper.getMaxRealPower()*2)/3)) {
+                    if (sipper.totalPowerMah < ((mHelper.getMaxRealPower()*2)/3)) {
                         continue;
                     }
                     if (percentOfTotal < 10) {
@@ -420,7 +531,7 @@ public class PowerUsageSummary extends PowerUsageBase {
                 if (sipper.drainType == BatterySipper.DrainType.UNACCOUNTED) {
                     // Don't show over-counted unless it is at least 1/2 the size of
                     // the largest real entry, and its percent of total is more significant
-                    if (sipper.totalPowerMah < (mStatsHelper.getMaxRealPower()/2)) {
+                    if (sipper.totalPowerMah < (mHelper.getMaxRealPower()/2)) {
                         continue;
                     }
                     if (percentOfTotal < 5) {
@@ -430,50 +541,45 @@ public class PowerUsageSummary extends PowerUsageBase {
                         continue;
                     }
                 }
-                final UserHandle userHandle = new UserHandle(UserHandle.getUserId(sipper.getUid()));
-                final BatteryEntry entry = new BatteryEntry(getActivity(), mHandler, mUm, sipper);
+                final UserHandle userHandle =
+                        new UserHandle(UserHandle.getUserId(sipper.getUid()));
+                final BatteryEntry entry = new BatteryEntry(mContext, mHandler, mUm, sipper);
                 final Drawable badgedIcon = mUm.getBadgedIconForUser(entry.getIcon(),
                         userHandle);
-                final CharSequence contentDescription = mUm.getBadgedLabelForUser(entry.getLabel(),
-                        userHandle);
-                final String key = sipper.drainType == DrainType.APP ? sipper.getPackages() != null
+                final CharSequence contentDescription =
+                        mUm.getBadgedLabelForUser(entry.getLabel(), userHandle);
+                // Apps are keyed by uid, so that their icon can be filled in once loaded.
+                final String key = sipper.uidObj != null
+                        ? Integer.toString(sipper.uidObj.getUid())
+                        : sipper.drainType == DrainType.APP ? sipper.getPackages() != null
                         ? TextUtils.concat(sipper.getPackages()).toString()
                         : String.valueOf(sipper.getUid())
                         : sipper.drainType.toString();
-                PowerGaugePreference pref = (PowerGaugePreference) getCachedPreference(key);
-                if (pref == null) {
-                    pref = new PowerGaugePreference(getPrefContext(), badgedIcon,
-                            contentDescription, entry);
-                    pref.setKey(key);
-                }
 
                 final double percentOfMax = (sipper.totalPowerMah * 100)
-                        / mStatsHelper.getMaxPower();
-                sipper.percent = percentOfTotal;
-                pref.setTitle(entry.getLabel());
-                pref.setOrder(i + 1);
-                pref.setPercent(percentOfMax, percentOfTotal);
-                if (sipper.uidObj != null) {
-                    pref.setKey(Integer.toString(sipper.uidObj.getUid()));
-                }
-                if ((sipper.drainType != DrainType.APP || sipper.uidObj.getUid() == 0)
-                         && sipper.drainType != DrainType.USER) {
-                    pref.setTint(colorControl);
-                }
-                addedSome = true;
-                mAppListGroup.addPreference(pref);
-                if (mAppListGroup.getPreferenceCount() - getCachedCount()
-                        > (MAX_ITEMS_TO_LIST + 1)) {
+                        / mHelper.getMaxPower();
+                final boolean tint = (sipper.drainType != DrainType.APP
+                        || sipper.uidObj.getUid() == 0)
+                        && sipper.drainType != DrainType.USER;
+                rows.add(new UsageRow(key, entry, badgedIcon, contentDescription, percentOfMax,
+                        percentOfTotal, tint));
+                if (rows.size() > (MAX_ITEMS_TO_LIST + 1)) {
                     break;
                 }
             }
+            return rows;
         }
-        if (!addedSome) {
-            addNotAvailableMessage();
-        }
-        removeCachedPrefs(mAppListGroup);
 
-        BatteryEntry.startRequestQueue();
+        @Override
+        protected void onPostExecute(List<UsageRow> rows) {
+            if (mRowsLoader == this) {
+                mRowsLoader = null;
+            }
+            if (getActivity() == null) {
+                return;
+            }
+            applyRows(rows);
+        }
     }
 
     private static List<BatterySipper> getFakeStats() {
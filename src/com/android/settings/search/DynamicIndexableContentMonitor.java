@@ -50,7 +50,10 @@ import com.android.settings.inputmethod.InputMethodAndLanguageSettings;
 import com.android.settings.print.PrintSettingsFragment;
 
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public final class DynamicIndexableContentMonitor extends PackageMonitor implements
         InputManager.InputDeviceListener,
@@ -59,12 +62,23 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
 
     private static final long DELAY_PROCESS_PACKAGE_CHANGE = 2000;
 
+    // Window during which reindex requests are coalesced, and max number of indexable classes
+    // reindexed per window. Remaining classes are reindexed in the following windows.
+    private static final long REINDEX_COALESCING_WINDOW = 2000;
+    private static final int MAX_REINDEX_PER_WINDOW = 2;
+
     private static final int MSG_PACKAGE_AVAILABLE = 1;
     private static final int MSG_PACKAGE_UNAVAILABLE = 2;
+    private static final int MSG_REINDEX = 3;
 
     private final List<String> mAccessibilityServices = new ArrayList<String>();
     private final List<String> mImeServices = new ArrayList<String>();
 
+    // Indexable class names waiting to be reindexed, mapped to whether their data has to be
+    // deleted first. Only accessed from the main thread.
+    private final LinkedHashMap<String, Boolean> mPendingReindex =
+            new LinkedHashMap<String, Boolean>();
+
     private final Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
@@ -78,6 +92,10 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                     String packageName = (String) msg.obj;
                     handlePackageUnavailable(packageName);
                 } break;
+
+                case MSG_REINDEX: {
+                    handleReindex();
+                } break;
             }
         }
     };
@@ -161,6 +179,9 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
 
         // Start tracking packages.
         register(activity, Looper.getMainLooper(), UserHandle.CURRENT, false);
+
+        // Process the changes seen while Settings was not visible
+        scheduleReindex();
     }
 
     @Override
@@ -180,6 +201,11 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
 
         mAccessibilityServices.clear();
         mImeServices.clear();
+
+        // Pending requests wait for the next register(). If the activity goes away first, the
+        // index update of the next launch picks up the changes.
+        mHandler.removeMessages(MSG_REINDEX);
+        mRegistered = false;
     }
 
     // Covers installed, appeared external storage with the package, upgraded.
@@ -214,8 +240,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
 
     @Override
     public void onInputDeviceAdded(int deviceId) {
-        Index.getInstance(mContext).updateFromClassNameResource(
-                InputMethodAndLanguageSettings.class.getName(), false, true);
+        requestReindex(InputMethodAndLanguageSettings.class.getName(), false);
     }
 
     @Override
@@ -225,8 +250,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
 
     @Override
     public void onInputDeviceChanged(int deviceId) {
-        Index.getInstance(mContext).updateFromClassNameResource(
-                InputMethodAndLanguageSettings.class.getName(), true, true);
+        requestReindex(InputMethodAndLanguageSettings.class.getName(), true);
     }
 
     private void postMessage(int what, String packageName) {
@@ -234,14 +258,46 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
         mHandler.sendMessageDelayed(message, DELAY_PROCESS_PACKAGE_CHANGE);
     }
 
+    /**
+     * Queue a reindex of an indexable class. Requests for the same class are merged until the
+     * end of the current coalescing window, so a burst of changes (bulk installs, OTA app
+     * updates) costs one reindex per affected class.
+     */
+    private void requestReindex(String className, boolean rebuild) {
+        final Boolean pendingRebuild = mPendingReindex.get(className);
+        mPendingReindex.put(className, rebuild || (pendingRebuild != null && pendingRebuild));
+        scheduleReindex();
+    }
+
+    private void scheduleReindex() {
+        if (mRegistered && !mPendingReindex.isEmpty() && !mHandler.hasMessages(MSG_REINDEX)) {
+            mHandler.sendEmptyMessageDelayed(MSG_REINDEX, REINDEX_COALESCING_WINDOW);
+        }
+    }
+
+    private void handleReindex() {
+        if (!mRegistered) {
+            return;
+        }
+        final Iterator<Map.Entry<String, Boolean>> it = mPendingReindex.entrySet().iterator();
+        int budget = MAX_REINDEX_PER_WINDOW;
+        while (budget > 0 && it.hasNext()) {
+            final Map.Entry<String, Boolean> entry = it.next();
+            it.remove();
+            Index.getInstance(mContext).updateFromClassNameResource(entry.getKey(),
+                    entry.getValue(), true);
+            budget--;
+        }
+        scheduleReindex();
+    }
+
     private void handlePackageAvailable(String packageName) {
         if (!mAccessibilityServices.contains(packageName)) {
             final Intent intent = getAccessibilityServiceIntent(packageName);
             List<?> services = mContext.getPackageManager().queryIntentServices(intent, 0);
             if (services != null && !services.isEmpty()) {
                 mAccessibilityServices.add(packageName);
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        AccessibilitySettings.class.getName(), false, true);
+                requestReindex(AccessibilitySettings.class.getName(), false);
             }
         }
 
@@ -251,8 +307,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                 List<?> services = mContext.getPackageManager().queryIntentServices(intent, 0);
                 if (services != null && !services.isEmpty()) {
                     mImeServices.add(packageName);
-                    Index.getInstance(mContext).updateFromClassNameResource(
-                            InputMethodAndLanguageSettings.class.getName(), false, true);
+                    requestReindex(InputMethodAndLanguageSettings.class.getName(), false);
                 }
             }
         }
@@ -262,16 +317,14 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
         final int accessibilityIndex = mAccessibilityServices.indexOf(packageName);
         if (accessibilityIndex >= 0) {
             mAccessibilityServices.remove(accessibilityIndex);
-            Index.getInstance(mContext).updateFromClassNameResource(
-                    AccessibilitySettings.class.getName(), true, true);
+            requestReindex(AccessibilitySettings.class.getName(), true);
         }
 
         if (mHasFeatureIme) {
             final int imeIndex = mImeServices.indexOf(packageName);
             if (imeIndex >= 0) {
                 mImeServices.remove(imeIndex);
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        InputMethodAndLanguageSettings.class.getName(), true, true);
+                requestReindex(InputMethodAndLanguageSettings.class.getName(), true);
             }
         }
     }
@@ -286,8 +339,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
     @Override
     public void onLoadFinished(Loader<List<PrintServiceInfo>> loader,
             List<PrintServiceInfo> services) {
-        Index.getInstance(mContext).updateFromClassNameResource(
-                PrintSettingsFragment.class.getName(), false, true);
+        requestReindex(PrintSettingsFragment.class.getName(), false);
     }
 
     @Override
@@ -304,8 +356,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
         @Override
         public void onChange(boolean selfChange, Uri uri) {
             if (UserDictionary.Words.CONTENT_URI.equals(uri)) {
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        InputMethodAndLanguageSettings.class.getName(), true, true);
+                requestReindex(InputMethodAndLanguageSettings.class.getName(), true);
             }
         };
     }
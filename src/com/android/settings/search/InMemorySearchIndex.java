@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+
+import com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import com.android.settings.search.IndexDatabaseHelper.Tables;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory copy of the enabled Index rows of one locale.
+ *
+ * Tokens are kept in sorted arrays with their postings as primitive int arrays, so a prefix
+ * lookup is a binary search followed by a scan of the matching tokens. Matching mimics the fts4
+ * "simple" tokenizer used by {@link Tables#TABLE_PREFS_INDEX} and the MATCH queries of
+ * {@link Index} for single-term queries: primary columns are the title and keywords, secondary
+ * columns are the summaries and entries, and results are ordered by
+ * {@link IndexColumns#DATA_RANK} then {@link IndexColumns#DATA_TITLE} with the primary results
+ * first.
+ *
+ * Multi-term queries are not supported, see {@link #canSearch(String)}: the column filters of
+ * those MATCH queries only bind the term that follows them, so Index runs them in SQL.
+ */
+class InMemorySearchIndex {
+
+    private static final String[] PRIMARY_COLUMNS = {
+            IndexColumns.DATA_TITLE,
+            IndexColumns.DATA_TITLE_NORMALIZED,
+            IndexColumns.DATA_KEYWORDS
+    };
+
+    private static final String[] SECONDARY_COLUMNS = {
+            IndexColumns.DATA_SUMMARY_ON,
+            IndexColumns.DATA_SUMMARY_ON_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_OFF,
+            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED,
+            IndexColumns.DATA_ENTRIES
+    };
+
+    private static final int[] EMPTY_POSTINGS = new int[0];
+
+    private final String mLocale;
+    private final String[] mColumnNames;
+    private final Object[][] mRows;
+    private final int[] mRanks;
+    private final String[] mTitles;
+    private final TokenIndex mPrimary;
+    private final TokenIndex mSecondary;
+
+    private InMemorySearchIndex(String locale, String[] columnNames, Object[][] rows, int[] ranks,
+            String[] titles, TokenIndex primary, TokenIndex secondary) {
+        mLocale = locale;
+        mColumnNames = columnNames;
+        mRows = rows;
+        mRanks = ranks;
+        mTitles = titles;
+        mPrimary = primary;
+        mSecondary = secondary;
+    }
+
+    /**
+     * Loads the enabled rows of the given locale.
+     *
+     * @param selectColumns the columns returned by {@link #search(String, CancellationSignal)}.
+     *                      The first one must be {@link IndexColumns#DATA_RANK} and the
+     *                      second one {@link IndexColumns#DATA_TITLE}.
+     */
+    static InMemorySearchIndex load(SQLiteDatabase database, String locale,
+            String[] selectColumns) {
+        final int selectCount = selectColumns.length;
+        final String[] projection = new String[selectCount + PRIMARY_COLUMNS.length
+                + SECONDARY_COLUMNS.length];
+        System.arraycopy(selectColumns, 0, projection, 0, selectCount);
+        System.arraycopy(PRIMARY_COLUMNS, 0, projection, selectCount, PRIMARY_COLUMNS.length);
+        System.arraycopy(SECONDARY_COLUMNS, 0, projection, selectCount + PRIMARY_COLUMNS.length,
+                SECONDARY_COLUMNS.length);
+
+        final List<Object[]> rows = new ArrayList<Object[]>();
+        final TokenIndex.Builder primary = new TokenIndex.Builder();
+        final TokenIndex.Builder secondary = new TokenIndex.Builder();
+
+        final Cursor cursor = database.query(Tables.TABLE_PREFS_INDEX, projection,
+                IndexColumns.LOCALE + " = ? AND " + IndexColumns.ENABLED + " = 1",
+                new String[] { locale }, null, null, "docid");
+        try {
+            while (cursor.moveToNext()) {
+                final int rowId = rows.size();
+                final Object[] row = new Object[selectCount];
+                for (int n = 0; n < selectCount; n++) {
+                    row[n] = cursor.getString(n);
+                }
+                rows.add(row);
+                for (int n = 0; n < PRIMARY_COLUMNS.length; n++) {
+                    primary.add(rowId, cursor.getString(selectCount + n));
+                }
+                for (int n = 0; n < SECONDARY_COLUMNS.length; n++) {
+                    secondary.add(rowId, cursor.getString(
+                            selectCount + PRIMARY_COLUMNS.length + n));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        final int count = rows.size();
+        final int[] ranks = new int[count];
+        final String[] titles = new String[count];
+        for (int n = 0; n < count; n++) {
+            ranks[n] = parseInt((String) rows.get(n)[0]);
+            titles[n] = (String) rows.get(n)[1];
+        }
+        return new InMemorySearchIndex(locale, selectColumns,
+                rows.toArray(new Object[count][]), ranks, titles, primary.build(),
+                secondary.build());
+    }
+
+    String getLocale() {
+        return mLocale;
+    }
+
+    int getRowCount() {
+        return mRows.length;
+    }
+
+    /**
+     * @return whether {@link #search(String, CancellationSignal)} returns the same results as
+     * the SQL queries for the given query, which is when it has at most one term.
+     */
+    static boolean canSearch(String query) {
+        return tokenize(query).length <= 1;
+    }
+
+    /**
+     * @return the same rows, in the same order, as the primary and secondary SQL queries, for a
+     * query accepted by {@link #canSearch(String)}.
+     * @throws android.os.OperationCanceledException if the query has been canceled.
+     */
+    Cursor search(String query, CancellationSignal cancellationSignal) {
+        final String[] terms = tokenize(query);
+        final MatrixCursor cursor = new MatrixCursor(mColumnNames);
+        if (terms.length == 0) {
+            return cursor;
+        }
+        if (terms.length > 1) {
+            throw new IllegalArgumentException("Multi-term query: " + query);
+        }
+        final int[] primary = match(mPrimary, terms[0], cancellationSignal);
+        final int[] secondary = match(mSecondary, terms[0], cancellationSignal);
+
+        sortByRank(primary);
+        final Set<List<Object>> returned = new HashSet<List<Object>>();
+        for (int n = 0; n < primary.length; n++) {
+            final Object[] row = mRows[primary[n]];
+            cursor.addRow(row);
+            returned.add(Arrays.asList(row));
+        }
+
+        // Like the EXCEPT of the secondary query, secondary results are the distinct rows whose
+        // values were not already returned as primary results
+        sortByRank(secondary);
+        for (int n = 0; n < secondary.length; n++) {
+            final Object[] row = mRows[secondary[n]];
+            if (returned.add(Arrays.asList(row))) {
+                cursor.addRow(row);
+            }
+        }
+        return cursor;
+    }
+
+    /**
+     * @return the sorted row ids having a token starting with the given term.
+     */
+    private int[] match(TokenIndex index, String term, CancellationSignal cancellationSignal) {
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
+        }
+        return index.rowsWithPrefix(term, mRows.length);
+    }
+
+    private void sortByRank(int[] rowIds) {
+        // Insertion sort: result sets are small and this keeps the sort stable
+        for (int i = 1; i < rowIds.length; i++) {
+            final int rowId = rowIds[i];
+            int j = i - 1;
+            while (j >= 0 && compare(rowIds[j], rowId) > 0) {
+                rowIds[j + 1] = rowIds[j];
+                j--;
+            }
+            rowIds[j + 1] = rowId;
+        }
+    }
+
+    private int compare(int rowId1, int rowId2) {
+        final int rank1 = mRanks[rowId1];
+        final int rank2 = mRanks[rowId2];
+        if (rank1 != rank2) {
+            return (rank1 < rank2) ? -1 : 1;
+        }
+        // SQLite sorts NULL first
+        final String title1 = mTitles[rowId1];
+        final String title2 = mTitles[rowId2];
+        if (title1 == null || title2 == null) {
+            return (title1 == null) ? ((title2 == null) ? 0 : -1) : 1;
+        }
+        return title1.compareTo(title2);
+    }
+
+    private static int parseInt(String value) {
+        try {
+            return (value != null) ? Integer.parseInt(value) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Splits a string the way the fts4 "simple" tokenizer does: ASCII letters and digits and all
+     * non ASCII characters are token characters, ASCII is folded to lower case.
+     */
+    static String[] tokenize(String input) {
+        if (input == null) {
+            return new String[0];
+        }
+        final List<String> tokens = new ArrayList<String>();
+        final StringBuilder sb = new StringBuilder();
+        final int length = input.length();
+        for (int n = 0; n < length; n++) {
+            final char c = input.charAt(n);
+            if (c >= 0x80 || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z')) {
+                sb.append(c);
+            } else if (c >= 'A' && c <= 'Z') {
+                sb.append((char) (c + ('a' - 'A')));
+            } else if (sb.length() > 0) {
+                tokens.add(sb.toString());
+                sb.setLength(0);
+            }
+        }
+        if (sb.length() > 0) {
+            tokens.add(sb.toString());
+        }
+        return tokens.toArray(new String[tokens.size()]);
+    }
+
+    /**
+     * Sorted tokens and their sorted row ids.
+     */
+    private static class TokenIndex {
+        private final String[] mTokens;
+        private final int[][] mPostings;
+
+        private TokenIndex(String[] tokens, int[][] postings) {
+            mTokens = tokens;
+            mPostings = postings;
+        }
+
+        int[] rowsWithPrefix(String prefix, int rowCount) {
+            int from = Arrays.binarySearch(mTokens, prefix);
+            if (from < 0) {
+                from = -from - 1;
+            }
+            int to = from;
+            while (to < mTokens.length && mTokens[to].startsWith(prefix)) {
+                to++;
+            }
+            if (to == from) {
+                return EMPTY_POSTINGS;
+            }
+            if (to == from + 1) {
+                // Callers sort their results in place
+                return mPostings[from].clone();
+            }
+            // Union the postings of all the tokens having this prefix
+            final boolean[] seen = new boolean[rowCount];
+            int count = 0;
+            for (int t = from; t < to; t++) {
+                final int[] postings = mPostings[t];
+                for (int n = 0; n < postings.length; n++) {
+                    if (!seen[postings[n]]) {
+                        seen[postings[n]] = true;
+                        count++;
+                    }
+                }
+            }
+            final int[] result = new int[count];
+            int k = 0;
+            for (int rowId = 0; rowId < rowCount && k < count; rowId++) {
+                if (seen[rowId]) {
+                    result[k++] = rowId;
+                }
+            }
+            return result;
+        }
+
+        static class Builder {
+            private final Map<String, int[]> mPostings = new HashMap<String, int[]>();
+            private final Map<String, Integer> mSizes = new HashMap<String, Integer>();
+
+            void add(int rowId, String text) {
+                final String[] tokens = tokenize(text);
+                for (int n = 0; n < tokens.length; n++) {
+                    final String token = tokens[n];
+                    int[] postings = mPostings.get(token);
+                    final Integer boxedSize = mSizes.get(token);
+                    final int size = (boxedSize != null) ? boxedSize : 0;
+                    if (size > 0 && postings[size - 1] == rowId) {
+                        // Rows are added in increasing order, so this is a duplicate
+                        continue;
+                    }
+                    if (postings == null) {
+                        postings = new int[2];
+                    } else if (size == postings.length) {
+                        postings = Arrays.copyOf(postings, size * 2);
+                    }
+                    postings[size] = rowId;
+                    mPostings.put(token, postings);
+                    mSizes.put(token, size + 1);
+                }
+            }
+
+            TokenIndex build() {
+                final String[] tokens = mPostings.keySet().toArray(new String[mPostings.size()]);
+                Arrays.sort(tokens);
+                final int[][] postings = new int[tokens.length][];
+                for (int n = 0; n < tokens.length; n++) {
+                    postings[n] = Arrays.copyOf(mPostings.get(tokens[n]),
+                            mSizes.get(tokens[n]));
+                }
+                return new TokenIndex(tokens, postings);
+            }
+        }
+    }
+}
@@ -27,6 +27,7 @@ import android.content.pm.ResolveInfo;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
 import android.database.Cursor;
+import android.database.CursorWrapper;
 import android.database.DatabaseUtils;
 import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
@@ -34,6 +35,9 @@ import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteFullException;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
 import android.provider.SearchIndexableData;
 import android.provider.SearchIndexableResource;
 import android.provider.SearchIndexablesContract;
@@ -43,25 +47,39 @@ import android.util.Log;
 import android.util.TypedValue;
 import android.util.Xml;
 
+import com.android.settings.ProviderRegistry;
 import com.android.settings.R;
 import com.android.settings.search.IndexDatabaseHelper.IndexColumns;
 import com.android.settings.search.IndexDatabaseHelper.Tables;
 
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Field;
 import java.text.Normalizer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import static android.provider.SearchIndexablesContract.COLUMN_INDEX_NON_INDEXABLE_KEYS_KEY_VALUE;
@@ -91,6 +109,8 @@ public class Index {
 
     private static final String LOG_TAG = "Index";
 
+    private static final boolean DEBUG = false;
+
     // Those indices should match the indices of SELECT_COLUMNS !
     public static final int COLUMN_INDEX_RANK = 0;
     public static final int COLUMN_INDEX_TITLE = 1;
@@ -111,7 +131,7 @@ public class Index {
     public static final String ENTRIES_SEPARATOR = "|";
 
     // If you change the order of columns here, you SHOULD change the COLUMN_INDEX_XXX values
-    private static final String[] SELECT_COLUMNS = new String[] {
+    static final String[] SELECT_COLUMNS = new String[] {
             IndexColumns.DATA_RANK,               // 0
             IndexColumns.DATA_TITLE,              // 1
             IndexColumns.DATA_SUMMARY_ON,         // 2
@@ -142,8 +162,6 @@ public class Index {
             IndexColumns.DATA_ENTRIES
     };
 
-    // Max number of saved search queries (who will be used for proposing suggestions)
-    private static long MAX_SAVED_SEARCH_QUERY = 64;
     // Max number of proposed suggestions
     private static final int MAX_PROPOSED_SUGGESTIONS = 5;
 
@@ -155,16 +173,23 @@ public class Index {
     private static final String HYPHEN = "-";
     private static final String SPACE = " ";
 
-    private static final String FIELD_NAME_SEARCH_INDEX_DATA_PROVIDER =
-            "SEARCH_INDEX_DATA_PROVIDER";
-
     private static final String NODE_NAME_PREFERENCE_SCREEN = "PreferenceScreen";
     private static final String NODE_NAME_CHECK_BOX_PREFERENCE = "CheckBoxPreference";
     private static final String NODE_NAME_LIST_PREFERENCE = "ListPreference";
 
     private static final List<String> EMPTY_LIST = Collections.<String>emptyList();
 
+    // Bounds for the parallel indexing pipeline
+    private static final int MAX_INDEXING_THREADS = 4;
+    private static final int MAX_PENDING_SOURCES = 16;
+    private static final int INDEXING_THREAD_KEEP_ALIVE_SECONDS = 5;
+
     private static Index sInstance;
+    private static ExecutorService sIndexingExecutor;
+
+    // The SEARCH_INDEX_DATA_PROVIDERs of local fragments were written for a single indexing
+    // thread and are not thread-safe, so only one of them is run at a time by the indexing pool
+    private static final Object sProviderLock = new Object();
 
     private static final Pattern REMOVE_DIACRITICALS_PATTERN
             = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
@@ -209,8 +234,17 @@ public class Index {
 
     private final AtomicBoolean mIsAvailable = new AtomicBoolean(false);
     private final UpdateData mDataToProcess = new UpdateData();
+
+    // Lazily loaded copy of the Index for the current locale, dropped on every Index update
+    private final Object mMemoryIndexLock = new Object();
+    private InMemorySearchIndex mMemoryIndex;
+    private volatile boolean mUseInMemorySearch = true;
+
+    private final IndexStats mStats = new IndexStats();
+
     private Context mContext;
     private final String mBaseAuthority;
+    private final SavedQueries mSavedQueries;
 
     /**
      * A basic singleton
@@ -225,6 +259,7 @@ public class Index {
     public Index(Context context, String baseAuthority) {
         mContext = context;
         mBaseAuthority = baseAuthority;
+        mSavedQueries = new SavedQueries(context);
     }
 
     public void setContext(Context context) {
@@ -235,13 +270,67 @@ public class Index {
         return mIsAvailable.get();
     }
 
+    /**
+     * @return the indexing and query counters of this Index.
+     */
+    public IndexStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Dump the indexing and query counters, for {@link com.android.settings.SettingsDumpService}.
+     */
+    public JSONObject dump() throws JSONException {
+        final JSONObject obj = mStats.dump();
+        obj.put("available", isAvailable());
+        obj.put("inMemorySearch", mUseInMemorySearch);
+        return obj;
+    }
+
+    /**
+     * Enable or disable answering {@link #search(String)} from an in-memory copy of the Index
+     * instead of running the fts4 queries.
+     */
+    public void setUseInMemorySearch(boolean useInMemorySearch) {
+        mUseInMemorySearch = useInMemorySearch;
+        if (!useInMemorySearch) {
+            invalidateInMemorySearch();
+        }
+    }
+
     public Cursor search(String query) {
+        return search(query, null);
+    }
+
+    /**
+     * Search the Index.
+     *
+     * @param cancellationSignal a signal to cancel the query in progress, or null if none. If
+     *                           the query is canceled, {@link OperationCanceledException} is thrown.
+     */
+    public Cursor search(String query, CancellationSignal cancellationSignal) {
+        // Multi-term queries keep the semantics of the fts4 MATCH
+        if (mUseInMemorySearch && InMemorySearchIndex.canSearch(query)) {
+            final InMemorySearchIndex memoryIndex = getInMemorySearchIndex();
+            if (memoryIndex != null) {
+                final long start = SystemClock.elapsedRealtimeNanos();
+                final Cursor cursor = memoryIndex.search(query, cancellationSignal);
+                mStats.recordQuery(SystemClock.elapsedRealtimeNanos() - start, true);
+                return cursor;
+            }
+        }
+        final long start = SystemClock.elapsedRealtimeNanos();
+        // The query only runs when the reader first moves, which is when it is measured
+        return new TimedSearchCursor(searchDatabase(query, cancellationSignal), start);
+    }
+
+    private Cursor searchDatabase(String query, CancellationSignal cancellationSignal) {
         final SQLiteDatabase database = getReadableDatabase();
         final Cursor[] cursors = new Cursor[2];
 
         final String primarySql = buildSearchSQL(query, MATCH_COLUMNS_PRIMARY, true);
-        Log.d(LOG_TAG, "Search primary query: " + primarySql);
-        cursors[0] = database.rawQuery(primarySql, null);
+        if (DEBUG) Log.d(LOG_TAG, "Search primary query: " + primarySql);
+        cursors[0] = database.rawQuery(primarySql, null, cancellationSignal);
 
         // We need to use an EXCEPT operator as negate MATCH queries do not work.
         StringBuilder sql = new StringBuilder(
@@ -250,59 +339,127 @@ public class Index {
         sql.append(primarySql);
 
         final String secondarySql = sql.toString();
-        Log.d(LOG_TAG, "Search secondary query: " + secondarySql);
-        cursors[1] = database.rawQuery(secondarySql, null);
+        if (DEBUG) Log.d(LOG_TAG, "Search secondary query: " + secondarySql);
+        try {
+            cursors[1] = database.rawQuery(secondarySql, null, cancellationSignal);
+        } catch (OperationCanceledException e) {
+            cursors[0].close();
+            throw e;
+        }
 
         return new MergeCursor(cursors);
     }
 
-    public Cursor getSuggestions(String query) {
-        final String sql = buildSuggestionsSQL(query);
-        Log.d(LOG_TAG, "Suggestions query: " + sql);
-        return getReadableDatabase().rawQuery(sql, null);
-    }
+    /**
+     * Records the latency of a database search once its first rows have been read, so that
+     * measuring it neither runs the query ahead of its reader nor counts all of its rows.
+     */
+    private class TimedSearchCursor extends CursorWrapper {
+        private final long mStart;
+        private boolean mRecorded;
 
-    private String buildSuggestionsSQL(String query) {
-        StringBuilder sb = new StringBuilder();
+        TimedSearchCursor(Cursor cursor, long start) {
+            super(cursor);
+            mStart = start;
+        }
 
-        sb.append("SELECT ");
-        sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
-        sb.append(" FROM ");
-        sb.append(Tables.TABLE_SAVED_QUERIES);
+        @Override
+        public int getCount() {
+            final int count = super.getCount();
+            recordQuery();
+            return count;
+        }
 
-        if (TextUtils.isEmpty(query)) {
-            sb.append(" ORDER BY rowId DESC");
-        } else {
-            sb.append(" WHERE ");
-            sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
-            sb.append(" LIKE ");
-            sb.append("'");
-            sb.append(query);
-            sb.append("%");
-            sb.append("'");
+        @Override
+        public boolean move(int offset) {
+            final boolean result = super.move(offset);
+            recordQuery();
+            return result;
         }
 
-        sb.append(" LIMIT ");
-        sb.append(MAX_PROPOSED_SUGGESTIONS);
+        @Override
+        public boolean moveToPosition(int position) {
+            final boolean result = super.moveToPosition(position);
+            recordQuery();
+            return result;
+        }
 
-        return sb.toString();
+        @Override
+        public boolean moveToFirst() {
+            final boolean result = super.moveToFirst();
+            recordQuery();
+            return result;
+        }
+
+        @Override
+        public boolean moveToLast() {
+            final boolean result = super.moveToLast();
+            recordQuery();
+            return result;
+        }
+
+        @Override
+        public boolean moveToNext() {
+            final boolean result = super.moveToNext();
+            recordQuery();
+            return result;
+        }
+
+        private void recordQuery() {
+            if (!mRecorded) {
+                mRecorded = true;
+                mStats.recordQuery(SystemClock.elapsedRealtimeNanos() - mStart, false);
+            }
+        }
     }
 
-    public long addSavedQuery(String query){
-        final SaveSearchQueryTask task = new SaveSearchQueryTask();
-        task.execute(query);
-        try {
-            return task.get();
-        } catch (InterruptedException e) {
-            Log.e(LOG_TAG, "Cannot insert saved query: " + query, e);
-            return -1 ;
-        } catch (ExecutionException e) {
-            Log.e(LOG_TAG, "Cannot insert saved query: " + query, e);
-            return -1;
+    private InMemorySearchIndex getInMemorySearchIndex() {
+        final String localeStr = Locale.getDefault().toString();
+        synchronized (mMemoryIndexLock) {
+            if (mMemoryIndex == null || !mMemoryIndex.getLocale().equals(localeStr)) {
+                try {
+                    final long start = System.currentTimeMillis();
+                    mMemoryIndex = InMemorySearchIndex.load(getReadableDatabase(), localeStr,
+                            SELECT_COLUMNS);
+                    Log.d(LOG_TAG, "Loading " + mMemoryIndex.getRowCount()
+                            + " rows in memory for locale '" + localeStr + "' took "
+                            + (System.currentTimeMillis() - start) + " millis");
+                } catch (SQLiteException e) {
+                    Log.e(LOG_TAG, "Cannot load the Index in memory", e);
+                    return null;
+                }
+            }
+            return mMemoryIndex;
+        }
+    }
+
+    private void invalidateInMemorySearch() {
+        synchronized (mMemoryIndexLock) {
+            mMemoryIndex = null;
         }
     }
 
+    public Cursor getSuggestions(String query) {
+        return mSavedQueries.getSuggestions(query, MAX_PROPOSED_SUGGESTIONS);
+    }
+
+    /**
+     * Save a search query for proposing it later as a suggestion. This does not block on the
+     * database.
+     */
+    public void addSavedQuery(String query) {
+        mSavedQueries.add(query);
+    }
+
     public void update() {
+        update(null);
+    }
+
+    /**
+     * Same as {@link #update()}, and runs the given callback in the background once the
+     * indexing pass it starts has been committed.
+     */
+    public void update(final Runnable onIndexed) {
         AsyncTask.execute(new Runnable() {
             @Override
             public void run() {
@@ -325,6 +482,11 @@ public class Index {
 
                 mDataToProcess.fullIndex = true;
                 updateInternal();
+                if (onIndexed != null) {
+                    // Indexing tasks run on the same serial executor, so this runs after the
+                    // pass queued above
+                    AsyncTask.execute(onIndexed);
+                }
             }
         });
     }
@@ -517,6 +679,26 @@ public class Index {
         });
     }
 
+    /**
+     * Export the Index of the current locale as a prebuilt snapshot that can be packaged in the
+     * "search_index" assets. This accesses the database on the calling thread.
+     *
+     * @return true if the snapshot has been written.
+     */
+    public boolean exportSnapshot(File file) {
+        final SQLiteDatabase database = getWritableDatabase();
+        if (database == null) {
+            return false;
+        }
+        try {
+            IndexSnapshot.export(database, Locale.getDefault().toString(), file);
+            return true;
+        } catch (SQLiteException e) {
+            Log.e(LOG_TAG, "Cannot export Index snapshot to " + file, e);
+            return false;
+        }
+    }
+
     private SQLiteDatabase getReadableDatabase() {
         return IndexDatabaseHelper.getInstance(mContext).getReadableDatabase();
     }
@@ -670,6 +852,9 @@ public class Index {
         if (withOrderBy) {
             sb.append(" ORDER BY ");
             sb.append(IndexColumns.DATA_RANK);
+            // Defined order among results of the same rank, which InMemorySearchIndex follows
+            sb.append(", ");
+            sb.append(IndexColumns.DATA_TITLE);
         }
         return sb.toString();
     }
@@ -721,23 +906,23 @@ public class Index {
         return sb.toString();
     }
 
-    private void indexOneSearchIndexableData(SQLiteDatabase database, String localeStr,
+    private void indexOneSearchIndexableData(List<ContentValues> rows, String localeStr,
             SearchIndexableData data, Map<String, List<String>> nonIndexableKeys) {
         if (data instanceof SearchIndexableResource) {
-            indexOneResource(database, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
+            indexOneResource(rows, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
         } else if (data instanceof SearchIndexableRaw) {
-            indexOneRaw(database, localeStr, (SearchIndexableRaw) data);
+            indexOneRaw(rows, localeStr, (SearchIndexableRaw) data);
         }
     }
 
-    private void indexOneRaw(SQLiteDatabase database, String localeStr,
+    private void indexOneRaw(List<ContentValues> rows, String localeStr,
                              SearchIndexableRaw raw) {
         // Should be the same locale as the one we are processing
         if (!raw.locale.toString().equalsIgnoreCase(localeStr)) {
             return;
         }
 
-        updateOneRowWithFilteredData(database, localeStr,
+        updateOneRowWithFilteredData(rows, localeStr,
                 raw.title,
                 raw.summaryOn,
                 raw.summaryOff,
@@ -755,22 +940,7 @@ public class Index {
                 raw.userId);
     }
 
-    private static boolean isIndexableClass(final Class<?> clazz) {
-        return (clazz != null) && Indexable.class.isAssignableFrom(clazz);
-    }
-
-    private static Class<?> getIndexableClass(String className) {
-        final Class<?> clazz;
-        try {
-            clazz = Class.forName(className);
-        } catch (ClassNotFoundException e) {
-            Log.d(LOG_TAG, "Cannot find class: " + className);
-            return null;
-        }
-        return isIndexableClass(clazz) ? clazz : null;
-    }
-
-    private void indexOneResource(SQLiteDatabase database, String localeStr,
+    private void indexOneResource(List<ContentValues> rows, String localeStr,
             SearchIndexableResource sir, Map<String, List<String>> nonIndexableKeysFromResource) {
 
         if (sir == null) {
@@ -786,7 +956,7 @@ public class Index {
                 nonIndexableKeys.addAll(resNonIndxableKeys);
             }
 
-            indexFromResource(sir.context, database, localeStr,
+            indexFromResource(sir.context, rows, localeStr,
                     sir.xmlResId, sir.className, sir.iconResId, sir.rank,
                     sir.intentAction, sir.intentTargetPackage, sir.intentTargetClass,
                     nonIndexableKeys);
@@ -796,49 +966,26 @@ public class Index {
                 return;
             }
 
-            final Class<?> clazz = getIndexableClass(sir.className);
-            if (clazz == null) {
-                Log.d(LOG_TAG, "SearchIndexableResource '" + sir.className +
-                        "' should implement the " + Indexable.class.getName() + " interface!");
-                return;
-            }
-
             // Will be non null only for a Local provider implementing a
             // SEARCH_INDEX_DATA_PROVIDER field
-            final Indexable.SearchIndexProvider provider = getSearchIndexProvider(clazz);
+            final Indexable.SearchIndexProvider provider =
+                    ProviderRegistry.getSearchIndexProvider(sir.className);
             if (provider != null) {
-                List<String> providerNonIndexableKeys = provider.getNonIndexableKeys(sir.context);
-                if (providerNonIndexableKeys != null && providerNonIndexableKeys.size() > 0) {
-                    nonIndexableKeys.addAll(providerNonIndexableKeys);
-                }
+                synchronized (sProviderLock) {
+                    List<String> providerNonIndexableKeys =
+                            provider.getNonIndexableKeys(sir.context);
+                    if (providerNonIndexableKeys != null && providerNonIndexableKeys.size() > 0) {
+                        nonIndexableKeys.addAll(providerNonIndexableKeys);
+                    }
 
-                indexFromProvider(mContext, database, localeStr, provider, sir.className,
-                        sir.iconResId, sir.rank, sir.enabled, nonIndexableKeys);
+                    indexFromProvider(mContext, rows, localeStr, provider, sir.className,
+                            sir.iconResId, sir.rank, sir.enabled, nonIndexableKeys);
+                }
             }
         }
     }
 
-    private Indexable.SearchIndexProvider getSearchIndexProvider(final Class<?> clazz) {
-        try {
-            final Field f = clazz.getField(FIELD_NAME_SEARCH_INDEX_DATA_PROVIDER);
-            return (Indexable.SearchIndexProvider) f.get(null);
-        } catch (NoSuchFieldException e) {
-            Log.d(LOG_TAG, "Cannot find field '" + FIELD_NAME_SEARCH_INDEX_DATA_PROVIDER + "'");
-        } catch (SecurityException se) {
-            Log.d(LOG_TAG,
-                    "Security exception for field '" + FIELD_NAME_SEARCH_INDEX_DATA_PROVIDER + "'");
-        } catch (IllegalAccessException e) {
-            Log.d(LOG_TAG,
-                    "Illegal access to field '" + FIELD_NAME_SEARCH_INDEX_DATA_PROVIDER + "'");
-        } catch (IllegalArgumentException e) {
-            Log.d(LOG_TAG,
-                    "Illegal argument when accessing field '" +
-                            FIELD_NAME_SEARCH_INDEX_DATA_PROVIDER + "'");
-        }
-        return null;
-    }
-
-    private void indexFromResource(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromResource(Context context, List<ContentValues> rows, String localeStr,
            int xmlResId, String fragmentName, int iconResId, int rank,
            String intentAction, String intentTargetPackage, String intentTargetClass,
            List<String> nonIndexableKeys) {
@@ -878,7 +1025,7 @@ public class Index {
                 summary = getDataSummary(context, attrs);
                 keywords = getDataKeywords(context, attrs);
 
-                updateOneRowWithFilteredData(database, localeStr, title, summary, null, null,
+                updateOneRowWithFilteredData(rows, localeStr, title, summary, null, null,
                         fragmentName, screenTitle, iconResId, rank,
                         keywords, intentAction, intentTargetPackage, intentTargetClass, true,
                         key, -1 /* default user id */);
@@ -910,7 +1057,7 @@ public class Index {
                     }
 
                     // Insert rows for the child nodes of PreferenceScreen
-                    updateOneRowWithFilteredData(database, localeStr, title, summary, null, entries,
+                    updateOneRowWithFilteredData(rows, localeStr, title, summary, null, entries,
                             fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
                             true, key, -1 /* default user id */);
@@ -922,7 +1069,7 @@ public class Index {
                         summaryOn = getDataSummary(context, attrs);
                     }
 
-                    updateOneRowWithFilteredData(database, localeStr, title, summaryOn, summaryOff,
+                    updateOneRowWithFilteredData(rows, localeStr, title, summaryOn, summaryOff,
                             null, fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
                             true, key, -1 /* default user id */);
@@ -938,7 +1085,7 @@ public class Index {
         }
     }
 
-    private void indexFromProvider(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromProvider(Context context, List<ContentValues> rows, String localeStr,
             Indexable.SearchIndexProvider provider, String className, int iconResId, int rank,
             boolean enabled, List<String> nonIndexableKeys) {
 
@@ -963,7 +1110,7 @@ public class Index {
                     continue;
                 }
 
-                updateOneRowWithFilteredData(database, localeStr,
+                updateOneRowWithFilteredData(rows, localeStr,
                         raw.title,
                         raw.summaryOn,
                         raw.summaryOff,
@@ -999,7 +1146,7 @@ public class Index {
                 String itemClassName = (TextUtils.isEmpty(item.className))
                         ? className : item.className;
 
-                indexFromResource(context, database, localeStr,
+                indexFromResource(context, rows, localeStr,
                         item.xmlResId, itemClassName, itemIconResId, itemRank,
                         item.intentAction, item.intentTargetPackage,
                         item.intentTargetClass, nonIndexableKeys);
@@ -1007,7 +1154,7 @@ public class Index {
         }
     }
 
-    private void updateOneRowWithFilteredData(SQLiteDatabase database, String locale,
+    private void updateOneRowWithFilteredData(List<ContentValues> rows, String locale,
             String title, String summaryOn, String summaryOff, String entries,
             String className,
             String screenTitle, int iconResId, int rank, String keywords,
@@ -1024,7 +1171,7 @@ public class Index {
 
         final String spaceDelimitedKeywords = normalizeKeywords(keywords);
 
-        updateOneRow(database, locale,
+        updateOneRow(rows, locale,
                 updatedTitle, normalizedTitle, updatedSummaryOn, normalizedSummaryOn,
                 updatedSummaryOff, normalizedSummaryOff, entries, className, screenTitle, iconResId,
                 rank, spaceDelimitedKeywords, intentAction, intentTargetPackage, intentTargetClass,
@@ -1046,7 +1193,7 @@ public class Index {
         return (input != null) ? input.replaceAll(LIST_DELIMITERS, SPACE) : EMPTY;
     }
 
-    private void updateOneRow(SQLiteDatabase database, String locale, String updatedTitle,
+    private void updateOneRow(List<ContentValues> rows, String locale, String updatedTitle,
             String normalizedTitle, String updatedSummaryOn, String normalizedSummaryOn,
             String updatedSummaryOff, String normalizedSummaryOff, String entries, String className,
             String screenTitle, int iconResId, int rank, String spaceDelimitedKeywords,
@@ -1085,7 +1232,7 @@ public class Index {
         values.put(IndexColumns.DATA_KEY_REF, key);
         values.put(IndexColumns.USER_ID, userId);
 
-        database.replaceOrThrow(Tables.TABLE_PREFS_INDEX, null, values);
+        rows.add(values);
     }
 
     private String getDataKey(Context context, AttributeSet attrs) {
@@ -1165,6 +1312,82 @@ public class Index {
         return result.toString();
     }
 
+    private static synchronized ExecutorService getIndexingExecutor() {
+        if (sIndexingExecutor == null) {
+            final int threads = Math.max(1,
+                    Math.min(Runtime.getRuntime().availableProcessors(), MAX_INDEXING_THREADS));
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                    INDEXING_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger(1);
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            final Thread thread = new Thread(r,
+                                    "SettingsIndexer #" + mCount.getAndIncrement());
+                            thread.setPriority(Thread.MIN_PRIORITY);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sIndexingExecutor = executor;
+        }
+        return sIndexingExecutor;
+    }
+
+    /**
+     * Parses one indexing source (XML resource, local or remote raw data) into Index rows.
+     */
+    private class ParseSourceCallable implements Callable<List<ContentValues>> {
+        private final String mLocaleStr;
+        private final SearchIndexableData mData;
+        private final Map<String, List<String>> mNonIndexableKeys;
+
+        ParseSourceCallable(String localeStr, SearchIndexableData data,
+                Map<String, List<String>> nonIndexableKeys) {
+            mLocaleStr = localeStr;
+            mData = data;
+            mNonIndexableKeys = nonIndexableKeys;
+        }
+
+        @Override
+        public List<ContentValues> call() {
+            final List<ContentValues> rows = new ArrayList<ContentValues>();
+            final long start = SystemClock.elapsedRealtimeNanos();
+            indexOneSearchIndexableData(rows, mLocaleStr, mData, mNonIndexableKeys);
+            mStats.recordParse(getKind(), mData.packageName + "/" + mData.className,
+                    SystemClock.elapsedRealtimeNanos() - start, rows.size());
+            return rows;
+        }
+
+        private String getKind() {
+            if (mData instanceof SearchIndexableResource) {
+                return (((SearchIndexableResource) mData).xmlResId
+                        > SearchIndexableResources.NO_DATA_RES_ID)
+                        ? IndexStats.KIND_RESOURCE : IndexStats.KIND_PROVIDER;
+            }
+            return IndexStats.KIND_RAW;
+        }
+    }
+
+    /**
+     * An indexing source whose rows are being parsed and still have to be written.
+     */
+    private static class PendingSource {
+        final SearchIndexableData data;
+        final String source;
+        final String fingerprint;
+        final Future<List<ContentValues>> rows;
+
+        PendingSource(SearchIndexableData data, String source, String fingerprint,
+                Future<List<ContentValues>> rows) {
+            this.data = data;
+            this.source = source;
+            this.fingerprint = fingerprint;
+            this.rows = rows;
+        }
+    }
+
     /**
      * A private class for updating the Index database
      */
@@ -1199,56 +1422,221 @@ public class Index {
                 }
                 final String localeStr = Locale.getDefault().toString();
 
+                final SQLiteDatabase snapshot = fullIndex
+                        && !IndexDatabaseHelper.isLocaleAlreadyIndexed(mContext, localeStr)
+                        ? IndexSnapshot.open(mContext, localeStr) : null;
+                // Deletes, the snapshot import and updates are committed at once, so searches
+                // (reading the last committed Index thanks to WAL) never see a partial pass
+                final long start = SystemClock.elapsedRealtimeNanos();
+                database.beginTransaction();
                 try {
-                    database.beginTransaction();
                     if (dataToDelete.size() > 0) {
                         processDataToDelete(database, localeStr, dataToDelete);
                     }
+                    int rows = 0;
+                    if (snapshot != null) {
+                        // Static resources covered by a prebuilt snapshot are then skipped
+                        // thanks to their imported fingerprints
+                        final IndexRowWriter writer = new IndexRowWriter(database);
+                        try {
+                            IndexSnapshot.importRows(snapshot, writer, localeStr);
+                            rows = writer.getRowCount();
+                        } finally {
+                            writer.close();
+                        }
+                    }
                     if (dataToUpdate.size() > 0) {
-                        processDataToUpdate(database, localeStr, dataToUpdate, nonIndexableKeys,
-                                forceUpdate);
+                        rows += processDataToUpdate(database, localeStr, dataToUpdate,
+                                nonIndexableKeys, forceUpdate, fullIndex);
                     }
                     database.setTransactionSuccessful();
+                    mStats.recordTransaction(SystemClock.elapsedRealtimeNanos() - start, rows);
                 } finally {
                     database.endTransaction();
+                    if (snapshot != null) {
+                        IndexSnapshot.close(mContext, snapshot, localeStr);
+                    }
                 }
                 if (fullIndex) {
                     IndexDatabaseHelper.setLocaleIndexed(mContext, localeStr);
                 }
             } catch (SQLiteFullException e) {
                 Log.e(LOG_TAG, "Unable to index search, out of space", e);
+            } finally {
+                invalidateInMemorySearch();
             }
 
             return null;
         }
 
-        private boolean processDataToUpdate(SQLiteDatabase database, String localeStr,
+        /**
+         * Writes the rows of the sources to update in the current transaction.
+         *
+         * @return the number of rows written.
+         */
+        private int processDataToUpdate(SQLiteDatabase database, String localeStr,
                 List<SearchIndexableData> dataToUpdate, Map<String, List<String>> nonIndexableKeys,
-                boolean forceUpdate) {
+                boolean forceUpdate, boolean fullIndex) {
 
-            if (!forceUpdate && IndexDatabaseHelper.isLocaleAlreadyIndexed(mContext, localeStr)) {
-                Log.d(LOG_TAG, "Locale '" + localeStr + "' is already indexed");
-                return true;
-            }
-
-            boolean result = false;
             final long current = System.currentTimeMillis();
 
-            final int count = dataToUpdate.size();
-            for (int n = 0; n < count; n++) {
-                final SearchIndexableData data = dataToUpdate.get(n);
-                try {
-                    indexOneSearchIndexableData(database, localeStr, data, nonIndexableKeys);
-                } catch (Exception e) {
-                    Log.e(LOG_TAG, "Cannot index: " + (data != null ? data.className : data)
-                                    + " for locale: " + localeStr, e);
+            // When not forced, only re-index the sources whose fingerprint has changed since the
+            // last time they have been indexed for this locale.
+            final Map<String, String> fingerprints =
+                    IndexDatabaseHelper.getFingerprints(database, localeStr);
+            final Map<String, Integer> versionCodes = new HashMap<String, Integer>();
+            final Set<String> sources = new HashSet<String>();
+
+            int indexed = 0;
+            int skipped = 0;
+
+            // Sources are parsed in parallel by a bounded pool while this thread is the single
+            // writer. At most MAX_PENDING_SOURCES parsed sources are kept in memory at once.
+            final ExecutorService executor = getIndexingExecutor();
+            final ArrayDeque<PendingSource> pending = new ArrayDeque<PendingSource>();
+            final IndexRowWriter writer = new IndexRowWriter(database);
+
+            try {
+                final int count = dataToUpdate.size();
+                for (int n = 0; n < count; n++) {
+                    final SearchIndexableData data = dataToUpdate.get(n);
+                    if (data == null) {
+                        continue;
+                    }
+                    final String source = getFingerprintSource(data);
+                    final String fingerprint = computeFingerprint(data, localeStr,
+                            nonIndexableKeys, versionCodes);
+                    sources.add(source);
+                    // The raw data of local providers is built at runtime and not covered by
+                    // the fingerprint, so these are always indexed again.
+                    if (!forceUpdate && !isDynamicSource(data)
+                            && fingerprint.equals(fingerprints.get(source))) {
+                        skipped++;
+                        continue;
+                    }
+                    pending.add(new PendingSource(data, source, fingerprint,
+                            executor.submit(new ParseSourceCallable(localeStr, data,
+                                    nonIndexableKeys))));
+                    if (pending.size() >= MAX_PENDING_SOURCES) {
+                        if (writePendingSource(writer, localeStr, pending.poll())) {
+                            indexed++;
+                        }
+                    }
+                }
+                while (!pending.isEmpty()) {
+                    if (writePendingSource(writer, localeStr, pending.poll())) {
+                        indexed++;
+                    }
                 }
+                if (fullIndex) {
+                    // A full pass sees every source, the others are gone with their package
+                    for (String source : fingerprints.keySet()) {
+                        if (!sources.contains(source)) {
+                            writer.deleteSource(localeStr, source);
+                        }
+                    }
+                }
+            } finally {
+                while (!pending.isEmpty()) {
+                    pending.poll().rows.cancel(true);
+                }
+                writer.close();
             }
 
             final long now = System.currentTimeMillis();
+            mStats.recordPass((now - current) * 1000000, indexed, skipped, writer.getRowCount());
             Log.d(LOG_TAG, "Indexing locale '" + localeStr + "' took " +
-                    (now - current) + " millis");
-            return result;
+                    (now - current) + " millis (" + indexed + " sources indexed, " +
+                    skipped + " unchanged, " + writer.getRowCount() + " rows touched)");
+            return writer.getRowCount();
+        }
+
+        private boolean writePendingSource(IndexRowWriter writer, String localeStr,
+                PendingSource pendingSource) {
+            final List<ContentValues> rows;
+            try {
+                rows = pendingSource.rows.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                Log.e(LOG_TAG, "Cannot index: " + pendingSource.data.className
+                        + " for locale: " + localeStr, e.getCause());
+                return false;
+            }
+            writer.write(localeStr, pendingSource.source, rows);
+            writer.setFingerprint(localeStr, pendingSource.source, pendingSource.fingerprint);
+            return true;
+        }
+
+        private boolean isDynamicSource(SearchIndexableData data) {
+            return data instanceof SearchIndexableResource && ((SearchIndexableResource) data)
+                    .xmlResId <= SearchIndexableResources.NO_DATA_RES_ID;
+        }
+
+        private String getFingerprintSource(SearchIndexableData data) {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(data.packageName);
+            sb.append('/');
+            sb.append(data.className);
+            if (data instanceof SearchIndexableResource) {
+                sb.append("/res:");
+                sb.append(((SearchIndexableResource) data).xmlResId);
+            } else if (data instanceof SearchIndexableRaw) {
+                final SearchIndexableRaw raw = (SearchIndexableRaw) data;
+                sb.append("/raw:");
+                sb.append(TextUtils.isEmpty(raw.key) ? raw.title : raw.key);
+                sb.append('/');
+                sb.append(raw.userId);
+            }
+            return sb.toString();
+        }
+
+        private String computeFingerprint(SearchIndexableData data, String localeStr,
+                Map<String, List<String>> nonIndexableKeys, Map<String, Integer> versionCodes) {
+            final StringBuilder sb = new StringBuilder(localeStr);
+            sb.append('|');
+            sb.append(getVersionCode(data.packageName, versionCodes));
+            sb.append('|');
+            sb.append(data.rank);
+            sb.append('|');
+            sb.append(data.iconResId);
+            sb.append('|');
+            sb.append(data.enabled);
+            sb.append('|');
+            sb.append(data.intentAction);
+            sb.append('|');
+            sb.append(data.intentTargetPackage);
+            sb.append('|');
+            sb.append(data.intentTargetClass);
+            sb.append('|');
+            final List<String> keys = nonIndexableKeys.get(data.packageName);
+            sb.append(keys != null ? keys.hashCode() : 0);
+            if (data instanceof SearchIndexableRaw) {
+                final SearchIndexableRaw raw = (SearchIndexableRaw) data;
+                sb.append('|');
+                sb.append(Arrays.hashCode(new Object[] {
+                        raw.title, raw.summaryOn, raw.summaryOff, raw.entries, raw.keywords,
+                        raw.screenTitle, raw.key, raw.locale }));
+            }
+            return sb.toString();
+        }
+
+        private int getVersionCode(String packageName, Map<String, Integer> versionCodes) {
+            if (TextUtils.isEmpty(packageName)) {
+                return 0;
+            }
+            Integer versionCode = versionCodes.get(packageName);
+            if (versionCode == null) {
+                try {
+                    versionCode = mContext.getPackageManager()
+                            .getPackageInfo(packageName, 0).versionCode;
+                } catch (PackageManager.NameNotFoundException e) {
+                    versionCode = 0;
+                }
+                versionCodes.put(packageName, versionCode);
+            }
+            return versionCode;
         }
 
         private boolean processDataToDelete(SQLiteDatabase database, String localeStr,
@@ -1285,52 +1673,10 @@ public class Index {
             final String whereClause = columName + "=?";
             final String[] whereArgs = new String[] { value };
 
+            // Forget the sources of these rows too, so that they are indexed again if they come
+            // back with the same fingerprint
+            IndexDatabaseHelper.deleteSourcesOfRows(database, whereClause, whereArgs);
             return database.delete(Tables.TABLE_PREFS_INDEX, whereClause, whereArgs);
         }
     }
-
-    /**
-     * A basic AsyncTask for saving a Search query into the database
-     */
-    private class SaveSearchQueryTask extends AsyncTask<String, Void, Long> {
-
-        @Override
-        protected Long doInBackground(String... params) {
-            final long now = new Date().getTime();
-
-            final ContentValues values = new ContentValues();
-            values.put(IndexDatabaseHelper.SavedQueriesColums.QUERY, params[0]);
-            values.put(IndexDatabaseHelper.SavedQueriesColums.TIME_STAMP, now);
-
-            final SQLiteDatabase database = getWritableDatabase();
-            if (database == null) {
-                Log.e(LOG_TAG, "Cannot save Search queries as I cannot get a writable database");
-                return -1L;
-            }
-
-            long lastInsertedRowId = -1L;
-            try {
-                // First, delete all saved queries that are the same
-                database.delete(Tables.TABLE_SAVED_QUERIES,
-                        IndexDatabaseHelper.SavedQueriesColums.QUERY + " = ?",
-                        new String[] { params[0] });
-
-                // Second, insert the saved query
-                lastInsertedRowId =
-                        database.insertOrThrow(Tables.TABLE_SAVED_QUERIES, null, values);
-
-                // Last, remove "old" saved queries
-                final long delta = lastInsertedRowId - MAX_SAVED_SEARCH_QUERY;
-                if (delta > 0) {
-                    int count = database.delete(Tables.TABLE_SAVED_QUERIES, "rowId <= ?",
-                            new String[] { Long.toString(delta) });
-                    Log.d(LOG_TAG, "Deleted '" + count + "' saved Search query(ies)");
-                }
-            } catch (Exception e) {
-                Log.d(LOG_TAG, "Cannot update saved Search queries", e);
-            }
-
-            return lastInsertedRowId;
-        }
-    }
 }
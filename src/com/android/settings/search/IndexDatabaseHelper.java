@@ -16,6 +16,7 @@
 
 package com.android.settings.search;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
@@ -23,12 +24,17 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.os.Build;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 public class IndexDatabaseHelper extends SQLiteOpenHelper {
 
     private static final String TAG = "IndexDatabaseHelper";
 
     private static final String DATABASE_NAME = "search_index.db";
-    private static final int DATABASE_VERSION = 115;
+    private static final int DATABASE_VERSION = 117;
 
     private static final String INDEX = "index";
 
@@ -36,6 +42,8 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         public static final String TABLE_PREFS_INDEX = "prefs_index";
         public static final String TABLE_META_INDEX = "meta_index";
         public static final String TABLE_SAVED_QUERIES = "saved_queries";
+        public static final String TABLE_META_FINGERPRINTS = "meta_fingerprints";
+        public static final String TABLE_META_SOURCE_ROWS = "meta_source_rows";
     }
 
     public interface IndexColumns {
@@ -65,6 +73,18 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         public static final String BUILD = "build";
     }
 
+    public interface FingerprintColumns {
+        public static final String LOCALE = "locale";
+        public static final String SOURCE = "source";
+        public static final String FINGERPRINT = "fingerprint";
+    }
+
+    public interface SourceRowColumns {
+        public static final String LOCALE = "locale";
+        public static final String SOURCE = "source";
+        public static final String DOCID = "docid";
+    }
+
     public interface SavedQueriesColums {
         public static final String QUERY = "query";
         public static final String TIME_STAMP = "timestamp";
@@ -126,6 +146,45 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
                     SavedQueriesColums.TIME_STAMP + " INTEGER" +
                     ")";
 
+    private static final String CREATE_META_FINGERPRINTS_TABLE =
+            "CREATE TABLE " + Tables.TABLE_META_FINGERPRINTS +
+                    "(" +
+                    FingerprintColumns.LOCALE + " VARCHAR(32) NOT NULL" +
+                    ", " +
+                    FingerprintColumns.SOURCE + " TEXT NOT NULL" +
+                    ", " +
+                    FingerprintColumns.FINGERPRINT + " TEXT NOT NULL" +
+                    ", " +
+                    "PRIMARY KEY (" + FingerprintColumns.LOCALE + ", " +
+                    FingerprintColumns.SOURCE + ")" +
+                    ")";
+
+    private static final String CREATE_META_SOURCE_ROWS_TABLE =
+            "CREATE TABLE " + Tables.TABLE_META_SOURCE_ROWS +
+                    "(" +
+                    SourceRowColumns.LOCALE + " VARCHAR(32) NOT NULL" +
+                    ", " +
+                    SourceRowColumns.SOURCE + " TEXT NOT NULL" +
+                    ", " +
+                    SourceRowColumns.DOCID + " INTEGER NOT NULL" +
+                    ", " +
+                    "PRIMARY KEY (" + SourceRowColumns.LOCALE + ", " +
+                    SourceRowColumns.SOURCE + ", " + SourceRowColumns.DOCID + ")" +
+                    ")";
+
+    // Rows of a source, unless another source of the locale wrote a row with the same docid
+    private static final String DELETE_SOURCE_INDEX_ROWS =
+            "DELETE FROM " + Tables.TABLE_PREFS_INDEX +
+                    " WHERE " + IndexColumns.LOCALE + " = ?1" +
+                    " AND " + IndexColumns.DOCID + " IN (SELECT " + SourceRowColumns.DOCID +
+                    " FROM " + Tables.TABLE_META_SOURCE_ROWS +
+                    " WHERE " + SourceRowColumns.LOCALE + " = ?1" +
+                    " AND " + SourceRowColumns.SOURCE + " = ?2)" +
+                    " AND " + IndexColumns.DOCID + " NOT IN (SELECT " + SourceRowColumns.DOCID +
+                    " FROM " + Tables.TABLE_META_SOURCE_ROWS +
+                    " WHERE " + SourceRowColumns.LOCALE + " = ?1" +
+                    " AND " + SourceRowColumns.SOURCE + " != ?2)";
+
     private static final String INSERT_BUILD_VERSION =
             "INSERT INTO " + Tables.TABLE_META_INDEX +
                     " VALUES ('" + Build.VERSION.INCREMENTAL + "');";
@@ -147,6 +206,8 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
     public IndexDatabaseHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
         mContext = context;
+        // Searches keep reading the last committed Index while an indexing pass is written
+        setWriteAheadLoggingEnabled(true);
     }
 
     @Override
@@ -158,6 +219,8 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(CREATE_INDEX_TABLE);
         db.execSQL(CREATE_META_TABLE);
         db.execSQL(CREATE_SAVED_QUERIES_TABLE);
+        db.execSQL(CREATE_META_FINGERPRINTS_TABLE);
+        db.execSQL(CREATE_META_SOURCE_ROWS_TABLE);
         db.execSQL(INSERT_BUILD_VERSION);
         Log.i(TAG, "Bootstrapped database");
     }
@@ -230,9 +293,84 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         return context.getSharedPreferences(INDEX, 0).getBoolean(locale, false);
     }
 
+    /**
+     * Returns the content fingerprints recorded for the given locale, keyed by indexing source.
+     */
+    public static Map<String, String> getFingerprints(SQLiteDatabase db, String locale) {
+        final Map<String, String> result = new HashMap<String, String>();
+        Cursor cursor = null;
+        try {
+            cursor = db.query(Tables.TABLE_META_FINGERPRINTS,
+                    new String[] { FingerprintColumns.SOURCE, FingerprintColumns.FINGERPRINT },
+                    FingerprintColumns.LOCALE + " = ?", new String[] { locale },
+                    null, null, null);
+            while (cursor.moveToNext()) {
+                result.put(cursor.getString(0), cursor.getString(1));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Cannot get fingerprints from Index metadata");
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
+    public static void setFingerprint(SQLiteDatabase db, String locale, String source,
+            String fingerprint) {
+        final ContentValues values = new ContentValues();
+        values.put(FingerprintColumns.LOCALE, locale);
+        values.put(FingerprintColumns.SOURCE, source);
+        values.put(FingerprintColumns.FINGERPRINT, fingerprint);
+        db.replaceOrThrow(Tables.TABLE_META_FINGERPRINTS, null, values);
+    }
+
+    /**
+     * Deletes the Index rows written by the given source for the given locale, along with its
+     * fingerprint, so that it is indexed again from scratch.
+     */
+    public static void deleteSource(SQLiteDatabase db, String locale, String source) {
+        final String[] args = new String[] { locale, source };
+        db.execSQL(DELETE_SOURCE_INDEX_ROWS, args);
+        db.delete(Tables.TABLE_META_SOURCE_ROWS,
+                SourceRowColumns.LOCALE + " = ? AND " + SourceRowColumns.SOURCE + " = ?", args);
+        db.delete(Tables.TABLE_META_FINGERPRINTS,
+                FingerprintColumns.LOCALE + " = ? AND " + FingerprintColumns.SOURCE + " = ?", args);
+    }
+
+    /**
+     * Deletes the sources that wrote any of the Index rows matching the given selection, with all
+     * their rows and fingerprints. The matching rows themselves are left to the caller.
+     */
+    public static void deleteSourcesOfRows(SQLiteDatabase db, String selection,
+            String[] selectionArgs) {
+        final List<String[]> sources = new ArrayList<String[]>();
+        Cursor cursor = null;
+        try {
+            cursor = db.query(true, Tables.TABLE_META_SOURCE_ROWS,
+                    new String[] { SourceRowColumns.LOCALE, SourceRowColumns.SOURCE },
+                    SourceRowColumns.DOCID + " IN (SELECT " + IndexColumns.DOCID + " FROM " +
+                            Tables.TABLE_PREFS_INDEX + " WHERE " + selection + ")",
+                    selectionArgs, null, null, null, null);
+            while (cursor.moveToNext()) {
+                sources.add(new String[] { cursor.getString(0), cursor.getString(1) });
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        for (String[] source : sources) {
+            deleteSource(db, source[0], source[1]);
+        }
+    }
+
     private void dropTables(SQLiteDatabase db) {
         clearLocalesIndexed(mContext);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_META_INDEX);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_META_FINGERPRINTS);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_META_SOURCE_ROWS);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_PREFS_INDEX);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_SAVED_QUERIES);
     }
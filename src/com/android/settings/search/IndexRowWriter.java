@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import com.android.settings.search.IndexDatabaseHelper.SourceRowColumns;
+import com.android.settings.search.IndexDatabaseHelper.Tables;
+
+import java.util.List;
+
+/**
+ * Single writer for the Index rows.
+ *
+ * Rows are inserted through one compiled statement, in the transaction of the caller which
+ * commits the whole indexing pass at once.
+ */
+class IndexRowWriter {
+
+    // Order of the bound arguments of the insert statement
+    private static final String[] COLUMNS = new String[] {
+            IndexColumns.DOCID,
+            IndexColumns.LOCALE,
+            IndexColumns.DATA_RANK,
+            IndexColumns.DATA_TITLE,
+            IndexColumns.DATA_TITLE_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_ON,
+            IndexColumns.DATA_SUMMARY_ON_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_OFF,
+            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED,
+            IndexColumns.DATA_ENTRIES,
+            IndexColumns.DATA_KEYWORDS,
+            IndexColumns.CLASS_NAME,
+            IndexColumns.SCREEN_TITLE,
+            IndexColumns.INTENT_ACTION,
+            IndexColumns.INTENT_TARGET_PACKAGE,
+            IndexColumns.INTENT_TARGET_CLASS,
+            IndexColumns.ICON,
+            IndexColumns.ENABLED,
+            IndexColumns.DATA_KEY_REF,
+            IndexColumns.USER_ID
+    };
+
+    private static final String INSERT_ROW_SQL = buildInsertSql();
+
+    private static final String INSERT_SOURCE_ROW_SQL =
+            "INSERT OR IGNORE INTO " + Tables.TABLE_META_SOURCE_ROWS + " (" +
+                    SourceRowColumns.LOCALE + ", " + SourceRowColumns.SOURCE + ", " +
+                    SourceRowColumns.DOCID + ") VALUES (?, ?, ?)";
+
+    private final SQLiteDatabase mDatabase;
+    private final SQLiteStatement mInsertStatement;
+    private final SQLiteStatement mInsertSourceRowStatement;
+
+    private int mRowCount;
+
+    IndexRowWriter(SQLiteDatabase database) {
+        mDatabase = database;
+        mInsertStatement = database.compileStatement(INSERT_ROW_SQL);
+        mInsertSourceRowStatement = database.compileStatement(INSERT_SOURCE_ROW_SQL);
+    }
+
+    /**
+     * Replaces the rows of one indexing source by the given ones.
+     */
+    void write(String locale, String source, List<ContentValues> rows) {
+        IndexDatabaseHelper.deleteSource(mDatabase, locale, source);
+        final int count = rows.size();
+        for (int n = 0; n < count; n++) {
+            final ContentValues values = rows.get(n);
+            bind(values);
+            mInsertStatement.executeInsert();
+            // Remember which source wrote the row, to delete it along with the source
+            mInsertSourceRowStatement.bindString(1, locale);
+            mInsertSourceRowStatement.bindString(2, source);
+            mInsertSourceRowStatement.bindLong(3, values.getAsInteger(IndexColumns.DOCID));
+            mInsertSourceRowStatement.executeInsert();
+            mRowCount++;
+        }
+    }
+
+    /**
+     * Records the fingerprint of a source, once its rows are written.
+     */
+    void setFingerprint(String locale, String source, String fingerprint) {
+        IndexDatabaseHelper.setFingerprint(mDatabase, locale, source, fingerprint);
+    }
+
+    /**
+     * Deletes the rows and fingerprint of a source that is gone.
+     */
+    void deleteSource(String locale, String source) {
+        IndexDatabaseHelper.deleteSource(mDatabase, locale, source);
+    }
+
+    /**
+     * @return the number of rows written so far.
+     */
+    int getRowCount() {
+        return mRowCount;
+    }
+
+    /**
+     * Releases the compiled statements.
+     */
+    void close() {
+        mInsertStatement.close();
+        mInsertSourceRowStatement.close();
+    }
+
+    private void bind(ContentValues values) {
+        mInsertStatement.clearBindings();
+        for (int n = 0; n < COLUMNS.length; n++) {
+            final int index = n + 1;
+            final Object value = values.get(COLUMNS[n]);
+            if (value == null) {
+                mInsertStatement.bindNull(index);
+            } else if (value instanceof Number) {
+                mInsertStatement.bindLong(index, ((Number) value).longValue());
+            } else if (value instanceof Boolean) {
+                mInsertStatement.bindLong(index, ((Boolean) value) ? 1 : 0);
+            } else {
+                mInsertStatement.bindString(index, value.toString());
+            }
+        }
+    }
+
+    private static String buildInsertSql() {
+        final StringBuilder sb = new StringBuilder("INSERT OR REPLACE INTO ");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(" (");
+        for (int n = 0; n < COLUMNS.length; n++) {
+            if (n > 0) {
+                sb.append(", ");
+            }
+            sb.append(COLUMNS[n]);
+        }
+        sb.append(") VALUES (");
+        for (int n = 0; n < COLUMNS.length; n++) {
+            if (n > 0) {
+                sb.append(", ");
+            }
+            sb.append('?');
+        }
+        sb.append(')');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Build;
+import android.util.Log;
+
+import com.android.settings.search.IndexDatabaseHelper.FingerprintColumns;
+import com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import com.android.settings.search.IndexDatabaseHelper.MetaColumns;
+import com.android.settings.search.IndexDatabaseHelper.SourceRowColumns;
+import com.android.settings.search.IndexDatabaseHelper.Tables;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Prebuilt Index snapshots.
+ *
+ * A snapshot is a plain SQLite database holding the prefs_index rows, the fingerprints and the
+ * row mappings of the static XML resources of one locale, as produced by
+ * {@link #export(SQLiteDatabase, String, File)} on a device running the same build. Snapshots
+ * are packaged as "search_index/&lt;locale&gt;.db" assets and bulk imported the first time a
+ * locale is indexed, so that only the sources that are not covered by the snapshot are indexed
+ * at runtime. Raw data and the data of local providers are built on the device, may be private
+ * to it, and are never part of a snapshot.
+ */
+class IndexSnapshot {
+
+    private static final String LOG_TAG = "IndexSnapshot";
+
+    private static final String ASSET_DIR = "search_index";
+    private static final String SNAPSHOT_EXTENSION = ".db";
+
+    private static final String[] INDEX_COLUMNS = new String[] {
+            IndexColumns.DOCID,
+            IndexColumns.LOCALE,
+            IndexColumns.DATA_RANK,
+            IndexColumns.DATA_TITLE,
+            IndexColumns.DATA_TITLE_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_ON,
+            IndexColumns.DATA_SUMMARY_ON_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_OFF,
+            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED,
+            IndexColumns.DATA_ENTRIES,
+            IndexColumns.DATA_KEYWORDS,
+            IndexColumns.SCREEN_TITLE,
+            IndexColumns.CLASS_NAME,
+            IndexColumns.ICON,
+            IndexColumns.INTENT_ACTION,
+            IndexColumns.INTENT_TARGET_PACKAGE,
+            IndexColumns.INTENT_TARGET_CLASS,
+            IndexColumns.ENABLED,
+            IndexColumns.DATA_KEY_REF,
+            IndexColumns.USER_ID
+    };
+
+    private static final String[] SOURCE_ROW_COLUMNS = new String[] {
+            SourceRowColumns.LOCALE,
+            SourceRowColumns.SOURCE,
+            SourceRowColumns.DOCID
+    };
+
+    private static final String[] FINGERPRINT_COLUMNS = new String[] {
+            FingerprintColumns.LOCALE,
+            FingerprintColumns.SOURCE,
+            FingerprintColumns.FINGERPRINT
+    };
+
+    // Sources of static XML resources are "package/class/res:<id>" with a non zero id, local
+    // providers use "res:0" and raw data "raw:<key>/<user id>". Applies to the source column of
+    // both the fingerprints and the row mappings.
+    private static final String STATIC_SOURCE_SELECTION =
+            SourceRowColumns.SOURCE + " GLOB '*/res:[1-9]*' AND "
+                    + SourceRowColumns.SOURCE + " NOT GLOB '*/raw:*'";
+
+    /**
+     * Opens the snapshot of the given locale if one is packaged for this build. The snapshot is
+     * a database of its own, the Index connection never attaches it as that would turn off its
+     * write-ahead logging.
+     *
+     * @return the read-only snapshot, to be imported by
+     * {@link #importRows(SQLiteDatabase, IndexRowWriter, String)} and then released by
+     * {@link #close(Context, SQLiteDatabase, String)}, or null if there is none.
+     */
+    static SQLiteDatabase open(Context context, String locale) {
+        final String assetName = ASSET_DIR + "/" + locale + SNAPSHOT_EXTENSION;
+        final File file = getFile(context, locale);
+        try {
+            if (!copyAsset(context, assetName, file)) {
+                return null;
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot extract snapshot " + assetName, e);
+            file.delete();
+            return null;
+        }
+
+        SQLiteDatabase snapshot = null;
+        try {
+            snapshot = SQLiteDatabase.openDatabase(file.getPath(), null,
+                    SQLiteDatabase.OPEN_READONLY);
+            final String build = DatabaseUtils.stringForQuery(snapshot,
+                    "SELECT " + MetaColumns.BUILD + " FROM " + Tables.TABLE_META_INDEX
+                            + " LIMIT 1", null);
+            if (!Build.VERSION.INCREMENTAL.equals(build)) {
+                Log.w(LOG_TAG, "Ignoring snapshot for '" + locale + "' built for " + build);
+                close(context, snapshot, locale);
+                return null;
+            }
+            return snapshot;
+        } catch (SQLiteException e) {
+            Log.w(LOG_TAG, "Cannot open snapshot " + assetName, e);
+            close(context, snapshot, locale);
+            return null;
+        }
+    }
+
+    /**
+     * Copies the rows and fingerprints of the static sources of the given snapshot through the
+     * writer, in the transaction of the caller.
+     */
+    static void importRows(SQLiteDatabase snapshot, IndexRowWriter writer, String locale) {
+        final long start = System.currentTimeMillis();
+        final String[] args = new String[] { locale };
+        final StringBuilder sql = new StringBuilder("SELECT s.");
+        sql.append(SourceRowColumns.SOURCE);
+        for (String column : INDEX_COLUMNS) {
+            sql.append(", p.").append(column);
+        }
+        // The selections are applied again in case the snapshot holds more than expected
+        sql.append(" FROM ").append(Tables.TABLE_META_SOURCE_ROWS).append(" s JOIN ")
+                .append(Tables.TABLE_PREFS_INDEX).append(" p ON p.").append(IndexColumns.DOCID)
+                .append(" = s.").append(SourceRowColumns.DOCID)
+                .append(" WHERE s.").append(SourceRowColumns.LOCALE).append(" = ?1 AND p.")
+                .append(IndexColumns.LOCALE).append(" = ?1 AND ")
+                .append(STATIC_SOURCE_SELECTION)
+                .append(" ORDER BY s.").append(SourceRowColumns.SOURCE);
+
+        Cursor cursor = snapshot.rawQuery(sql.toString(), args);
+        try {
+            final List<ContentValues> rows = new ArrayList<ContentValues>();
+            String source = null;
+            while (cursor.moveToNext()) {
+                final String rowSource = cursor.getString(0);
+                if (source != null && !source.equals(rowSource)) {
+                    writer.write(locale, source, rows);
+                    rows.clear();
+                }
+                source = rowSource;
+                rows.add(readValues(cursor, 1, INDEX_COLUMNS));
+            }
+            if (source != null) {
+                writer.write(locale, source, rows);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // Once the rows are written, as writing a source drops its fingerprint
+        cursor = snapshot.query(Tables.TABLE_META_FINGERPRINTS,
+                new String[] { FingerprintColumns.SOURCE, FingerprintColumns.FINGERPRINT },
+                FingerprintColumns.LOCALE + " = ? AND " + STATIC_SOURCE_SELECTION, args,
+                null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                writer.setFingerprint(locale, cursor.getString(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        Log.d(LOG_TAG, "Importing snapshot for '" + locale + "' took "
+                + (System.currentTimeMillis() - start) + " millis");
+    }
+
+    /**
+     * Closes the snapshot of the given locale, if any, and deletes its extracted copy.
+     */
+    static void close(Context context, SQLiteDatabase snapshot, String locale) {
+        try {
+            if (snapshot != null) {
+                snapshot.close();
+            }
+        } finally {
+            getFile(context, locale).delete();
+        }
+    }
+
+    /**
+     * Writes the Index rows, fingerprints and row mappings of the static XML resources of the
+     * given locale into a new snapshot file.
+     */
+    static void export(SQLiteDatabase database, String locale, File file) {
+        file.delete();
+        final String[] args = new String[] { locale };
+        final SQLiteDatabase snapshot = SQLiteDatabase.openOrCreateDatabase(file, null);
+        snapshot.beginTransaction();
+        try {
+            snapshot.execSQL("CREATE TABLE " + Tables.TABLE_META_INDEX
+                    + " (" + MetaColumns.BUILD + " VARCHAR(32) NOT NULL)");
+            snapshot.execSQL("INSERT INTO " + Tables.TABLE_META_INDEX + " VALUES (?)",
+                    new Object[] { Build.VERSION.INCREMENTAL });
+            // Untyped columns, so that values keep the types they have in the Index
+            snapshot.execSQL("CREATE TABLE " + Tables.TABLE_META_SOURCE_ROWS + " ("
+                    + join(SOURCE_ROW_COLUMNS) + ")");
+            snapshot.execSQL("CREATE TABLE " + Tables.TABLE_PREFS_INDEX + " ("
+                    + join(INDEX_COLUMNS) + ")");
+            snapshot.execSQL("CREATE TABLE " + Tables.TABLE_META_FINGERPRINTS + " ("
+                    + join(FINGERPRINT_COLUMNS) + ")");
+
+            copyRows(database.query(Tables.TABLE_META_SOURCE_ROWS, SOURCE_ROW_COLUMNS,
+                    SourceRowColumns.LOCALE + " = ? AND " + STATIC_SOURCE_SELECTION, args,
+                    null, null, null), SOURCE_ROW_COLUMNS, snapshot,
+                    Tables.TABLE_META_SOURCE_ROWS);
+            copyRows(database.query(Tables.TABLE_PREFS_INDEX, INDEX_COLUMNS,
+                    IndexColumns.LOCALE + " = ?1 AND " + IndexColumns.DOCID + " IN (SELECT "
+                            + SourceRowColumns.DOCID + " FROM "
+                            + Tables.TABLE_META_SOURCE_ROWS + " WHERE "
+                            + SourceRowColumns.LOCALE + " = ?1 AND " + STATIC_SOURCE_SELECTION
+                            + ")", args, null, null, null), INDEX_COLUMNS, snapshot,
+                    Tables.TABLE_PREFS_INDEX);
+            copyRows(database.query(Tables.TABLE_META_FINGERPRINTS, FINGERPRINT_COLUMNS,
+                    FingerprintColumns.LOCALE + " = ? AND " + STATIC_SOURCE_SELECTION, args,
+                    null, null, null), FINGERPRINT_COLUMNS, snapshot,
+                    Tables.TABLE_META_FINGERPRINTS);
+            snapshot.setTransactionSuccessful();
+        } finally {
+            snapshot.endTransaction();
+            snapshot.close();
+        }
+    }
+
+    private static void copyRows(Cursor cursor, String[] columns, SQLiteDatabase target,
+            String table) {
+        try {
+            while (cursor.moveToNext()) {
+                target.insertOrThrow(table, null, readValues(cursor, 0, columns));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Reads the given columns of the current row, starting at the given cursor column, keeping
+     * the type of each value.
+     */
+    private static ContentValues readValues(Cursor cursor, int from, String[] columns) {
+        final ContentValues values = new ContentValues(columns.length);
+        for (int n = 0; n < columns.length; n++) {
+            final int index = from + n;
+            switch (cursor.getType(index)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    values.putNull(columns[n]);
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    values.put(columns[n], cursor.getLong(index));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    values.put(columns[n], cursor.getDouble(index));
+                    break;
+                default:
+                    values.put(columns[n], cursor.getString(index));
+                    break;
+            }
+        }
+        return values;
+    }
+
+    private static File getFile(Context context, String locale) {
+        return new File(context.getCacheDir(), locale + SNAPSHOT_EXTENSION);
+    }
+
+    private static boolean copyAsset(Context context, String assetName, File file)
+            throws IOException {
+        final InputStream in;
+        try {
+            in = context.getAssets().open(assetName);
+        } catch (IOException e) {
+            // No snapshot for this locale
+            return false;
+        }
+        try {
+            final OutputStream out = new FileOutputStream(file);
+            try {
+                final byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return true;
+    }
+
+    private static String join(String[] columns) {
+        final StringBuilder sb = new StringBuilder();
+        for (int n = 0; n < columns.length; n++) {
+            if (n > 0) {
+                sb.append(", ");
+            }
+            sb.append(columns[n]);
+        }
+        return sb.toString();
+    }
+}
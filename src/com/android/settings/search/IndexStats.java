@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Timings and counters of the search Index: indexing passes, parsing of each kind of source,
+ * database transactions and search query latencies.
+ */
+public final class IndexStats {
+
+    public static final String KIND_RESOURCE = "resource";
+    public static final String KIND_PROVIDER = "provider";
+    public static final String KIND_RAW = "raw";
+
+    private static final String[] KINDS = { KIND_RESOURCE, KIND_PROVIDER, KIND_RAW };
+
+    // Number of query latencies kept for computing percentiles
+    private static final int QUERY_SAMPLES = 256;
+
+    private static final long NANOS_PER_MILLI = 1000000;
+    private static final long NANOS_PER_MICRO = 1000;
+
+    /**
+     * Parsing counters for one kind of source.
+     */
+    private static class ParseCounters {
+        int sources;
+        int rows;
+        long totalNanos;
+        long maxNanos;
+        String slowestSource;
+    }
+
+    /**
+     * Ring buffer of the latest query latencies.
+     */
+    private static class LatencySamples {
+        final long[] samples = new long[QUERY_SAMPLES];
+        int next;
+        long count;
+
+        void add(long nanos) {
+            samples[next] = nanos;
+            next = (next + 1) % QUERY_SAMPLES;
+            count++;
+        }
+
+        long percentileMicros(int percentile) {
+            final int size = (int) Math.min(count, QUERY_SAMPLES);
+            if (size == 0) {
+                return 0;
+            }
+            final long[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            return sorted[Math.min(size - 1, size * percentile / 100)] / NANOS_PER_MICRO;
+        }
+    }
+
+    private final ParseCounters[] mParseCounters = new ParseCounters[KINDS.length];
+
+    private int mPasses;
+    private long mLastPassNanos;
+    private int mLastPassSourcesIndexed;
+    private int mLastPassSourcesSkipped;
+    private int mLastPassRows;
+
+    private long mRowsInserted;
+    private int mTransactions;
+    private long mTransactionNanos;
+
+    private final LatencySamples mDatabaseQueries = new LatencySamples();
+    private final LatencySamples mMemoryQueries = new LatencySamples();
+
+    IndexStats() {
+        for (int n = 0; n < KINDS.length; n++) {
+            mParseCounters[n] = new ParseCounters();
+        }
+    }
+
+    synchronized void recordParse(String kind, String source, long nanos, int rows) {
+        final ParseCounters counters = mParseCounters[indexOfKind(kind)];
+        counters.sources++;
+        counters.rows += rows;
+        counters.totalNanos += nanos;
+        if (nanos > counters.maxNanos) {
+            counters.maxNanos = nanos;
+            counters.slowestSource = source;
+        }
+    }
+
+    synchronized void recordTransaction(long nanos, int rows) {
+        mTransactions++;
+        mTransactionNanos += nanos;
+        mRowsInserted += rows;
+    }
+
+    synchronized void recordPass(long nanos, int sourcesIndexed, int sourcesSkipped, int rows) {
+        mPasses++;
+        mLastPassNanos = nanos;
+        mLastPassSourcesIndexed = sourcesIndexed;
+        mLastPassSourcesSkipped = sourcesSkipped;
+        mLastPassRows = rows;
+    }
+
+    synchronized void recordQuery(long nanos, boolean inMemory) {
+        (inMemory ? mMemoryQueries : mDatabaseQueries).add(nanos);
+    }
+
+    /**
+     * @return the number of completed indexing passes.
+     */
+    public synchronized int getPasses() {
+        return mPasses;
+    }
+
+    /**
+     * @return the number of rows written during the last indexing pass.
+     */
+    public synchronized int getLastPassRows() {
+        return mLastPassRows;
+    }
+
+    /**
+     * @return the number of sources re-indexed during the last indexing pass.
+     */
+    public synchronized int getLastPassSourcesIndexed() {
+        return mLastPassSourcesIndexed;
+    }
+
+    /**
+     * @return the number of sources skipped during the last indexing pass as their fingerprint
+     * did not change.
+     */
+    public synchronized int getLastPassSourcesSkipped() {
+        return mLastPassSourcesSkipped;
+    }
+
+    /**
+     * @return the total number of rows written since the process started.
+     */
+    public synchronized long getRowsInserted() {
+        return mRowsInserted;
+    }
+
+    /**
+     * @return the given percentile of the latest search query latencies, in microseconds.
+     */
+    public synchronized long getQueryLatencyMicros(int percentile, boolean inMemory) {
+        return (inMemory ? mMemoryQueries : mDatabaseQueries).percentileMicros(percentile);
+    }
+
+    synchronized JSONObject dump() throws JSONException {
+        final JSONObject obj = new JSONObject();
+        obj.put("passes", mPasses);
+
+        final JSONObject lastPass = new JSONObject();
+        lastPass.put("millis", mLastPassNanos / NANOS_PER_MILLI);
+        lastPass.put("sourcesIndexed", mLastPassSourcesIndexed);
+        lastPass.put("sourcesSkipped", mLastPassSourcesSkipped);
+        lastPass.put("rows", mLastPassRows);
+        obj.put("lastPass", lastPass);
+
+        final JSONObject parse = new JSONObject();
+        for (int n = 0; n < KINDS.length; n++) {
+            final ParseCounters counters = mParseCounters[n];
+            final JSONObject kind = new JSONObject();
+            kind.put("sources", counters.sources);
+            kind.put("rows", counters.rows);
+            kind.put("totalMillis", counters.totalNanos / NANOS_PER_MILLI);
+            kind.put("maxMillis", counters.maxNanos / NANOS_PER_MILLI);
+            kind.put("slowest", counters.slowestSource);
+            parse.put(KINDS[n], kind);
+        }
+        obj.put("parse", parse);
+
+        final JSONObject transactions = new JSONObject();
+        transactions.put("count", mTransactions);
+        transactions.put("rows", mRowsInserted);
+        transactions.put("totalMillis", mTransactionNanos / NANOS_PER_MILLI);
+        obj.put("transactions", transactions);
+
+        obj.put("queries", dumpQueries(mDatabaseQueries));
+        obj.put("memoryQueries", dumpQueries(mMemoryQueries));
+        return obj;
+    }
+
+    private static JSONObject dumpQueries(LatencySamples samples) throws JSONException {
+        final JSONObject obj = new JSONObject();
+        obj.put("count", samples.count);
+        obj.put("p50Micros", samples.percentileMicros(50));
+        obj.put("p90Micros", samples.percentileMicros(90));
+        obj.put("p99Micros", samples.percentileMicros(99));
+        return obj;
+    }
+
+    private static int indexOfKind(String kind) {
+        for (int n = 0; n < KINDS.length; n++) {
+            if (KINDS[n].equals(kind)) {
+                return n;
+            }
+        }
+        throw new IllegalArgumentException("Unknown source kind: " + kind);
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.settings.search.IndexDatabaseHelper.SavedQueriesColums;
+import com.android.settings.search.IndexDatabaseHelper.Tables;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Most recently used search queries, used for proposing suggestions.
+ *
+ * The queries are kept in memory, most recent first, and bounded to {@link #MAX_SAVED_QUERIES}
+ * entries so a suggestion lookup costs the same whatever the size of the history on disk.
+ * Saving a query updates the memory copy right away and writes it to the database on a
+ * background thread through compiled statements.
+ */
+class SavedQueries {
+
+    private static final String LOG_TAG = "SavedQueries";
+
+    // Max number of saved search queries (who will be used for proposing suggestions)
+    static final int MAX_SAVED_QUERIES = 64;
+
+    private static final String[] COLUMNS = new String[] { SavedQueriesColums.QUERY };
+
+    private static final String SELECT_QUERIES_SQL =
+            "SELECT " + SavedQueriesColums.QUERY + " FROM " + Tables.TABLE_SAVED_QUERIES +
+                    " ORDER BY rowId DESC LIMIT " + MAX_SAVED_QUERIES;
+
+    private static final String DELETE_QUERY_SQL =
+            "DELETE FROM " + Tables.TABLE_SAVED_QUERIES +
+                    " WHERE " + SavedQueriesColums.QUERY + " = ?";
+
+    private static final String INSERT_QUERY_SQL =
+            "INSERT INTO " + Tables.TABLE_SAVED_QUERIES +
+                    " (" + SavedQueriesColums.QUERY + ", " + SavedQueriesColums.TIME_STAMP + ")" +
+                    " VALUES (?, ?)";
+
+    private static final String DELETE_OLD_QUERIES_SQL =
+            "DELETE FROM " + Tables.TABLE_SAVED_QUERIES + " WHERE rowId <= ?";
+
+    private static final int WRITE_THREAD_KEEP_ALIVE_SECONDS = 5;
+
+    private final Context mContext;
+
+    // Most recent query first. Guarded by "this".
+    private final ArrayList<String> mQueries = new ArrayList<String>(MAX_SAVED_QUERIES + 1);
+    private boolean mLoaded;
+
+    private final ExecutorService mWriteExecutor = createWriteExecutor();
+
+    // Only used from mWriteExecutor. The statements belong to mStatementsDatabase.
+    private SQLiteDatabase mStatementsDatabase;
+    private SQLiteStatement mDeleteStatement;
+    private SQLiteStatement mInsertStatement;
+    private SQLiteStatement mDeleteOldStatement;
+
+    SavedQueries(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * @return a cursor with a single {@link SavedQueriesColums#QUERY} column holding at most
+     * {@code limit} recent queries starting with {@code prefix}, most recent first.
+     */
+    Cursor getSuggestions(String prefix, int limit) {
+        final MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        synchronized (this) {
+            ensureLoadedLocked();
+            final int prefixLength = (prefix != null) ? prefix.length() : 0;
+            final int count = mQueries.size();
+            for (int n = 0; n < count && cursor.getCount() < limit; n++) {
+                final String query = mQueries.get(n);
+                // Case insensitive, like the LIKE operator used previously
+                if (prefixLength == 0 || query.regionMatches(true, 0, prefix, 0, prefixLength)) {
+                    cursor.addRow(new Object[] { query });
+                }
+            }
+        }
+        return cursor;
+    }
+
+    /**
+     * Save a query as the most recent one. This never blocks on the database.
+     */
+    void add(final String query) {
+        if (TextUtils.isEmpty(query)) {
+            return;
+        }
+        synchronized (this) {
+            mQueries.remove(query);
+            mQueries.add(0, query);
+            while (mQueries.size() > MAX_SAVED_QUERIES) {
+                mQueries.remove(mQueries.size() - 1);
+            }
+        }
+        final long now = System.currentTimeMillis();
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                persist(query, now);
+            }
+        });
+    }
+
+    private void ensureLoadedLocked() {
+        if (mLoaded) {
+            return;
+        }
+        Cursor cursor = null;
+        try {
+            final SQLiteDatabase database =
+                    IndexDatabaseHelper.getInstance(mContext).getReadableDatabase();
+            cursor = database.rawQuery(SELECT_QUERIES_SQL, null);
+            // Queries saved before loading are more recent than the ones on disk
+            while (cursor.moveToNext()) {
+                final String query = cursor.getString(0);
+                if (!mQueries.contains(query) && mQueries.size() < MAX_SAVED_QUERIES) {
+                    mQueries.add(query);
+                }
+            }
+            // Retried on the next lookup otherwise
+            mLoaded = true;
+        } catch (SQLiteException e) {
+            Log.e(LOG_TAG, "Cannot load saved Search queries", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private void persist(String query, long timeStamp) {
+        try {
+            final SQLiteDatabase database =
+                    IndexDatabaseHelper.getInstance(mContext).getWritableDatabase();
+            if (database != mStatementsDatabase) {
+                // The helper has opened the database again since the statements were compiled
+                closeStatements();
+                mDeleteStatement = database.compileStatement(DELETE_QUERY_SQL);
+                mInsertStatement = database.compileStatement(INSERT_QUERY_SQL);
+                mDeleteOldStatement = database.compileStatement(DELETE_OLD_QUERIES_SQL);
+                mStatementsDatabase = database;
+            }
+            database.beginTransaction();
+            try {
+                // First, delete all saved queries that are the same
+                mDeleteStatement.bindString(1, query);
+                mDeleteStatement.executeUpdateDelete();
+
+                // Second, insert the saved query
+                mInsertStatement.bindString(1, query);
+                mInsertStatement.bindLong(2, timeStamp);
+                final long lastInsertedRowId = mInsertStatement.executeInsert();
+
+                // Last, remove "old" saved queries
+                final long delta = lastInsertedRowId - MAX_SAVED_QUERIES;
+                if (delta > 0) {
+                    mDeleteOldStatement.bindLong(1, delta);
+                    mDeleteOldStatement.executeUpdateDelete();
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        } catch (Exception e) {
+            Log.d(LOG_TAG, "Cannot update saved Search queries", e);
+            // Compiled again on the next write
+            closeStatements();
+        }
+    }
+
+    private void closeStatements() {
+        if (mStatementsDatabase == null) {
+            return;
+        }
+        try {
+            mDeleteStatement.close();
+            mInsertStatement.close();
+            mDeleteOldStatement.close();
+        } catch (Exception e) {
+            Log.d(LOG_TAG, "Cannot close saved Search queries statements", e);
+        }
+        mStatementsDatabase = null;
+        mDeleteStatement = null;
+        mInsertStatement = null;
+        mDeleteOldStatement = null;
+    }
+
+    private static ExecutorService createWriteExecutor() {
+        // A single low priority daemon thread, which goes away when there is nothing to write
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+                WRITE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        final Thread thread = new Thread(r, "SavedQueriesWriter");
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -258,8 +258,8 @@ public class ChartDataUsageView extends ChartView {
             mSweepLimit.setValidRange(0L, newMax);
 
             if (changed) {
-                mSeries.invalidatePath();
-                mDetailSeries.invalidatePath();
+                mSeries.invalidateVertAxis();
+                mDetailSeries.invalidateVertAxis();
             }
 
             mGrid.invalidate();
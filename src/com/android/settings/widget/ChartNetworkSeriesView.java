@@ -30,9 +30,12 @@ import android.util.AttributeSet;
 import android.util.Log;
 import android.view.View;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.Preconditions;
 import com.android.settings.R;
 
+import java.util.Arrays;
+
 import static android.text.format.DateUtils.DAY_IN_MILLIS;
 import static android.text.format.DateUtils.WEEK_IN_MILLIS;
 
@@ -46,6 +49,9 @@ public class ChartNetworkSeriesView extends View {
 
     private static final boolean ESTIMATE_ENABLED = false;
 
+    /** Value of {@link #mPointTotal} for the bottom of the graph. */
+    private static final long BOTTOM = -1;
+
     private ChartAxis mHoriz;
     private ChartAxis mVert;
 
@@ -71,6 +77,18 @@ public class ChartNetworkSeriesView extends View {
     /** Series will be extended to reach this end time. */
     private long mEndTime = Long.MIN_VALUE;
 
+    /**
+     * Cumulative series read from {@link #mStats}, keeping the first and last
+     * point of each pixel column along with the points starting a gap. Only
+     * depends on the horizontal axis.
+     */
+    private float[] mPointX = new float[0];
+    private long[] mPointTotal = new long[0];
+    private int mPointCount;
+    private boolean mLastPointGap;
+    private long mLastTime;
+
+    private boolean mPointsValid = false;
     private boolean mPathValid = false;
     private boolean mEstimateVisible = false;
     private boolean mSecondary = false;
@@ -151,8 +169,12 @@ public class ChartNetworkSeriesView extends View {
     }
 
     public void setBounds(long start, long end) {
-        mStart = start;
-        mEnd = end;
+        if (start != mStart || end != mEnd) {
+            mStart = start;
+            mEnd = end;
+            mPointsValid = false;
+            mPathValid = false;
+        }
     }
 
     public void setSecondary(boolean secondary) {
@@ -170,45 +192,53 @@ public class ChartNetworkSeriesView extends View {
     }
 
     public void invalidatePath() {
+        mPointsValid = false;
         mPathValid = false;
         mMax = 0;
         invalidate();
     }
 
     /**
-     * Erase any existing {@link Path} and generate series outline based on
-     * currently bound {@link NetworkStatsHistory} data.
+     * Only the vertical axis changed, such as while dragging a sweep: keep the
+     * points read from {@link NetworkStatsHistory} and only project them again.
      */
-    private void generatePath() {
-        if (LOGD) Log.d(TAG, "generatePath()");
+    public void invalidateVertAxis() {
+        mPathValid = false;
+        invalidate();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        invalidatePath();
+    }
+
+    /**
+     * Walk the currently bound {@link NetworkStatsHistory} once, keeping the
+     * running total at the end of each bucket along with its horizontal
+     * position. Buckets ending in the same pixel column are collapsed, so the
+     * series holds a couple of points per column however many buckets there
+     * are.
+     */
+    private void generatePoints() {
+        if (LOGD) Log.d(TAG, "generatePoints()");
 
         mMax = 0;
-        mPathStroke.reset();
-        mPathFill.reset();
-        mPathEstimate.reset();
-        mPathValid = true;
+        mPointCount = 0;
+        mLastPointGap = false;
+        mPointsValid = true;
 
         // bail when not enough stats to render
         if (mStats == null || mStats.size() < 2) {
             return;
         }
 
-        final int width = getWidth();
-        final int height = getHeight();
-
-        boolean started = false;
-        float lastX = 0;
-        float lastY = height;
-        long lastTime = mHoriz.convertToValue(lastX);
-
-        // move into starting position
-        mPathStroke.moveTo(lastX, lastY);
-        mPathFill.moveTo(lastX, lastY);
-
         // TODO: count fractional data from first bucket crossing start;
         // currently it only accepts first full bucket.
 
         long totalData = 0;
+        long lastTotal = BOTTOM;
+        long lastTime = mHoriz.convertToValue(0);
 
         NetworkStatsHistory.Entry entry = null;
 
@@ -220,7 +250,6 @@ public class ChartNetworkSeriesView extends View {
             final long startTime = entry.bucketStart;
             final long endTime = startTime + entry.bucketDuration;
 
-            final float startX = mHoriz.convertToPoint(startTime);
             final float endX = mHoriz.convertToPoint(endTime);
 
             // skip until we find first stats on screen
@@ -229,27 +258,111 @@ public class ChartNetworkSeriesView extends View {
             // increment by current bucket total
             totalData += entry.rxBytes + entry.txBytes;
 
-            final float startY = lastY;
-            final float endY = mVert.convertToPoint(totalData);
-
             if (lastTime != startTime) {
                 // gap in buckets; line to start of current bucket
-                mPathStroke.lineTo(startX, startY);
-                mPathFill.lineTo(startX, startY);
+                addPoint(mHoriz.convertToPoint(startTime), lastTotal, true);
             }
 
             // always draw to end of current bucket
-            mPathStroke.lineTo(endX, endY);
-            mPathFill.lineTo(endX, endY);
+            addPoint(endX, totalData, false);
 
-            lastX = endX;
-            lastY = endY;
+            lastTotal = totalData;
             lastTime = endTime;
         }
 
         // when data falls short, extend to requested end time
         if (lastTime < mEndTime) {
-            lastX = mHoriz.convertToPoint(mEndTime);
+            addPoint(mHoriz.convertToPoint(mEndTime), lastTotal, false);
+        }
+
+        mMax = totalData;
+        mLastTime = lastTime;
+    }
+
+    /**
+     * @param gap whether the point starts the flat line across a gap in
+     *            buckets, which is never collapsed into the next point.
+     */
+    private void addPoint(float x, long total, boolean gap) {
+        final int column = (int) x;
+        if (mPointCount > 1 && !mLastPointGap
+                && column == (int) mPointX[mPointCount - 1]
+                && column == (int) mPointX[mPointCount - 2]) {
+            // totals only grow, so the first and last points of a column are
+            // enough to draw it; move the last one
+            mPointX[mPointCount - 1] = x;
+            mPointTotal[mPointCount - 1] = total;
+            mLastPointGap = gap;
+            return;
+        }
+        if (mPointCount == mPointX.length) {
+            final int capacity = Math.max(mPointCount * 2, getWidth() * 2 + 2);
+            mPointX = Arrays.copyOf(mPointX, capacity);
+            mPointTotal = Arrays.copyOf(mPointTotal, capacity);
+        }
+        mPointX[mPointCount] = x;
+        mPointTotal[mPointCount] = total;
+        mPointCount++;
+        mLastPointGap = gap;
+    }
+
+    /**
+     * @return the vertices of the series outline following its starting
+     * position, as x and y pairs in screen coordinates.
+     */
+    @VisibleForTesting
+    float[] getOutline() {
+        if (!mPointsValid) {
+            generatePoints();
+        }
+        final int height = getHeight();
+        final float[] outline = new float[mPointCount * 2];
+        for (int i = 0; i < mPointCount; i++) {
+            outline[i * 2] = mPointX[i];
+            outline[i * 2 + 1] = convertTotalToPoint(mPointTotal[i], height);
+        }
+        return outline;
+    }
+
+    private float convertTotalToPoint(long total, int height) {
+        return total == BOTTOM ? height : mVert.convertToPoint(total);
+    }
+
+    /**
+     * Erase any existing {@link Path} and generate series outline from the
+     * points of the currently bound {@link NetworkStatsHistory} data, in
+     * O(width) whatever the number of buckets.
+     */
+    private void generatePath() {
+        if (LOGD) Log.d(TAG, "generatePath()");
+
+        if (!mPointsValid) {
+            generatePoints();
+        }
+
+        mPathStroke.rewind();
+        mPathFill.rewind();
+        mPathEstimate.rewind();
+        mPathValid = true;
+
+        // bail when not enough stats to render
+        if (mStats == null || mStats.size() < 2) {
+            return;
+        }
+
+        final int width = getWidth();
+        final int height = getHeight();
+
+        float lastX = 0;
+        float lastY = height;
+
+        // move into starting position
+        mPathStroke.moveTo(lastX, lastY);
+        mPathFill.moveTo(lastX, lastY);
+
+        for (int i = 0; i < mPointCount; i++) {
+            lastX = mPointX[i];
+            lastY = convertTotalToPoint(mPointTotal[i], height);
 
             mPathStroke.lineTo(lastX, lastY);
             mPathFill.lineTo(lastX, lastY);
@@ -259,24 +372,25 @@ public class ChartNetworkSeriesView extends View {
             final RectF bounds = new RectF();
             mPathFill.computeBounds(bounds, true);
             Log.d(TAG, "onLayout() rendered with bounds=" + bounds.toString() + " and totalData="
-                    + totalData);
+                    + mMax);
         }
 
         // drop to bottom of graph from current location
         mPathFill.lineTo(lastX, height);
         mPathFill.lineTo(0, height);
 
-        mMax = totalData;
-
         if (ESTIMATE_ENABLED) {
             // build estimated data
             mPathEstimate.moveTo(lastX, lastY);
 
             final long now = System.currentTimeMillis();
             final long bucketDuration = mStats.getBucketDuration();
+            final long lastTime = mLastTime;
+            long totalData = mMax;
 
             // long window is average over two weeks
-            entry = mStats.getValues(lastTime - WEEK_IN_MILLIS * 2, lastTime, now, entry);
+            NetworkStatsHistory.Entry entry = mStats.getValues(
+                    lastTime - WEEK_IN_MILLIS * 2, lastTime, now, null);
             final long longWindow = (entry.rxBytes + entry.txBytes) * bucketDuration
                     / entry.bucketDuration;
 
@@ -305,7 +419,11 @@ public class ChartNetworkSeriesView extends View {
     }
 
     public void setEndTime(long endTime) {
-        mEndTime = endTime;
+        if (endTime != mEndTime) {
+            mEndTime = endTime;
+            mPointsValid = false;
+            mPathValid = false;
+        }
     }
 
     public void setEstimateVisible(boolean estimateVisible) {
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.icu.text.AlphabeticIndex;
+import android.os.LocaleList;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.android.settingslib.applications.ApplicationsState;
+import com.android.settingslib.applications.ApplicationsState.AppEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Replays a storm of size computations against the app list, the way the apps list sorted by
+ * size sees them. Logs the cost of keeping the fast scroll sections up to date, and how many of
+ * the visible rows have to be bound again when the order of the list did not change.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class AppListSizeStormBenchmark {
+
+    private static final String TAG = "AppListSizeStormBenchmark";
+
+    private static final int APP_COUNT = 500;
+    private static final int SIZE_UPDATES = 2000;
+    private static final int VISIBLE_ROWS = 12;
+
+    private static final String[] WORDS = { "Camera", "Clock", "Drive", "Email", "Files",
+            "Gallery", "Keep", "Maps", "Music", "News", "Photos", "Play", "Calendar", "Contacts",
+            "Weather", "Zoom", "Ärzte", "Études", "Ölwechsel", "Ça va" };
+
+    @Test
+    public void testSizeStorm() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final LocaleList locales = context.getResources().getConfiguration().getLocales();
+        final Random random = new Random(0);
+
+        final ArrayList<AppEntry> apps = new ArrayList<>(APP_COUNT);
+        for (int i = 0; i < APP_COUNT; i++) {
+            final ApplicationInfo info = new ApplicationInfo();
+            info.packageName = "com.example.storm" + i;
+            info.sourceDir = "/nonexistent/" + info.packageName + ".apk";
+            final AppEntry entry = new AppEntry(context, info, i);
+            entry.label = WORDS[random.nextInt(WORDS.length)] + " " + i;
+            entry.size = random.nextInt(1 << 20);
+            entry.sizeStr = Long.toString(entry.size);
+            apps.add(entry);
+        }
+        Collections.sort(apps, ApplicationsState.SIZE_COMPARATOR);
+
+        final AppListSections sections = new AppListSections(
+                AppEntryCollation.getInstance(locales));
+        final AlphabeticIndex<Locale> alphabeticIndex = new AlphabeticIndex<>(locales.get(0));
+        for (int i = 1; i < locales.size(); i++) {
+            alphabeticIndex.addLabels(locales.get(i));
+        }
+        alphabeticIndex.addLabels(Locale.ENGLISH);
+        final AlphabeticIndex.ImmutableIndex<Locale> index =
+                alphabeticIndex.buildImmutableIndex();
+
+        long cachedNanos = 0;
+        long uncachedNanos = 0;
+        int reordered = 0;
+        int reboundRows = 0;
+        ArrayList<AppEntry> previous = new ArrayList<>(apps);
+        final AppViewHolder[] visible = bindVisibleRows(previous);
+        for (int n = 0; n < SIZE_UPDATES; n++) {
+            // One size computation completes, the list is then sorted and rebuilt.
+            final AppEntry updated = apps.get(random.nextInt(APP_COUNT));
+            updated.size = random.nextInt(1 << 20);
+            updated.sizeStr = Long.toString(updated.size);
+            final ArrayList<AppEntry> entries = new ArrayList<>(apps);
+            Collections.sort(entries, ApplicationsState.SIZE_COMPARATOR);
+            if (!entries.equals(previous)) {
+                // The whole list is invalidated, and every visible row bound again
+                reordered++;
+                System.arraycopy(bindVisibleRows(entries), 0, visible, 0, visible.length);
+            } else {
+                for (AppViewHolder holder : visible) {
+                    if (!holder.isBoundToCurrentState()) {
+                        holder.setBound();
+                        reboundRows++;
+                    }
+                }
+            }
+            previous = entries;
+
+            long start = SystemClock.elapsedRealtimeNanos();
+            sections.update(entries);
+            cachedNanos += SystemClock.elapsedRealtimeNanos() - start;
+
+            // What every rebuild used to pay: one collator lookup per entry.
+            start = SystemClock.elapsedRealtimeNanos();
+            int sectionCount = 0;
+            int lastSecId = -1;
+            for (int pos = 0; pos < entries.size(); pos++) {
+                final int secId = index.getBucketIndex(entries.get(pos).label);
+                if (secId != lastSecId) {
+                    lastSecId = secId;
+                    sectionCount++;
+                }
+            }
+            uncachedNanos += SystemClock.elapsedRealtimeNanos() - start;
+
+            assertEquals(sectionCount, sections.getSections().length);
+        }
+
+        Log.i(TAG, SIZE_UPDATES + " size updates over " + APP_COUNT + " apps, " + reordered
+                + " changed the order of the list");
+        Log.i(TAG, "Unchanged order: " + reboundRows + " rows rebound instead of "
+                + (SIZE_UPDATES - reordered) * VISIBLE_ROWS);
+        Log.i(TAG, "Section updates: " + (cachedNanos / SIZE_UPDATES / 1000)
+                + " us incremental, " + (uncachedNanos / SIZE_UPDATES / 1000) + " us from scratch");
+    }
+
+    private static AppViewHolder[] bindVisibleRows(ArrayList<AppEntry> entries) {
+        final AppViewHolder[] holders = new AppViewHolder[VISIBLE_ROWS];
+        for (int i = 0; i < VISIBLE_ROWS; i++) {
+            holders[i] = new AppViewHolder();
+            holders[i].entry = entries.get(i);
+            holders[i].setBound();
+        }
+        return holders;
+    }
+}
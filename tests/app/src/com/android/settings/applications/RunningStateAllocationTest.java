@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.ActivityManager;
+import android.app.ActivityManagerNative;
+import android.content.Context;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.Method;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Counts the objects allocated by the running services poll once nothing changes anymore, on
+ * top of what the activity manager calls it makes allocate by themselves.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class RunningStateAllocationTest {
+
+    private static final String TAG = "RunningStateAllocationTest";
+
+    private static final int WARM_UP_UPDATES = 5;
+    private static final int MEASURED_UPDATES = 10;
+
+    // Leaves room for the reflective call and for a size crossing a display boundary.
+    private static final int ALLOWED_ALLOCATIONS = 16;
+
+    @Test
+    public void testSteadyStateUpdateAllocations() throws Exception {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final ActivityManager am =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+
+        // RunningState is not public, drive it the way its background handler does.
+        final Class<?> clazz = Class.forName("com.android.settings.applications.RunningState");
+        final Method getInstance = clazz.getDeclaredMethod("getInstance", Context.class);
+        getInstance.setAccessible(true);
+        final Object state = getInstance.invoke(null, context);
+        final Method setAdaptiveRefresh =
+                clazz.getDeclaredMethod("setAdaptiveRefresh", boolean.class);
+        setAdaptiveRefresh.setAccessible(true);
+        // Sample the PSS of every process on every update, the most expensive case.
+        setAdaptiveRefresh.invoke(state, false);
+        final Method update =
+                clazz.getDeclaredMethod("update", Context.class, ActivityManager.class);
+        update.setAccessible(true);
+        final Object[] args = { context.getApplicationContext(), am };
+
+        for (int i = 0; i < WARM_UP_UPDATES; i++) {
+            update.invoke(state, args);
+        }
+
+        final List<ActivityManager.RunningAppProcessInfo> processes =
+                am.getRunningAppProcesses();
+        final int[] pids = new int[processes.size()];
+        for (int i = 0; i < pids.length; i++) {
+            pids[i] = processes.get(i).pid;
+        }
+
+        // Other processes come and go, keep the quietest update.
+        int updateAllocations = Integer.MAX_VALUE;
+        int ipcAllocations = Integer.MAX_VALUE;
+        Debug.startAllocCounting();
+        try {
+            for (int i = 0; i < MEASURED_UPDATES; i++) {
+                Debug.resetThreadAllocCount();
+                update.invoke(state, args);
+                updateAllocations = Math.min(updateAllocations, Debug.getThreadAllocCount());
+
+                Debug.resetThreadAllocCount();
+                am.getRunningServices(RunningState.MAX_SERVICES);
+                am.getRunningAppProcesses();
+                ActivityManagerNative.getDefault().getProcessPss(pids);
+                ipcAllocations = Math.min(ipcAllocations, Debug.getThreadAllocCount());
+            }
+        } finally {
+            Debug.stopAllocCounting();
+            setAdaptiveRefresh.invoke(state, true);
+        }
+
+        Log.i(TAG, "Steady state update: " + updateAllocations + " allocations, "
+                + ipcAllocations + " of them from activity manager calls");
+        assertTrue("Update allocated " + (updateAllocations - ipcAllocations)
+                + " objects of its own",
+                updateAllocations - ipcAllocations <= ALLOWED_ALLOCATIONS);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives indexing and search against a synthetic corpus of preference entries and logs the
+ * {@link IndexStats} counters, so that regressions show up before reaching devices.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class IndexingBenchmark {
+
+    private static final String TAG = "IndexingBenchmark";
+
+    private static final String CORPUS_CLASS_NAME = IndexingBenchmark.class.getName();
+    private static final int CORPUS_SIZE = 5000;
+    private static final long PASS_TIMEOUT_MS = 120000;
+
+    private static final String[] WORDS = { "network", "display", "battery", "sound", "volume",
+            "brightness", "location", "account", "security", "storage", "memory", "language",
+            "keyboard", "notification", "privacy", "backup", "printing", "accessibility" };
+
+    private Context mContext;
+    private Index mIndex;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mIndex = Index.getInstance(mContext);
+    }
+
+    @After
+    public void tearDown() {
+        final SearchIndexableRaw corpus = new SearchIndexableRaw(mContext);
+        corpus.className = CORPUS_CLASS_NAME;
+        mIndex.deleteIndexableData(corpus);
+        runPass(new Runnable() {
+            @Override
+            public void run() {
+                mIndex.update();
+            }
+        });
+    }
+
+    @Test
+    public void testIndexAndSearchSyntheticCorpus() {
+        final Random random = new Random(0);
+        SearchIndexableRaw last = null;
+        for (int n = 0; n < CORPUS_SIZE; n++) {
+            final SearchIndexableRaw raw = new SearchIndexableRaw(mContext);
+            raw.className = CORPUS_CLASS_NAME;
+            raw.title = pick(random) + " " + pick(random) + " " + n;
+            raw.summaryOn = pick(random) + " " + pick(random) + " " + pick(random);
+            raw.keywords = pick(random) + ", " + pick(random);
+            raw.screenTitle = "Benchmark " + (n % 50);
+            raw.key = "benchmark_" + n;
+            raw.enabled = true;
+            if (last != null) {
+                mIndex.addIndexableData(last);
+            }
+            last = raw;
+        }
+        final SearchIndexableRaw lastRaw = last;
+        final long indexingMillis = runPass(new Runnable() {
+            @Override
+            public void run() {
+                mIndex.updateFromSearchIndexableData(lastRaw);
+            }
+        });
+        final IndexStats stats = mIndex.getStats();
+        Log.i(TAG, "Indexed " + stats.getLastPassRows() + " rows in " + indexingMillis + " ms");
+
+        for (boolean inMemory : new boolean[] { false, true }) {
+            mIndex.setUseInMemorySearch(inMemory);
+            for (String word : WORDS) {
+                for (int n = 1; n <= word.length(); n++) {
+                    // The fts4 query only runs, and is recorded, once the cursor is read
+                    final Cursor cursor = mIndex.search(word.substring(0, n));
+                    cursor.getCount();
+                    cursor.close();
+                }
+            }
+            Log.i(TAG, (inMemory ? "in-memory" : "fts4") + " query latency (us): p50="
+                    + stats.getQueryLatencyMicros(50, inMemory)
+                    + " p90=" + stats.getQueryLatencyMicros(90, inMemory)
+                    + " p99=" + stats.getQueryLatencyMicros(99, inMemory));
+        }
+        mIndex.setUseInMemorySearch(true);
+
+        try {
+            Log.i(TAG, mIndex.dump().toString(2));
+        } catch (Exception e) {
+            Log.w(TAG, "Cannot dump Index stats", e);
+        }
+    }
+
+    /**
+     * Runs the given trigger and waits for the resulting indexing pass to complete.
+     *
+     * @return the duration of the pass in milliseconds.
+     */
+    private long runPass(Runnable trigger) {
+        final int passes = mIndex.getStats().getPasses();
+        final long start = SystemClock.elapsedRealtime();
+        trigger.run();
+        while (mIndex.getStats().getPasses() == passes
+                && SystemClock.elapsedRealtime() - start < PASS_TIMEOUT_MS) {
+            SystemClock.sleep(10);
+        }
+        assertTrue("Indexing pass did not complete", mIndex.getStats().getPasses() > passes);
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    private static String pick(Random random) {
+        return WORDS[random.nextInt(WORDS.length)];
+    }
+}
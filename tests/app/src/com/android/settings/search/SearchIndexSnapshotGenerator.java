@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Generates the prebuilt search Index snapshot of the current locale.
+ *
+ * Run it once per shipped locale on a device running the target build, then pull the files
+ * from "files/search_index/" of the Settings data directory into "search_snapshot/search_index/"
+ * before building the Settings package.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class SearchIndexSnapshotGenerator {
+
+    private static final String TAG = "SearchIndexSnapshotGenerator";
+
+    private static final long INDEXING_TIMEOUT_MS = 60000;
+
+    @Test
+    public void generateSnapshot() throws Exception {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final Index index = Index.getInstance(context);
+
+        // Wait for the pass started here, not for a previous one to complete
+        final CountDownLatch indexed = new CountDownLatch(1);
+        index.update(new Runnable() {
+            @Override
+            public void run() {
+                indexed.countDown();
+            }
+        });
+        assertTrue("Indexing did not complete",
+                indexed.await(INDEXING_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        final File dir = new File(context.getFilesDir(), "search_index");
+        dir.mkdirs();
+        final File file = new File(dir, Locale.getDefault().toString() + ".db");
+        assertTrue(index.exportSnapshot(file));
+        Log.i(TAG, "Wrote snapshot " + file);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the per-keystroke latency of the in-memory search against the fts4 queries.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class SearchLatencyBenchmark {
+
+    private static final String TAG = "SearchLatencyBenchmark";
+
+    private static final String[] QUERIES = { "wifi", "bluetooth", "display", "battery",
+            "location", "sound", "storage" };
+    // Served by the fts4 queries whatever the setting, their results must not change
+    private static final String[] MULTI_TERM_QUERIES = { "wi fi", "screen lock",
+            "do not disturb", "data usage" };
+    private static final int ITERATIONS = 20;
+
+    private Index mIndex;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mIndex = Index.getInstance(context);
+    }
+
+    @After
+    public void tearDown() {
+        mIndex.setUseInMemorySearch(true);
+    }
+
+    @Test
+    public void testInMemorySearchMatchesDatabase() {
+        for (String query : QUERIES) {
+            for (int n = 1; n <= query.length(); n++) {
+                final String prefix = query.substring(0, n);
+                mIndex.setUseInMemorySearch(false);
+                final List<String> expected = getTitles(mIndex.search(prefix));
+                mIndex.setUseInMemorySearch(true);
+                final List<String> actual = getTitles(mIndex.search(prefix));
+                assertEquals("Results for '" + prefix + "'", expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testMultiTermSearchMatchesDatabase() {
+        for (String query : MULTI_TERM_QUERIES) {
+            for (int n = query.indexOf(' ') + 2; n <= query.length(); n++) {
+                final String prefix = query.substring(0, n);
+                mIndex.setUseInMemorySearch(false);
+                final List<String> expected = getTitles(mIndex.search(prefix));
+                mIndex.setUseInMemorySearch(true);
+                final List<String> actual = getTitles(mIndex.search(prefix));
+                assertEquals("Results for '" + prefix + "'", expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testKeystrokeLatency() {
+        mIndex.setUseInMemorySearch(false);
+        final long[] database = measure();
+        mIndex.setUseInMemorySearch(true);
+        // Warm up the in-memory copy so that loading is not measured
+        mIndex.search(QUERIES[0]).close();
+        final long[] memory = measure();
+
+        Log.i(TAG, "fts4 keystroke latency (us): median=" + percentile(database, 50)
+                + " p90=" + percentile(database, 90));
+        Log.i(TAG, "in-memory keystroke latency (us): median=" + percentile(memory, 50)
+                + " p90=" + percentile(memory, 90));
+    }
+
+    private long[] measure() {
+        final List<Long> samples = new ArrayList<Long>();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (String query : QUERIES) {
+                for (int n = 1; n <= query.length(); n++) {
+                    final long start = SystemClock.elapsedRealtimeNanos();
+                    final Cursor cursor = mIndex.search(query.substring(0, n));
+                    cursor.getCount();
+                    samples.add((SystemClock.elapsedRealtimeNanos() - start) / 1000);
+                    cursor.close();
+                }
+            }
+        }
+        final long[] result = new long[samples.size()];
+        for (int n = 0; n < result.length; n++) {
+            result[n] = samples.get(n);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+    }
+
+    private static List<String> getTitles(Cursor cursor) {
+        final List<String> titles = new ArrayList<String>();
+        try {
+            while (cursor.moveToNext()) {
+                titles.add(cursor.getString(Index.COLUMN_INDEX_TITLE));
+            }
+        } finally {
+            cursor.close();
+        }
+        return titles;
+    }
+}
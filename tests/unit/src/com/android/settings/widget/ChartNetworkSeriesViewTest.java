@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.widget;
+
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+
+import android.content.res.Resources;
+import android.net.NetworkStatsHistory;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.SpannableStringBuilder;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class ChartNetworkSeriesViewTest extends AndroidTestCase {
+    private static final int WIDTH = 500;
+    private static final int HEIGHT = 300;
+
+    private static final long START = 1000 * DAY_IN_MILLIS;
+    private static final long END = START + 90 * DAY_IN_MILLIS;
+
+    private static final float DELTA = 0.01f;
+
+    private ChartNetworkSeriesView mView;
+    private LinearAxis mHoriz;
+    private LinearAxis mVert;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mHoriz = new LinearAxis(START, END, WIDTH);
+        mView = new ChartNetworkSeriesView(getContext());
+        mView.layout(0, 0, WIDTH, HEIGHT);
+        mView.setBounds(START, END);
+        mView.setEndTime(END);
+    }
+
+    @SmallTest
+    public void testOutline_longHistoryWithGaps() {
+        // Hourly buckets, several of them per pixel column, with gaps of hours to days
+        final NetworkStatsHistory history = new NetworkStatsHistory(HOUR_IN_MILLIS, 0);
+        final Random random = new Random(42);
+        long time = START;
+        while (time < END - 10 * DAY_IN_MILLIS) {
+            final long runEnd = time + (1 + random.nextInt(72)) * HOUR_IN_MILLIS;
+            for (; time < runEnd; time += HOUR_IN_MILLIS) {
+                history.recordData(time, time + HOUR_IN_MILLIS, random.nextInt(1000000),
+                        random.nextInt(100000));
+            }
+            time += (1 + random.nextInt(48)) * HOUR_IN_MILLIS;
+        }
+        bind(history);
+
+        assertSameOutline(generateReferenceOutline(history), getOutline());
+    }
+
+    @SmallTest
+    public void testOutline_gapWithinOneColumn() {
+        // The gap and the bucket after it both fall in the same pixel column
+        final NetworkStatsHistory history = new NetworkStatsHistory(HOUR_IN_MILLIS, 0);
+        for (long time = START; time < START + DAY_IN_MILLIS; time += HOUR_IN_MILLIS) {
+            history.recordData(time, time + HOUR_IN_MILLIS, 1000, 0);
+        }
+        history.recordData(START + DAY_IN_MILLIS + 2 * HOUR_IN_MILLIS,
+                START + DAY_IN_MILLIS + 3 * HOUR_IN_MILLIS, 50000, 0);
+        bind(history);
+
+        assertSameOutline(generateReferenceOutline(history), getOutline());
+    }
+
+    private void bind(NetworkStatsHistory history) {
+        final long total = history.getTotalBytes();
+        mVert = new LinearAxis(0, total, HEIGHT) {
+            @Override
+            public float convertToPoint(long value) {
+                // Grows upwards from the bottom of the view
+                return HEIGHT - super.convertToPoint(value);
+            }
+        };
+        mView.init(mHoriz, mVert);
+        mView.bindNetworkStats(history);
+    }
+
+    private float[] getOutline() {
+        final float[] points = mView.getOutline();
+        final float[] outline = new float[points.length + 2];
+        // Starting position of the path
+        outline[0] = 0;
+        outline[1] = HEIGHT;
+        System.arraycopy(points, 0, outline, 2, points.length);
+        return outline;
+    }
+
+    /**
+     * Vertices of the outline as drawn by the original generatePath(), one or two per bucket.
+     */
+    private float[] generateReferenceOutline(NetworkStatsHistory history) {
+        final float[] outline = new float[history.size() * 4 + 4];
+        int count = 0;
+        float lastY = HEIGHT;
+        long lastTime = mHoriz.convertToValue(0);
+        outline[count++] = 0;
+        outline[count++] = lastY;
+
+        long totalData = 0;
+        NetworkStatsHistory.Entry entry = null;
+        final int start = history.getIndexBefore(START);
+        final int end = history.getIndexAfter(END);
+        for (int i = start; i <= end; i++) {
+            entry = history.getValues(i, entry);
+            final long startTime = entry.bucketStart;
+            final long endTime = startTime + entry.bucketDuration;
+            final float endX = mHoriz.convertToPoint(endTime);
+            if (endX < 0) continue;
+
+            totalData += entry.rxBytes + entry.txBytes;
+            final float endY = mVert.convertToPoint(totalData);
+            if (lastTime != startTime) {
+                outline[count++] = mHoriz.convertToPoint(startTime);
+                outline[count++] = lastY;
+            }
+            outline[count++] = endX;
+            outline[count++] = endY;
+            lastY = endY;
+            lastTime = endTime;
+        }
+        if (lastTime < END) {
+            outline[count++] = mHoriz.convertToPoint(END);
+            outline[count++] = lastY;
+        }
+        return Arrays.copyOf(outline, count);
+    }
+
+    /**
+     * Checks that both outlines cover the same vertical range in every pixel column, which is
+     * what ends up on screen.
+     */
+    private static void assertSameOutline(float[] expected, float[] actual) {
+        final float[][] expectedRanges = getColumnRanges(expected);
+        final float[][] actualRanges = getColumnRanges(actual);
+        for (int column = 0; column < WIDTH; column++) {
+            assertEquals("Top of column " + column, expectedRanges[column][0],
+                    actualRanges[column][0], DELTA);
+            assertEquals("Bottom of column " + column, expectedRanges[column][1],
+                    actualRanges[column][1], DELTA);
+        }
+    }
+
+    private static float[][] getColumnRanges(float[] outline) {
+        final float[][] ranges = new float[WIDTH][];
+        for (int column = 0; column < WIDTH; column++) {
+            ranges[column] = new float[] { Float.MAX_VALUE, -Float.MAX_VALUE };
+        }
+        for (int i = 2; i < outline.length; i += 2) {
+            final float x0 = outline[i - 2];
+            final float y0 = outline[i - 1];
+            final float x1 = outline[i];
+            final float y1 = outline[i + 1];
+            if (x0 == x1) {
+                if (x0 >= 0 && x0 < WIDTH) {
+                    include(ranges[(int) x0], y0);
+                    include(ranges[(int) x0], y1);
+                }
+                continue;
+            }
+            final int first = Math.max(0, (int) Math.min(x0, x1));
+            final int last = Math.min(WIDTH - 1, (int) Math.max(x0, x1));
+            for (int column = first; column <= last; column++) {
+                // Part of the segment within the column
+                final float from = Math.max(column, Math.min(x0, x1));
+                final float to = Math.min(column + 1, Math.max(x0, x1));
+                include(ranges[column], interpolate(x0, y0, x1, y1, from));
+                include(ranges[column], interpolate(x0, y0, x1, y1, to));
+            }
+        }
+        return ranges;
+    }
+
+    private static float interpolate(float x0, float y0, float x1, float y1, float x) {
+        return y0 + (y1 - y0) * (x - x0) / (x1 - x0);
+    }
+
+    private static void include(float[] range, float y) {
+        range[0] = Math.min(range[0], y);
+        range[1] = Math.max(range[1], y);
+    }
+
+    private static class LinearAxis implements ChartAxis {
+        private long mMin;
+        private long mMax;
+        private float mSize;
+
+        LinearAxis(long min, long max, float size) {
+            mMin = min;
+            mMax = Math.max(max, min + 1);
+            mSize = size;
+        }
+
+        @Override
+        public boolean setBounds(long min, long max) {
+            mMin = min;
+            mMax = max;
+            return true;
+        }
+
+        @Override
+        public boolean setSize(float size) {
+            mSize = size;
+            return true;
+        }
+
+        @Override
+        public float convertToPoint(long value) {
+            return (value - mMin) * mSize / (mMax - mMin);
+        }
+
+        @Override
+        public long convertToValue(float point) {
+            return (long) (mMin + point * (mMax - mMin) / mSize);
+        }
+
+        @Override
+        public long buildLabel(Resources res, SpannableStringBuilder builder, long value) {
+            return value;
+        }
+
+        @Override
+        public float[] getTickPoints() {
+            return new float[0];
+        }
+
+        @Override
+        public int shouldAdjustAxis(long value) {
+            return 0;
+        }
+    }
+}